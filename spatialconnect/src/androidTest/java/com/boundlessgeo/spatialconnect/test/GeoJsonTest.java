@@ -16,24 +16,37 @@ package com.boundlessgeo.spatialconnect.test;
 
 
 import com.boundlessgeo.spatialconnect.SpatialConnect;
+import com.boundlessgeo.spatialconnect.config.SCStoreConfig;
 import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
 import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
 import com.boundlessgeo.spatialconnect.query.SCPredicate;
 import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
 import com.boundlessgeo.spatialconnect.scutilities.HttpHandler;
+import com.boundlessgeo.spatialconnect.scutilities.Json.FeatureCollectionIterator;
+import com.boundlessgeo.spatialconnect.scutilities.Json.SCObjectMapper;
+import com.boundlessgeo.spatialconnect.stores.GeoJsonSpatialIndex;
 import com.boundlessgeo.spatialconnect.stores.GeoJsonStore;
 import com.boundlessgeo.spatialconnect.stores.SCDataStore;
+import com.boundlessgeo.spatialconnect.stores.SCDataStoreException;
 import com.boundlessgeo.spatialconnect.stores.SCDataStoreStatus;
+import com.boundlessgeo.spatialconnect.stores.SCKeyTuple;
 import com.boundlessgeo.spatialconnect.stores.ISCSpatialStore;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 import rx.observers.TestSubscriber;
@@ -44,6 +57,8 @@ import static junit.framework.Assert.assertTrue;
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class GeoJsonTest extends BaseTestCase {
 
+    private static final int TIMEOUT = 10;
+
     private static SpatialConnect sc;
 
     @BeforeClass
@@ -77,6 +92,18 @@ public class GeoJsonTest extends BaseTestCase {
         assertTrue("A geojson store should be running.", containsGeoJsonStore);
     }
 
+    @Test
+    public void testGeoJsonStoreDeclinesBatchedCreates() {
+        GeoJsonStore geoJsonStore = (GeoJsonStore) sc.getDataService().getStoreByIdentifier(BARS_GEO_JSON_ID);
+        SCGeometry point = new SCGeometry(new GeometryFactory().createPoint(new Coordinate(-77, 38.9)));
+        point.setStoreId(BARS_GEO_JSON_ID);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        geoJsonStore.createBatch(Arrays.<SCSpatialFeature>asList(point)).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent(TIMEOUT, TimeUnit.SECONDS);
+        testSubscriber.assertError(SCDataStoreException.class);
+        testSubscriber.assertNoValues();
+    }
+
     @Test
     public void testSearchGeoJsonStore() {
         SCDataStore geoJsonStore = sc.getDataService().getStoreByIdentifier(BARS_GEO_JSON_ID);
@@ -107,6 +134,138 @@ public class GeoJsonTest extends BaseTestCase {
         );
     }
 
+    @Test
+    public void testGeometryJsonFollowsSetGeometry() {
+        GeometryFactory factory = new GeometryFactory();
+        SCGeometry feature = new SCGeometry(factory.createPoint(new Coordinate(1, 2)));
+        assertEquals("The bbox should be built from the geometry.", 1.0, feature.getBbox()[0]);
+        assertTrue("The GeoJSON should be built from the geometry.", feature.getGeometryGeoJson().contains("Point"));
+
+        feature.setGeometry(factory.createLineString(new Coordinate[]{new Coordinate(3, 4), new Coordinate(5, 6)}));
+        assertEquals("The bbox should follow the new geometry.", 3.0, feature.getBbox()[0]);
+        assertTrue("The GeoJSON should follow the new geometry.",
+                feature.getGeometryGeoJson().contains("LineString"));
+    }
+
+    @Test
+    public void testFeatureCollectionIteratorStreamsFeatures() throws Exception {
+        String json = "{\"type\": \"FeatureCollection\", \"crs\": {\"type\": \"name\"}, \"features\": [" +
+                "{\"type\": \"Feature\", \"id\": \"a\", \"geometry\": {\"type\": \"Point\", " +
+                "\"coordinates\": [1, 2]}, \"properties\": {\"name\": \"first\"}}," +
+                "{\"type\": \"Feature\", \"id\": \"b\", \"geometry\": null, \"properties\": {}}" +
+                "], \"bbox\": [1, 2, 1, 2]}";
+        FeatureCollectionIterator iterator = new FeatureCollectionIterator(new ByteArrayInputStream(json.getBytes("UTF-8")));
+        SCSpatialFeature first = iterator.next();
+        assertTrue("The first feature should have a geometry.", first instanceof SCGeometry);
+        assertEquals("The id should be read.", "a", first.getId());
+        assertEquals("The properties should be read.", "first", first.getProperties().get("name"));
+        assertEquals("A feature without a geometry should still be read.", "b", iterator.next().getId());
+        assertTrue("There should only be 2 features.", !iterator.hasNext());
+        iterator.close();
+    }
+
+    @Test
+    public void testSpatialIndexFindsCandidateFeatures() throws Exception {
+        StringBuilder json = new StringBuilder("{\"type\": \"FeatureCollection\", \"features\": [");
+        for (int i = 0; i < 100; i++) {
+            json.append(i > 0 ? "," : "")
+                    .append("{\"type\": \"Feature\", \"id\": \"").append(i)
+                    .append("\", \"geometry\": {\"type\": \"Point\", \"coordinates\": [")
+                    .append(i).append(", ").append(i).append("]}, \"properties\": {}}");
+        }
+        json.append("]}");
+        File geoJsonFile = new File(testContext.getCacheDir(), "index_test.json");
+        File indexFile = new File(testContext.getCacheDir(), "index_test.json.idx");
+        FileUtils.writeStringToFile(geoJsonFile, json.toString(), "UTF-8");
+        indexFile.delete();
+
+        GeoJsonSpatialIndex index = GeoJsonSpatialIndex.open(geoJsonFile, indexFile);
+        assertEquals("Every feature should be indexed.", 100, index.size());
+        assertTrue("The index should be saved.", indexFile.exists());
+        int[] items = index.search(9.5, 9.5, 20.5, 20.5);
+        assertEquals("The features from 10 to 20 should match.", 11, items.length);
+        RandomAccessFile file = new RandomAccessFile(geoJsonFile, "r");
+        assertEquals("The features should be read from their offsets.", "10", index.readFeature(file, items[0]).getId());
+        file.close();
+
+        assertTrue("The saved index should be reused.",
+                GeoJsonSpatialIndex.open(geoJsonFile, indexFile).search(9.5, 9.5, 20.5, 20.5).length == 11);
+        FileUtils.writeStringToFile(geoJsonFile, "{\"type\": \"FeatureCollection\", \"features\": []}", "UTF-8");
+        assertTrue("The index should be stale once the file changes.", !index.isCurrent(geoJsonFile));
+        assertEquals("The index should be rebuilt for the new file.",
+                0,
+                GeoJsonSpatialIndex.open(geoJsonFile, indexFile).size()
+        );
+        geoJsonFile.delete();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testSpatialIndexFindsFeaturesById() throws Exception {
+        String json = "{\"type\": \"FeatureCollection\", \"features\": [" +
+                "{\"type\": \"Feature\", \"id\": \"a\", \"geometry\": {\"type\": \"Point\", " +
+                "\"coordinates\": [1, 1]}, \"properties\": {}}," +
+                "{\"type\": \"Feature\", \"id\": \"b\", \"geometry\": null, \"properties\": {\"n\": 2}}]}";
+        File geoJsonFile = new File(testContext.getCacheDir(), "id_index_test.json");
+        File indexFile = new File(testContext.getCacheDir(), "id_index_test.json.idx");
+        FileUtils.writeStringToFile(geoJsonFile, json, "UTF-8");
+        indexFile.delete();
+
+        GeoJsonSpatialIndex index = GeoJsonSpatialIndex.open(geoJsonFile, indexFile);
+        assertEquals("Only the feature with a geometry should be in the tree.", 1, index.size());
+        assertEquals("An unknown id should not be found.", -1, index.findById("c"));
+        index = GeoJsonSpatialIndex.open(geoJsonFile, indexFile);
+        RandomAccessFile file = new RandomAccessFile(geoJsonFile, "r");
+        assertEquals("The saved index should find a feature by id.", "a",
+                index.readFeature(file, index.findById("a")).getId());
+        assertEquals("Features without a geometry should be found by id.", "b",
+                index.readFeature(file, index.findById("b")).getId());
+        file.close();
+        geoJsonFile.delete();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testImportedStoreFindsQueriedFeaturesById() throws Exception {
+        String storeId = "geojson_import_test";
+        String json = "{\"type\": \"FeatureCollection\", \"features\": [" +
+                "{\"type\": \"Feature\", \"id\": \"a\", \"geometry\": {\"type\": \"Point\", " +
+                "\"coordinates\": [1, 1]}, \"properties\": {\"n\": 1}}," +
+                "{\"type\": \"Feature\", \"id\": \"b\", \"geometry\": {\"type\": \"Point\", " +
+                "\"coordinates\": [2, 2]}, \"properties\": {\"n\": 2}}]}";
+        FileUtils.writeStringToFile(new File(activity.getFilesDir(), storeId + ".json"), json, "UTF-8");
+        SCStoreConfig config = new SCStoreConfig();
+        config.setUniqueID(storeId);
+        config.setName(storeId);
+        config.setType(GeoJsonStore.TYPE);
+        config.setVersion("1");
+        config.setUri("file://" + storeId + ".json");
+        config.setOptions(SCObjectMapper.getMapper().createObjectNode().put(GeoJsonStore.IMPORT_OPTION, true));
+        sc.getDataService().registerAndStartStoreByConfig(config);
+        waitForStoreToStart(storeId);
+        ISCSpatialStore store = (ISCSpatialStore) sc.getDataService().getStoreByIdentifier(storeId);
+
+        SCQueryFilter filter = new SCQueryFilter(new SCPredicate(new SCBoundingBox(1.5, 1.5, 3, 3),
+                SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN));
+        TestSubscriber<SCSpatialFeature> testSubscriber = new TestSubscriber<>();
+        store.query(filter).take(1).timeout(TIMEOUT, TimeUnit.SECONDS).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        SCKeyTuple key = testSubscriber.getOnNextEvents().get(0).getKey();
+        assertEquals("The query should return the feature's GeoJSON id.", "b", key.getFeatureId());
+
+        testSubscriber = new TestSubscriber<>();
+        store.queryById(key).take(1).timeout(TIMEOUT, TimeUnit.SECONDS).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        SCSpatialFeature feature = testSubscriber.getOnNextEvents().get(0);
+        assertEquals("The key from the query should find the same feature.", "b", feature.getId());
+        assertEquals(storeId, feature.getStoreId());
+        assertEquals(2, ((Number) feature.getProperties().get("n")).intValue());
+
+        sc.getDataService().unregisterStore((SCDataStore) store);
+    }
+
     @Test
     public void testStoreDestroy() {
         GeoJsonStore store = (GeoJsonStore) sc.getDataService().getStoreByIdentifier(BARS_GEO_JSON_ID);
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.test;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+
+import com.boundlessgeo.spatialconnect.SpatialConnect;
+import com.boundlessgeo.spatialconnect.db.SCSqliteHelper;
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.scutilities.HttpHandler;
+import com.boundlessgeo.spatialconnect.services.SCDataService;
+import com.boundlessgeo.spatialconnect.stores.GeoPackageStore;
+import com.boundlessgeo.spatialconnect.stores.ISCSpatialStore;
+import com.boundlessgeo.spatialconnect.stores.SCDataStore;
+import com.boundlessgeo.spatialconnect.stores.SCDataStoreStatus;
+import com.boundlessgeo.spatialconnect.stores.SCStoreStatusEvent;
+import com.squareup.sqlbrite.BriteDatabase;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Microbenchmarks for the hot paths of the GeoPackageStore.  Timings are printed so they can be compared across
+ * devices and builds; the assertions only check that the work was actually done.
+ */
+public class GeoPackageBenchmarkTest extends BaseTestCase {
+
+    private static SpatialConnect sc;
+    private static int TIMEOUT = 2;
+    private static int INSERT_COUNT = 500;
+    private static GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+    private static int BBOX_ROW_COUNT = 1000000;
+    private static int BBOX_QUERY_COUNT = 20;
+    private static int BBOX_QUERY_LIMIT = 1000;
+    private static String BBOX_LAYER = "benchmark_points";
+    private static Random RANDOM = new Random(42);
+    private static BriteDatabase haiti;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        sc = SpatialConnect.getInstance();
+        sc.initialize(activity);
+        sc.getConfigService().addConfigFilePath(localConfigFile.getAbsolutePath());
+        sc.startAllServices();
+        haiti = new SCSqliteHelper(testContext, HAITI_GPKG_ID).db();
+        waitForStoreToStart(HAITI_GPKG_ID);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        HttpHandler.getInstance().cancelAllRequests();
+        testContext.deleteDatabase(HAITI_GPKG_ID);
+    }
+
+    @Test
+    public void testInsertPerFeatureCost() {
+        // baseline: the SQL text is built, escaped and parsed for every feature, then the row id is queried
+        long start = System.nanoTime();
+        for (int i = 0; i < INSERT_COUNT; i++) {
+            SCGeometry feature = getTestPoint(i);
+            haiti.executeAndTrigger("point_features",
+                    String.format("INSERT OR REPLACE INTO point_features (NAME,OTHER_TAGS,the_geom) " +
+                                    "VALUES (%s,%s,ST_GeomFromText('%s'))",
+                            DatabaseUtils.sqlEscapeString(String.valueOf(feature.getProperties().get("NAME"))),
+                            DatabaseUtils.sqlEscapeString(String.valueOf(feature.getProperties().get("OTHER_TAGS"))),
+                            feature.getGeometry().toString()
+                    )
+            );
+            Cursor cursor = haiti.query("SELECT last_insert_rowid()");
+            cursor.moveToFirst();
+            cursor.close();
+        }
+        long stringBuiltNanos = System.nanoTime() - start;
+
+        // prepared: the store binds values to a cached statement for the layer
+        ISCSpatialStore gpkgStore = (ISCSpatialStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        start = System.nanoTime();
+        for (int i = 0; i < INSERT_COUNT; i++) {
+            gpkgStore.create(getTestPoint(i)).subscribe(testSubscriber);
+        }
+        long preparedNanos = System.nanoTime() - start;
+        testSubscriber.assertNoErrors();
+
+        System.out.println(String.format("Insert cost per feature: string built %d us, prepared %d us",
+                TimeUnit.NANOSECONDS.toMicros(stringBuiltNanos / INSERT_COUNT),
+                TimeUnit.NANOSECONDS.toMicros(preparedNanos / INSERT_COUNT)));
+        assertEquals("Every feature should have been created.",
+                INSERT_COUNT,
+                testSubscriber.getOnNextEvents().size()
+        );
+    }
+
+    @Ignore // builds a 1M row layer, run manually when changing the query path
+    @Test
+    public void testBboxQueryLatency() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("name", "TEXT");
+        gpkgStore.addLayer(BBOX_LAYER, fields);
+        gpkgStore.createAll(
+                Observable.range(0, BBOX_ROW_COUNT).map(new Func1<Integer, SCSpatialFeature>() {
+                    @Override
+                    public SCSpatialFeature call(Integer i) {
+                        SCGeometry feature = new SCGeometry(GEOMETRY_FACTORY.createPoint(
+                                new Coordinate(-180 + 360 * RANDOM.nextDouble(), -90 + 180 * RANDOM.nextDouble())
+                        ));
+                        feature.setLayerId(BBOX_LAYER);
+                        feature.setStoreId(HAITI_GPKG_ID);
+                        feature.getProperties().put("name", "point " + i);
+                        return feature;
+                    }
+                })
+        ).toBlocking().last();
+
+        long subQueryNanos = 0;
+        long joinNanos = 0;
+        int subQueryRows = 0;
+        int joinRows = 0;
+        for (int i = 0; i < BBOX_QUERY_COUNT; i++) {
+            double minX = -180 + 350 * RANDOM.nextDouble();
+            double minY = -90 + 170 * RANDOM.nextDouble();
+            double maxX = minX + 10;
+            double maxY = minY + 10;
+
+            // the previous query: literal bbox values and a second lookup per row through the IN sub query
+            long start = System.nanoTime();
+            Cursor cursor = haiti.query(String.format(Locale.US,
+                    "SELECT f.name, f.id, ST_AsBinary(f.geom) AS geom FROM %s AS f WHERE f.id IN " +
+                            "(SELECT id FROM rtree_%s_geom WHERE minx > %f AND maxx < %f AND miny > %f AND maxy < %f) " +
+                            "LIMIT %d",
+                    BBOX_LAYER, BBOX_LAYER, minX, maxX, minY, maxY, BBOX_QUERY_LIMIT));
+            while (cursor.moveToNext()) {
+                subQueryRows++;
+            }
+            cursor.close();
+            subQueryNanos += System.nanoTime() - start;
+
+            // the current query: the R-tree joined to the feature table with bound parameters
+            start = System.nanoTime();
+            cursor = haiti.query(String.format(
+                    "SELECT f.name, f.id, ST_AsBinary(f.geom) AS geom FROM %s AS f JOIN rtree_%s_geom AS r " +
+                            "ON f.id = r.id WHERE r.minx <= ? AND r.maxx >= ? AND r.miny <= ? AND r.maxy >= ? " +
+                            "LIMIT ?",
+                    BBOX_LAYER, BBOX_LAYER),
+                    String.valueOf(maxX), String.valueOf(minX), String.valueOf(maxY), String.valueOf(minY),
+                    String.valueOf(BBOX_QUERY_LIMIT));
+            while (cursor.moveToNext()) {
+                joinRows++;
+            }
+            cursor.close();
+            joinNanos += System.nanoTime() - start;
+        }
+        gpkgStore.deleteLayer(BBOX_LAYER);
+
+        System.out.println(String.format("Bbox query latency over %d rows: sub query %d us (%d rows), join %d us (%d rows)",
+                BBOX_ROW_COUNT,
+                TimeUnit.NANOSECONDS.toMicros(subQueryNanos / BBOX_QUERY_COUNT),
+                subQueryRows,
+                TimeUnit.NANOSECONDS.toMicros(joinNanos / BBOX_QUERY_COUNT),
+                joinRows));
+        assertTrue("The intersects query should return at least the features inside the bbox.",
+                joinRows >= subQueryRows);
+    }
+
+    private static void waitForStoreToStart(final String storeId) {
+        TestSubscriber testSubscriber = new TestSubscriber();
+        Observable.create(new Observable.OnSubscribe<Void>() {
+            @Override
+            public void call(final Subscriber<? super Void> subscriber) {
+                SCDataService dataService = sc.getDataService();
+                SCDataStore store = dataService.getStoreByIdentifier(storeId);
+                if (store != null) {
+                    if (store.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
+                        subscriber.onCompleted();
+                    } else {
+                        dataService.storeEvents.autoConnect()
+                                .timeout(TIMEOUT, TimeUnit.MINUTES)
+                                .subscribe(new Action1<SCStoreStatusEvent>() {
+                                    @Override
+                                    public void call(SCStoreStatusEvent event) {
+                                        if (event.getStoreId().equals(storeId) &&
+                                                event.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
+                                            subscriber.onCompleted();
+                                        }
+                                    }
+                                });
+                    }
+                }
+            }
+        }).subscribe(testSubscriber);
+
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertCompleted();
+    }
+
+    // helper method to return a point feature in the point_features layer of the Haiti gpkg
+    private static SCGeometry getTestPoint(int i) {
+        SCGeometry feature = new SCGeometry(
+                GEOMETRY_FACTORY.createPoint(new Coordinate(-72.5 + (i % 100) * 0.01, 18.5 + (i / 100) * 0.01))
+        );
+        feature.setLayerId("point_features");
+        feature.setStoreId(HAITI_GPKG_ID);
+        feature.getProperties().put("NAME", "benchmark point " + i);
+        feature.getProperties().put("OTHER_TAGS", "inserted by the benchmark");
+        return feature;
+    }
+}
@@ -17,24 +17,34 @@ package com.boundlessgeo.spatialconnect.test;
 import android.database.Cursor;
 
 import com.boundlessgeo.spatialconnect.SpatialConnect;
+import com.boundlessgeo.spatialconnect.db.GeoPackage;
+import com.boundlessgeo.spatialconnect.db.GeoPackageBinary;
 import com.boundlessgeo.spatialconnect.db.SCSqliteHelper;
 import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
 import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCGeometryProjection;
 import com.boundlessgeo.spatialconnect.query.SCPredicate;
 import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
+import com.boundlessgeo.spatialconnect.schema.SCCommand;
 import com.boundlessgeo.spatialconnect.scutilities.HttpHandler;
 import com.boundlessgeo.spatialconnect.services.SCDataService;
+import com.boundlessgeo.spatialconnect.services.SCSyncBatch;
 import com.boundlessgeo.spatialconnect.stores.GeoPackageStore;
+import com.boundlessgeo.spatialconnect.stores.SCChange;
 import com.boundlessgeo.spatialconnect.stores.SCDataStore;
 import com.boundlessgeo.spatialconnect.stores.SCDataStoreException;
 import com.boundlessgeo.spatialconnect.stores.SCDataStoreStatus;
 import com.boundlessgeo.spatialconnect.stores.SCKeyTuple;
 import com.boundlessgeo.spatialconnect.stores.ISCSpatialStore;
+import com.boundlessgeo.spatialconnect.stores.LocationStore;
+import com.boundlessgeo.spatialconnect.stores.SCStoreMetrics;
+import com.boundlessgeo.spatialconnect.stores.SCStoreStartupTiming;
 import com.boundlessgeo.spatialconnect.stores.SCStoreStatusEvent;
 import com.squareup.sqlbrite.BriteDatabase;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKTReader;
 
@@ -46,7 +56,12 @@ import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
@@ -95,6 +110,224 @@ public class GeoPackageTest extends BaseTestCase {
         assertTrue("The query should have returned some features.", testSubscriber.getOnNextEvents().size() > 0);
     }
 
+    @Test
+    public void testQueryAllStoresAppliesLimitAcrossStores() {
+        SCQueryFilter filter = new SCQueryFilter(
+                new SCPredicate(HAITI_BOUNDING_BOX, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
+        );
+        filter.setLimit(3);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        sc.getDataService().queryAllStores(filter)
+                .timeout(TIMEOUT, TimeUnit.SECONDS)
+                .subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        testSubscriber.assertCompleted();
+        assertEquals("The limit should apply to the features of all the stores together.",
+                (Integer) 3,
+                (Integer) testSubscriber.getOnNextEvents().size()
+        );
+    }
+
+    @Test
+    public void testStoreStartupIsTimed() {
+        SCStoreStartupTiming timing = sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID).getStartupTiming();
+        Map<String, Object> phases = timing.toMap();
+        assertTrue("Opening the GeoPackage should be timed.", phases.containsKey(SCStoreStartupTiming.OPEN));
+        assertTrue("Checking the schema should be timed.", phases.containsKey(SCStoreStartupTiming.VALIDATE));
+        assertTrue("The whole start should be timed.",
+                timing.get(SCStoreStartupTiming.TOTAL) >= timing.get(SCStoreStartupTiming.OPEN));
+    }
+
+    @Test
+    public void testGeoPackageSkipsSchemaChecksWhenUnchanged() {
+        String name = "fingerprint_test";
+        testContext.deleteDatabase(name);
+        SCStoreStartupTiming cold = new SCStoreStartupTiming();
+        GeoPackage gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), cold);
+        assertTrue("The new GeoPackage should be valid.", gpkg.isValid());
+        assertTrue("A new GeoPackage should have its schema checked.", cold.toMap().containsKey(
+                SCStoreStartupTiming.AUDIT));
+        gpkg.close();
+
+        SCStoreStartupTiming warm = new SCStoreStartupTiming();
+        gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), warm);
+        assertTrue("The reopened GeoPackage should be valid.", gpkg.isValid());
+        assertTrue("An unchanged GeoPackage should not have its schema checked again.", !warm.toMap().containsKey(
+                SCStoreStartupTiming.AUDIT));
+        Map<String, String> fields = new HashMap<>();
+        fields.put("name", "TEXT");
+        gpkg.addFeatureSource("fingerprint_layer", fields);
+        gpkg.close();
+
+        SCStoreStartupTiming changed = new SCStoreStartupTiming();
+        gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), changed);
+        assertTrue("A GeoPackage whose schema changed should have it checked again.", changed.toMap().containsKey(
+                SCStoreStartupTiming.AUDIT));
+        assertTrue("The added layer should be loaded.",
+                gpkg.getFeatureSources().containsKey("fingerprint_layer"));
+        gpkg.close();
+        testContext.deleteDatabase(name);
+    }
+
+    @Test
+    public void testGeoPackageWithoutChangeLoggingLeavesNoUnsentChanges() {
+        String name = "unlogged_test";
+        testContext.deleteDatabase(name);
+        GeoPackage gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), new SCStoreStartupTiming(), false);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("name", "TEXT");
+        gpkg.addFeatureSource("unlogged_layer", fields);
+        gpkg.close();
+
+        // reopening checks the changed schema, which must not add the triggers either
+        gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), new SCStoreStartupTiming(), false);
+        assertTrue("The reopened GeoPackage should be valid.", gpkg.isValid());
+        gpkg.getFeatureSourceByName("unlogged_layer").insert(getTestHaitiPoint());
+        Cursor cursor = gpkg.query("SELECT name FROM sqlite_master WHERE type = 'trigger' AND name LIKE ?",
+                "%_changelog_%");
+        try {
+            assertEquals("No change log triggers should be created.", 0, cursor.getCount());
+        }
+        finally {
+            cursor.close();
+        }
+        assertEquals("The write should not be logged.",
+                (Integer) 0, gpkg.unSent().count().toBlocking().first());
+        gpkg.close();
+        testContext.deleteDatabase(name);
+    }
+
+    @Test
+    public void testGeoPackageOpenedWithoutChangeLoggingLogsChangesOnceEnabled() {
+        String name = "logging_enabled_test";
+        testContext.deleteDatabase(name);
+        GeoPackage gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), new SCStoreStartupTiming(), false);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("name", "TEXT");
+        gpkg.addFeatureSource("logged_layer", fields);
+        gpkg.close();
+        // checked without logging, so the schema is fingerprinted without the change log
+        gpkg = new GeoPackage(testContext, name, new SCStoreMetrics(), new SCStoreStartupTiming(), false);
+        gpkg.close();
+
+        gpkg = new GeoPackage(testContext, name);
+        assertTrue("The reopened GeoPackage should be valid.", gpkg.isValid());
+        gpkg.getFeatureSourceByName("logged_layer").insert(getTestHaitiPoint());
+        assertEquals("The write should be logged once logging is enabled.",
+                (Integer) 1, gpkg.unSent().count().toBlocking().first());
+        gpkg.close();
+        testContext.deleteDatabase(name);
+    }
+
+    @Test
+    public void testGeoPackageResendsFeaturesOfAuditTablesWithoutFeatureKeys() {
+        String name = "audit_migration_test";
+        testContext.deleteDatabase(name);
+        GeoPackage gpkg = new GeoPackage(testContext, name);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("name", "TEXT");
+        gpkg.addFeatureSource("audit_layer", fields);
+        List<String> featureIds = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            featureIds.add(String.valueOf(gpkg.getFeatureSourceByName("audit_layer").insert(getTestHaitiPoint())));
+        }
+        List<Long> sequences = new ArrayList<>();
+        for (SCChange change : gpkg.unSent().toList().toBlocking().first()) {
+            sequences.add(change.getSequence());
+        }
+        gpkg.markChangesSent(sequences);
+        // an old audit table whose own ids don't match the features'
+        String[] statements = {
+                "CREATE TABLE audit_layer_audit (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT, sent DATETIME)",
+                "INSERT INTO audit_layer_audit (id, name) VALUES (7, 'a')",
+                "INSERT INTO audit_layer_audit (id, name) VALUES (8, 'b')"
+        };
+        for (String statement : statements) {
+            Cursor cursor = gpkg.query(statement);
+            cursor.moveToFirst();
+            cursor.close();
+        }
+        gpkg.close();
+
+        gpkg = new GeoPackage(testContext, name);
+        List<String> unSentIds = new ArrayList<>();
+        for (SCChange change : gpkg.unSent().toList().toBlocking().first()) {
+            assertEquals("The features should be sent again as inserts.",
+                    SCChange.Operation.INSERT, change.getOperation());
+            unSentIds.add(change.getFeature().getId());
+        }
+        Collections.sort(unSentIds);
+        Collections.sort(featureIds);
+        assertEquals("Every current feature, and only those, should be sent again.", featureIds, unSentIds);
+        gpkg.close();
+        testContext.deleteDatabase(name);
+    }
+
+    @Test
+    public void testGeoPackageQueryLimitIsSharedAcrossLayers() {
+        ISCSpatialStore gpkgStore = ((ISCSpatialStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID));
+
+        SCQueryFilter filter = new SCQueryFilter(
+                new SCPredicate(HAITI_BOUNDING_BOX, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
+        );
+        // fewer features than layers used to give each layer a limit of 0
+        filter.setLimit(1);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        gpkgStore.query(filter).timeout(2, TimeUnit.SECONDS).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        assertEquals("The query should return exactly the limit even when it is less than the number of layers.",
+                (Integer) 1,
+                (Integer) testSubscriber.getOnNextEvents().size()
+        );
+    }
+
+    @Test
+    public void testGeoPackageQueryDecodesRealColumnsAsDoubles() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("score", "REAL");
+        gpkgStore.addLayer("real_features", fields);
+        SCSpatialFeature newFeature = getTestHaitiPoint();
+        newFeature.setId("");
+        newFeature.setLayerId("real_features");
+        newFeature.getProperties().clear();
+        newFeature.getProperties().put("score", 1.5);
+        gpkgStore.create(newFeature).toBlocking().single();
+
+        SCQueryFilter filter = new SCQueryFilter();
+        filter.addLayerId("real_features");
+        SCSpatialFeature feature = gpkgStore.query(filter)
+                .timeout(TIMEOUT, TimeUnit.SECONDS)
+                .take(1)
+                .toBlocking()
+                .single();
+        gpkgStore.deleteLayer("real_features");
+        assertEquals("The REAL column should keep its fractional part.", 1.5, feature.getProperties().get("score"));
+    }
+
+    @Test
+    public void testGeoPackageQueryWithProjection() {
+        ISCSpatialStore gpkgStore = ((ISCSpatialStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID));
+
+        SCQueryFilter filter = new SCQueryFilter(
+                new SCPredicate(HAITI_BOUNDING_BOX, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
+        );
+        filter.addLayerId("point_features");
+        filter.addPropertyName("NAME");
+        filter.setGeometryProjection(SCGeometryProjection.SCGEOMETRY_PROJECTION_NONE);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        gpkgStore.query(filter).timeout(TIMEOUT, TimeUnit.SECONDS).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        assertTrue("The query should have returned some features.", testSubscriber.getOnNextEvents().size() > 0);
+        SCSpatialFeature feature = (SCSpatialFeature) testSubscriber.getOnNextEvents().get(0);
+        assertTrue("The feature should not have a geometry.", !(feature instanceof SCGeometry));
+        assertEquals("The feature should only have the projected property.",
+                Arrays.asList("NAME"),
+                new ArrayList<>(feature.getProperties().keySet())
+        );
+    }
+
     @Test
     public void testGeoPackageQueryWithin() {
         ISCSpatialStore gpkgStore = ((ISCSpatialStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID));
@@ -205,6 +438,227 @@ public class GeoPackageTest extends BaseTestCase {
         );
     }
 
+    @Test
+    public void testGeoPackageCreateExecutesOneStatementPerFeature() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        SCSpatialFeature newFeature = getTestHaitiPoint();
+        newFeature.setId("");
+        long statementsBefore = gpkgStore.getMetrics().getWriteStatementCount();
+        long readsBefore = gpkgStore.getMetrics().getReadStatementCount();
+        TestSubscriber testSubscriber = new TestSubscriber();
+        gpkgStore.create(newFeature).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        assertEquals("Creating a feature should execute exactly one write statement.",
+                1,
+                gpkgStore.getMetrics().getWriteStatementCount() - statementsBefore
+        );
+        assertEquals("Creating a feature should not query the database, e.g. for the new row id.",
+                0,
+                gpkgStore.getMetrics().getReadStatementCount() - readsBefore
+        );
+    }
+
+    @Test
+    public void testGeoPackageCreateAllFeaturesInBatches() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        gpkgStore.setBatchSize(10);
+        List<SCSpatialFeature> newFeatures = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            SCSpatialFeature newFeature = getTestHaitiPoint();
+            newFeature.setId("");
+            newFeatures.add(newFeature);
+        }
+        TestSubscriber editedSubscriber = new TestSubscriber();
+        gpkgStore.storeEdited.subscribe(editedSubscriber);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        gpkgStore.createAll(Observable.from(newFeatures)).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        testSubscriber.assertCompleted();
+        gpkgStore.setBatchSize(GeoPackageStore.DEFAULT_BATCH_SIZE);
+        assertEquals("All the features should have been created.", 25, testSubscriber.getOnNextEvents().size());
+        for (Object created : testSubscriber.getOnNextEvents()) {
+            assertTrue("The new feature should have an id.", !((SCSpatialFeature) created).getId().equals(""));
+        }
+        assertEquals("The store should be marked as edited once per batch.", 3, editedSubscriber.getOnNextEvents().size());
+        editedSubscriber.unsubscribe();
+    }
+
+    @Test
+    public void testGeoPackageCreateBatchWithInvalidLayerWritesNothing() {
+        ISCSpatialStore gpkgStore = ((ISCSpatialStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID));
+        SCSpatialFeature valid = getTestHaitiPoint();
+        valid.setId("");
+        SCSpatialFeature invalid = getTestHaitiPoint();
+        invalid.setLayerId("invalid_table_name");
+        TestSubscriber testSubscriber = new TestSubscriber();
+        gpkgStore.createBatch(Arrays.asList(valid, invalid)).subscribe(testSubscriber);
+        testSubscriber.assertError(SCDataStoreException.class);
+        assertEquals("The valid feature should not have been written.", "", valid.getId());
+    }
+
+    @Test
+    public void testGeoPackageMarkSentMarksBatchSent() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        List<SCSpatialFeature> newFeatures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            SCSpatialFeature newFeature = getTestHaitiPoint();
+            newFeature.setId("");
+            newFeatures.add(newFeature);
+        }
+        List<SCSpatialFeature> created = gpkgStore.createBatch(newFeatures).toList().toBlocking().first();
+        List<String> createdIds = getIds(created);
+        List<SCChange> unSent = gpkgStore.unSent().timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().first();
+        List<SCChange> inserts = new ArrayList<>();
+        for (SCChange change : unSent) {
+            if (createdIds.contains(change.getFeature().getId())) {
+                assertEquals("The new feature should be logged as an insert.",
+                        SCChange.Operation.INSERT, change.getOperation());
+                inserts.add(change);
+            }
+        }
+        assertEquals("Every new feature should be unsent.", created.size(), inserts.size());
+
+        gpkgStore.markSent(inserts);
+        unSent = gpkgStore.unSent().timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().first();
+        for (SCChange change : unSent) {
+            assertTrue("The new feature should have been marked sent.", !inserts.contains(change));
+        }
+    }
+
+    @Test
+    public void testGeoPackageUnSentPagesThroughChangeLogOnRequest() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        List<SCSpatialFeature> newFeatures = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            SCSpatialFeature newFeature = getTestHaitiPoint();
+            newFeature.setId("");
+            newFeatures.add(newFeature);
+        }
+        List<SCSpatialFeature> created = gpkgStore.createAll(Observable.from(newFeatures)).toList().toBlocking().first();
+
+        TestSubscriber<SCChange> requested = new TestSubscriber<>(0);
+        gpkgStore.unSent().subscribe(requested);
+        requested.requestMore(10);
+        assertEquals("Only the requested changes should be emitted.", 10, requested.getOnNextEvents().size());
+        requested.unsubscribe();
+
+        List<SCChange> unSent = gpkgStore.unSent().timeout(TIMEOUT, TimeUnit.SECONDS)
+                .toList().toBlocking().first();
+        List<String> unSentIds = new ArrayList<>();
+        for (SCChange change : unSent) {
+            unSentIds.add(change.getFeature().getId());
+        }
+        for (SCSpatialFeature feature : created) {
+            assertTrue("Every new feature should be read, across pages.", unSentIds.contains(feature.getId()));
+        }
+        SCSpatialFeature last = unSent.get(unSent.size() - 1).getFeature();
+        assertTrue("The inserted feature should be read with its geometry.", last instanceof SCGeometry);
+        assertEquals("The inserted feature should be read with its properties.",
+                "some point feature 123", last.getProperties().get("NAME"));
+    }
+
+    @Test
+    public void testGeoPackageChangeLogRecordsUpdatedColumnsAndDeletes() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        SCSpatialFeature newFeature = getTestHaitiPoint();
+        newFeature.setId("");
+        SCSpatialFeature created = gpkgStore.create(newFeature).toBlocking().first();
+        gpkgStore.markSent(gpkgStore.unSent().toList().toBlocking().first());
+
+        created.getProperties().put("NAME", "renamed point feature");
+        gpkgStore.update(created).toBlocking().first();
+        List<SCChange> unSent = gpkgStore.unSent().timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().first();
+        assertEquals("Only the update should be unsent.", 1, unSent.size());
+        SCChange update = unSent.get(0);
+        assertEquals("The change should be an update.", SCChange.Operation.UPDATE, update.getOperation());
+        assertEquals("Only the changed column should be logged.",
+                Collections.singletonList("NAME"), update.getChangedColumns());
+        assertEquals("The update should carry the new value.",
+                "renamed point feature", update.getFeature().getProperties().get("NAME"));
+        assertTrue("The update should not carry the unchanged columns.",
+                !update.getFeature().getProperties().containsKey("OTHER_TAGS"));
+        assertTrue("The update should not carry the unchanged geometry.", !(update.getFeature() instanceof SCGeometry));
+
+        gpkgStore.delete(created.getKey()).toBlocking().lastOrDefault(null);
+        unSent = gpkgStore.unSent().timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().first();
+        SCChange delete = unSent.get(unSent.size() - 1);
+        assertEquals("The delete should be logged.", SCChange.Operation.DELETE, delete.getOperation());
+        assertEquals("The delete should carry the key of the feature.", created.getKey().toString(),
+                delete.getKey().toString());
+    }
+
+    @Test
+    public void testGeoPackageCompactChangeLogDeletesOnlyOldSentRows() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        SCSpatialFeature newFeature = getTestHaitiPoint();
+        newFeature.setId("");
+        gpkgStore.create(newFeature).toBlocking().first();
+        gpkgStore.markSent(gpkgStore.unSent().toList().toBlocking().first());
+        haiti.execute("UPDATE sc_changelog SET sent = '2000-01-01 00:00:00' WHERE sent IS NOT NULL");
+        SCSpatialFeature unSentFeature = getTestHaitiPoint();
+        unSentFeature.setId("");
+        gpkgStore.create(unSentFeature).toBlocking().first();
+        long unSentBefore = gpkgStore.unSent().count().toBlocking().first();
+
+        assertTrue("The old sent rows should be deleted.", gpkgStore.compactChangeLog(1, TimeUnit.DAYS) > 0);
+        Cursor cursor = haiti.query("SELECT COUNT(*) FROM sc_changelog WHERE sent IS NOT NULL");
+        cursor.moveToFirst();
+        assertEquals("No sent rows should be left.", 0, cursor.getInt(0));
+        cursor.close();
+        assertEquals("The unsent rows should be kept.",
+                unSentBefore, (long) gpkgStore.unSent().count().toBlocking().first());
+    }
+
+    @Test
+    public void testSyncBatchSplitsChangesByBytesAndOperation() {
+        LocationStore locationStore = sc.getDataService().getLocationStore();
+        SCSpatialFeature feature = getTestHaitiPoint();
+        List<SCChange> changes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            changes.add(new SCChange(i, SCChange.Operation.INSERT, feature, null));
+        }
+        changes.add(new SCChange(5, SCChange.Operation.DELETE, feature, null));
+        String single = SCSyncBatch.fromChanges(locationStore, changes.subList(0, 1), Integer.MAX_VALUE)
+                .get(0).getPayload();
+        String json = single.substring(1, single.length() - 1);
+        // two changes fill a batch
+        List<SCSyncBatch> batches = SCSyncBatch.fromChanges(locationStore, changes, 2 * json.length() + 3);
+        assertEquals("The changes should be split into 4 batches.", 4, batches.size());
+        assertEquals("The first batch should be full.", 2, batches.get(0).size());
+        assertEquals("The payload should be a JSON array.", "[" + json + "," + json + "]", batches.get(0).getPayload());
+        assertEquals("The inserts should be sent as created features.",
+                SCCommand.DATASERVICE_CREATEFEATURES, batches.get(2).getAction());
+        assertEquals("The last insert should not share a batch with the delete.", 1, batches.get(2).size());
+        assertEquals("The delete should be sent as deleted features.",
+                SCCommand.DATASERVICE_DELETEFEATURES, batches.get(3).getAction());
+    }
+
+    @Test
+    public void testSyncBatchLeavesOutChangesWithoutAPayload() {
+        GeoPackageStore gpkgStore = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID);
+        List<SCChange> changes = Collections.singletonList(
+                new SCChange(0, SCChange.Operation.INSERT, getTestHaitiPoint(), null));
+        assertEquals("A store without payloads shouldn't send null features.",
+                0, SCSyncBatch.fromChanges(gpkgStore, changes, 1024).size());
+
+        // the form store can't build a payload for a layer that isn't one of its forms
+        SCSpatialFeature notAForm = getTestHaitiPoint();
+        notAForm.setLayerId("not_a_form");
+        List<SCSyncBatch> batches = SCSyncBatch.fromChanges(sc.getDataService().getFormStore(),
+                Collections.singletonList(new SCChange(0, SCChange.Operation.INSERT, notAForm, null)), 1024);
+        assertEquals("A change whose payload fails should be left out.", 0, batches.size());
+
+        SCSpatialFeature deleted = new SCSpatialFeature();
+        deleted.setStoreId(LocationStore.NAME);
+        deleted.setLayerId("last_known_location");
+        deleted.setId("1");
+        batches = SCSyncBatch.fromChanges(sc.getDataService().getLocationStore(),
+                Collections.singletonList(new SCChange(0, SCChange.Operation.DELETE, deleted, null)), 1024);
+        assertEquals("The location store should send the key of a deleted location.", 1, batches.size());
+    }
+
     @Test
     public void testGeoPackageUpdateFeature() {
         final ISCSpatialStore gpkgStore = ((ISCSpatialStore) sc.getDataService().getStoreByIdentifier(HAITI_GPKG_ID));
@@ -368,6 +822,24 @@ public class GeoPackageTest extends BaseTestCase {
         assertTrue("The geom should start with Point if ST_AsText worked.", cursor.getString(0).startsWith("Point"));
     }
 
+    @Test
+    public void testGeoPackageBinaryDecodesStoredGeometry() throws ParseException {
+        Cursor cursor = haiti.query("SELECT the_geom, ST_AsText(the_geom), ST_SRID(the_geom) FROM point_features LIMIT 1;");
+        cursor.moveToFirst();
+        byte[] gpb = cursor.getBlob(0);
+        Geometry expected = new WKTReader().read(cursor.getString(1));
+        int expectedSrsId = cursor.getInt(2);
+        cursor.close();
+
+        Geometry decoded = GeoPackageBinary.toGeometry(gpb, new GeometryFactory());
+        assertTrue("The decoded geometry should match the one libgpkg reads.", expected.equalsExact(decoded, 1e-9));
+        assertEquals("The srs id should be read from the header.", expectedSrsId, decoded.getSRID());
+        assertEquals("The envelope should match the geometry's envelope.",
+                expected.getEnvelopeInternal(),
+                GeoPackageBinary.readEnvelope(gpb, new GeometryFactory())
+        );
+    }
+
     @Ignore
     public void test_ST_GeomFromText_FunctionLoaded() {
         Cursor cursor = haiti.query("SELECT ST_GeomFromText('Point (-72.981321 18.42740796)');");
@@ -501,6 +973,14 @@ public class GeoPackageTest extends BaseTestCase {
     }
 
     // helper method to return a sample SCSpatialFeature to use in CRUD to/from a GeoPackage.
+    private static List<String> getIds(List<SCSpatialFeature> features) {
+        List<String> ids = new ArrayList<>(features.size());
+        for (SCSpatialFeature feature : features) {
+            ids.add(feature.getId());
+        }
+        return ids;
+    }
+
     private SCSpatialFeature getTestHaitiPoint() {
         SCSpatialFeature scSpatialFeature = null;
         // set geometry
@@ -16,25 +16,64 @@
 package com.boundlessgeo.spatialconnect.test;
 
 import com.boundlessgeo.spatialconnect.SpatialConnect;
+import com.boundlessgeo.spatialconnect.config.SCStoreConfig;
+import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCPredicate;
+import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
 import com.boundlessgeo.spatialconnect.scutilities.HttpHandler;
 import com.boundlessgeo.spatialconnect.services.SCConfigService;
 import com.boundlessgeo.spatialconnect.services.SCDataService;
+import com.boundlessgeo.spatialconnect.services.SCQueryCache;
 import com.boundlessgeo.spatialconnect.services.SCSensorService;
 import com.boundlessgeo.spatialconnect.services.SCServiceStatus;
 import com.boundlessgeo.spatialconnect.services.SCServiceStatusEvent;
+import com.boundlessgeo.spatialconnect.services.SCSyncCoordinator;
+import com.boundlessgeo.spatialconnect.services.SCSyncLedger;
+import com.boundlessgeo.spatialconnect.services.SCViewportDelta;
+import com.boundlessgeo.spatialconnect.services.SCViewportQuery;
+import com.boundlessgeo.spatialconnect.stores.GeoPackageStore;
+import com.boundlessgeo.spatialconnect.stores.SCDataStoreStatus;
+import com.boundlessgeo.spatialconnect.stores.SCKeyTuple;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
 
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rx.Observable;
+import rx.Scheduler;
 import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.PublishSubject;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
 public class SCServiceTest extends BaseTestCase {
     private static SpatialConnect sc;
+    private static final int TIMEOUT = 10;
+    private static final String TEST_LAYER = "points";
+    private static final SCBoundingBox TEST_BOUNDING_BOX = new SCBoundingBox(-0.5, -0.5, 9.5, 9.5);
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -134,4 +173,440 @@ public class SCServiceTest extends BaseTestCase {
             }
         });
     }
+
+    @Test
+    public void testSyncLedgerKeepsFeaturesInFlightUntilReleased() {
+        SCSyncLedger<SCKeyTuple> ledger = new SCSyncLedger<>(TimeUnit.MINUTES.toMillis(1));
+        List<SCKeyTuple> keys = Arrays.asList(
+                new SCKeyTuple("store", "layer", "1"),
+                new SCKeyTuple("store", "layer", "2")
+        );
+        MqttDeliveryToken token = new MqttDeliveryToken();
+        ledger.reserve(keys);
+        ledger.record(token, keys);
+        assertTrue("The features should be in flight once published.", ledger.isInFlight(keys.get(0)));
+        assertEquals("The delivery should return the published features.", keys, ledger.complete(token));
+        assertTrue("The features should stay in flight until they are marked sent.", ledger.isInFlight(keys.get(1)));
+        assertTrue("A token should only complete once.", ledger.complete(token).isEmpty());
+        ledger.release(keys);
+        assertEquals("No features should be in flight.", 0, ledger.getInFlightCount());
+    }
+
+    @Test
+    public void testSyncLedgerExpiresUnacknowledgedFeatures() {
+        SCSyncLedger<SCKeyTuple> ledger = new SCSyncLedger<>(-1);
+        List<SCKeyTuple> keys = Collections.singletonList(new SCKeyTuple("store", "layer", "1"));
+        MqttDeliveryToken token = new MqttDeliveryToken();
+        ledger.reserve(keys);
+        ledger.record(token, keys);
+        assertEquals("The unacknowledged feature should be released.", 1, ledger.expire());
+        assertEquals("The expired message should be forgotten.", 0, ledger.getPendingMessageCount());
+        assertTrue("A late delivery of an expired message should not be marked sent.", ledger.complete(token).isEmpty());
+    }
+
+    @Test
+    public void testSyncCoordinatorDebouncesEdits() {
+        TestScheduler scheduler = new TestScheduler();
+        AtomicInteger syncs = new AtomicInteger();
+        PublishSubject<String> edits = PublishSubject.create();
+        SCSyncCoordinator coordinator = new SCSyncCoordinator(countingSync(syncs, scheduler), 500, scheduler);
+        coordinator.start(BehaviorSubject.create(true), edits, noStores());
+        for (int i = 0; i < 100; i++) {
+            edits.onNext("store");
+        }
+        scheduler.advanceTimeBy(2, TimeUnit.SECONDS);
+        assertEquals("A burst of edits should sync the store once.", 1, syncs.get());
+        coordinator.stop();
+    }
+
+    @Test
+    public void testSyncCoordinatorRerunsEditsMadeDuringASync() {
+        TestScheduler scheduler = new TestScheduler();
+        AtomicInteger syncs = new AtomicInteger();
+        PublishSubject<String> edits = PublishSubject.create();
+        SCSyncCoordinator coordinator = new SCSyncCoordinator(countingSync(syncs, scheduler), 500, scheduler);
+        coordinator.start(BehaviorSubject.create(true), edits, noStores());
+        edits.onNext("store");
+        scheduler.advanceTimeBy(600, TimeUnit.MILLISECONDS);
+        assertEquals("The store should be syncing.", 1, coordinator.getRunningSyncCount());
+        for (int i = 0; i < 5; i++) {
+            edits.onNext("store");
+        }
+        scheduler.advanceTimeBy(600, TimeUnit.MILLISECONDS);
+        assertEquals("An edit during a sync should not start a second scan.", 1, syncs.get());
+        scheduler.advanceTimeBy(3, TimeUnit.SECONDS);
+        assertEquals("The edits made during the sync should be synced once after it.", 2, syncs.get());
+        assertEquals("No syncs should be running.", 0, coordinator.getRunningSyncCount());
+        coordinator.stop();
+    }
+
+    @Test
+    public void testSyncCoordinatorSubscriptionsDontGrowWithEditsOrReconnects() {
+        TestScheduler scheduler = new TestScheduler();
+        AtomicInteger syncs = new AtomicInteger();
+        final AtomicInteger connectionSubscriptions = new AtomicInteger();
+        final AtomicInteger editSubscriptions = new AtomicInteger();
+        BehaviorSubject<Boolean> connected = BehaviorSubject.create(true);
+        PublishSubject<String> edits = PublishSubject.create();
+        SCSyncCoordinator coordinator = new SCSyncCoordinator(countingSync(syncs, scheduler), 500, scheduler);
+        coordinator.start(
+                connected.doOnSubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        connectionSubscriptions.incrementAndGet();
+                    }
+                }),
+                edits.doOnSubscribe(new Action0() {
+                    @Override
+                    public void call() {
+                        editSubscriptions.incrementAndGet();
+                    }
+                }),
+                new Func0<Observable<String>>() {
+                    @Override
+                    public Observable<String> call() {
+                        return Observable.just("a", "b");
+                    }
+                });
+        for (int round = 0; round < 1000; round++) {
+            edits.onNext(round % 2 == 0 ? "a" : "b");
+            if (round % 10 == 0) {
+                connected.onNext(false);
+                connected.onNext(true);
+            }
+            scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        }
+        scheduler.advanceTimeBy(1, TimeUnit.MINUTES);
+        assertEquals("The connection should be subscribed to once.", 1, connectionSubscriptions.get());
+        assertEquals("The edits should be subscribed to once.", 1, editSubscriptions.get());
+        assertEquals("No syncs should be running.", 0, coordinator.getRunningSyncCount());
+        assertTrue("The stores should have been synced.", syncs.get() > 0);
+        coordinator.stop();
+        assertTrue("Stopping should release the connection subscription.", !connected.hasObservers());
+    }
+
+    @Test
+    public void testQueryStoresReusesCachedResults() {
+        GeoPackageStore store = registerTestStore("cache_hit_test");
+        SCQueryFilter filter = new SCQueryFilter(
+                new SCPredicate(TEST_BOUNDING_BOX, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
+        );
+        filter.setLimit(5);
+        SCDataService dataService = sc.getDataService();
+        long hits = dataService.getQueryCache().getHitCount();
+        for (int i = 0; i < 2; i++) {
+            TestSubscriber testSubscriber = new TestSubscriber();
+            dataService.queryStoresByIds(Arrays.asList(store.getStoreId()), filter)
+                    .timeout(TIMEOUT, TimeUnit.SECONDS)
+                    .subscribe(testSubscriber);
+            testSubscriber.awaitTerminalEvent();
+            testSubscriber.assertNoErrors();
+            assertEquals("Both queries should return the same features.",
+                    (Integer) 5,
+                    (Integer) testSubscriber.getOnNextEvents().size()
+            );
+        }
+        assertEquals("The second query should be answered from the cache.",
+                hits + 1,
+                dataService.getQueryCache().getHitCount()
+        );
+        dataService.unregisterStore(store);
+    }
+
+    @Test
+    public void testViewportQueryOnlyQueriesNewTiles() {
+        GeoPackageStore store = registerTestStore("viewport_test");
+        SCQueryFilter template = new SCQueryFilter();
+        template.setLimit(10);
+        SCViewportQuery viewportQuery =
+                sc.getDataService().createViewportQuery(Arrays.asList(store.getStoreId()), template);
+        try {
+            // a viewport that's never subscribed to shouldn't mark its tiles loaded
+            viewportQuery.setViewport(TEST_BOUNDING_BOX, 7);
+            long start = System.currentTimeMillis();
+            TestSubscriber<SCViewportDelta> testSubscriber = new TestSubscriber<>();
+            viewportQuery.setViewport(TEST_BOUNDING_BOX, 7)
+                    .timeout(TIMEOUT, TimeUnit.SECONDS)
+                    .subscribe(testSubscriber);
+            testSubscriber.awaitTerminalEvent();
+            testSubscriber.assertNoErrors();
+            assertTrue("Tiles with fewer features than the limit should load without waiting for the store timeout.",
+                    System.currentTimeMillis() - start < 2000);
+            int added = 0;
+            for (SCViewportDelta delta : testSubscriber.getOnNextEvents()) {
+                added += delta.getAdded().size();
+            }
+            assertEquals("The features in view should be added.", 10, added);
+
+            testSubscriber = new TestSubscriber<>();
+            viewportQuery.setViewport(TEST_BOUNDING_BOX, 7)
+                    .timeout(TIMEOUT, TimeUnit.SECONDS)
+                    .subscribe(testSubscriber);
+            testSubscriber.awaitTerminalEvent();
+            testSubscriber.assertNoErrors();
+            assertEquals("An unchanged viewport should not query anything.",
+                    0,
+                    testSubscriber.getOnNextEvents().size()
+            );
+
+            testSubscriber = new TestSubscriber<>();
+            viewportQuery.setViewport(new SCBoundingBox(-150, -10, -149, -9), 7).first()
+                    .timeout(TIMEOUT, TimeUnit.SECONDS)
+                    .subscribe(testSubscriber);
+            testSubscriber.awaitTerminalEvent();
+            testSubscriber.assertNoErrors();
+            assertEquals("The features that left the view should be removed.",
+                    10,
+                    testSubscriber.getOnNextEvents().get(0).getRemoved().size()
+            );
+        }
+        finally {
+            sc.getDataService().unregisterStore(store);
+        }
+    }
+
+    @Test
+    public void testDataServiceIndexesStores() {
+        GeoPackageStore store = registerTestStore("index_test");
+        SCDataService dataService = sc.getDataService();
+        assertTrue("The store should be found by type.",
+                dataService.getStoresByType(GeoPackageStore.TYPE).contains(store));
+        assertTrue("The running store should be active.", dataService.getActiveStores().contains(store));
+
+        store.setStatus(SCDataStoreStatus.SC_DATA_STORE_PAUSED);
+        assertTrue("A paused store should not be active.", !dataService.getActiveStores().contains(store));
+        store.setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
+        assertTrue("The store should be active again once it's running.",
+                dataService.getActiveStores().contains(store));
+        dataService.unregisterStore(store);
+        assertTrue("An unregistered store should not be found by type.",
+                !dataService.getStoresByType(GeoPackageStore.TYPE).contains(store));
+    }
+
+    @Test
+    public void testStoreStatusTransitionsAreAtomic() {
+        GeoPackageStore store = registerTestStore("status_test");
+        assertTrue("A running store should not move from a status it isn't in.",
+                !store.compareAndSetStatus(SCDataStoreStatus.SC_DATA_STORE_STOPPED,
+                        SCDataStoreStatus.SC_DATA_STORE_STARTING));
+        assertEquals(SCDataStoreStatus.SC_DATA_STORE_RUNNING, store.getStatus());
+
+        // registering a store that's already running should leave it alone
+        sc.getDataService().registerStore(store);
+        assertEquals(SCDataStoreStatus.SC_DATA_STORE_RUNNING, store.getStatus());
+        assertTrue("The store should still be active.", sc.getDataService().getActiveStores().contains(store));
+
+        // replacing the store stops the registered instance, which should leave the registry with it
+        SCStoreConfig config = new SCStoreConfig();
+        config.setUniqueID(store.getStoreId());
+        config.setName(store.getName());
+        config.setType(GeoPackageStore.TYPE);
+        config.setVersion("1");
+        config.setUri("file://" + store.getStoreId());
+        GeoPackageStore replacement = new GeoPackageStore(activity, config);
+        sc.getDataService().updateStore(replacement);
+        assertEquals(SCDataStoreStatus.SC_DATA_STORE_STOPPED, store.getStatus());
+        assertTrue("A stopped store should not be active.",
+                !sc.getDataService().getActiveStores().contains(store));
+        assertTrue("A stopped store should not be found by type.",
+                !sc.getDataService().getStoresByType(GeoPackageStore.TYPE).contains(store));
+        assertEquals("The replacement should be registered under the store's id.",
+                replacement, sc.getDataService().getStoreByIdentifier(store.getStoreId()));
+        sc.getDataService().unregisterStore(replacement);
+    }
+
+    @Test
+    public void testQueryCacheCopiesFeaturesForEachCaller() {
+        GeoPackageStore store = registerTestStore("cache_copy_test");
+        SCQueryCache cache = sc.getDataService().getQueryCache();
+        SCQueryFilter filter = new SCQueryFilter(
+                new SCPredicate(TEST_BOUNDING_BOX, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
+        );
+        filter.setLimit(10);
+        SCSpatialFeature first = cache.query(store, filter).timeout(TIMEOUT, TimeUnit.SECONDS)
+                .toBlocking().first();
+        first.getProperties().put("n", -1);
+        for (SCSpatialFeature feature : cache.query(store, filter).timeout(TIMEOUT, TimeUnit.SECONDS)
+                .toList().toBlocking().single()) {
+            assertTrue("Editing a result should not change the cached feature.",
+                    !Integer.valueOf(-1).equals(feature.getProperties().get("n")));
+        }
+        sc.getDataService().unregisterStore(store);
+    }
+
+    @Test
+    public void testQueryCacheRefillsBoxesCutOffBySnapping() {
+        GeoPackageStore store = registerTestStore("cache_snap_test");
+        SCQueryCache cache = sc.getDataService().getQueryCache();
+        // the box is snapped out to 5.0, so the point at (5, 5) takes up part of the limit of the store's query
+        SCQueryFilter filter = new SCQueryFilter(new SCPredicate(new SCBoundingBox(5.05, 5.05, 9.5, 9.5),
+                SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN));
+        filter.setLimit(4);
+        TestSubscriber<SCSpatialFeature> testSubscriber = new TestSubscriber<>();
+        cache.query(store, filter).timeout(TIMEOUT, TimeUnit.SECONDS).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        assertEquals("All the points in the box should be returned.", 4, testSubscriber.getOnNextEvents().size());
+        for (SCSpatialFeature feature : testSubscriber.getOnNextEvents()) {
+            assertTrue("Only points in the box should be returned.", filter.getPredicate().applyFilter(feature));
+        }
+        sc.getDataService().unregisterStore(store);
+    }
+
+    @Test
+    public void testQueryCacheDropsEntriesWhenALayerIsAdded() {
+        GeoPackageStore store = registerTestStore("cache_layer_test");
+        SCQueryCache cache = sc.getDataService().getQueryCache();
+        SCQueryFilter filter = new SCQueryFilter();
+        filter.setLimit(10);
+        cache.query(store, filter).timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().single();
+        long misses = cache.getMissCount();
+        cache.query(store, filter).timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().single();
+        assertEquals("The repeated query should be cached.", misses, cache.getMissCount());
+
+        store.addLayer("more_points", Collections.singletonMap("n", "INTEGER"));
+        cache.query(store, filter).timeout(TIMEOUT, TimeUnit.SECONDS).toList().toBlocking().single();
+        assertEquals("Adding a layer should drop the entries of all the layers.", misses + 1, cache.getMissCount());
+        sc.getDataService().unregisterStore(store);
+    }
+
+    @Test
+    public void testSyncCoordinatorSyncsStoresRegisteredAfterItStarted() {
+        TestScheduler scheduler = new TestScheduler();
+        AtomicInteger syncs = new AtomicInteger();
+        SCSyncCoordinator coordinator = new SCSyncCoordinator(countingSync(syncs, scheduler), 500, scheduler);
+        coordinator.start(BehaviorSubject.create(true), sc.getDataService().storeEdits(), noStores());
+        // the store's features are created once it's running
+        GeoPackageStore store = registerTestStore("late_sync_test");
+        scheduler.advanceTimeBy(2, TimeUnit.SECONDS);
+        assertEquals("The edits of a store that started after the coordinator should be synced.", 1, syncs.get());
+        coordinator.stop();
+        sc.getDataService().unregisterStore(store);
+    }
+
+    @Test
+    public void testStoreUpdatesAndDeletesAreReportedAsEdits() {
+        GeoPackageStore store = registerTestStore("edit_events_test");
+        SCSpatialFeature feature = store.query(new SCQueryFilter())
+                .timeout(TIMEOUT, TimeUnit.SECONDS)
+                .toBlocking()
+                .first();
+        TestSubscriber<SCSpatialFeature> edits = new TestSubscriber<>();
+        store.storeEdited.subscribe(edits);
+
+        feature.getProperties().put("n", 100);
+        store.update(feature).timeout(TIMEOUT, TimeUnit.SECONDS).toBlocking().single();
+        store.delete(feature.getKey()).timeout(TIMEOUT, TimeUnit.SECONDS).toBlocking().lastOrDefault(null);
+
+        assertEquals("The update and the delete should both be reported.", 2, edits.getOnNextEvents().size());
+        SCSpatialFeature deleted = edits.getOnNextEvents().get(1);
+        assertEquals("The delete should report the key of the deleted feature.",
+                feature.getKey(),
+                deleted.getKey()
+        );
+        edits.unsubscribe();
+        sc.getDataService().unregisterStore(store);
+    }
+
+    @Test
+    public void testSparseQueryCompletesBeforeTheStoreTimeout() {
+        GeoPackageStore store = registerTestStore("sparse_query_test");
+        SCQueryFilter filter = new SCQueryFilter(
+                new SCPredicate(TEST_BOUNDING_BOX, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
+        );
+        filter.setLimit(50);
+        long start = System.currentTimeMillis();
+        TestSubscriber testSubscriber = new TestSubscriber();
+        sc.getDataService().queryStoresByIds(Arrays.asList(store.getStoreId()), filter)
+                .timeout(TIMEOUT, TimeUnit.SECONDS)
+                .subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+        testSubscriber.assertCompleted();
+        assertEquals("All the features should be returned.", 10, testSubscriber.getOnNextEvents().size());
+        assertTrue("A query matching fewer features than its limit shouldn't wait for the store timeout.",
+                System.currentTimeMillis() - start < 2000);
+        sc.getDataService().unregisterStore(store);
+    }
+
+    @Test
+    public void testGeoPackageQueryNotWithinChecksGeometriesExactly() {
+        GeoPackageStore store = registerTestStore("not_within_test");
+        // the envelope of the line covers (5, 5) but the line itself runs around it
+        SCGeometry line = new SCGeometry(new GeometryFactory().createLineString(new Coordinate[]{
+                new Coordinate(10, 0), new Coordinate(10, 10), new Coordinate(0, 10)
+        }));
+        line.setStoreId(store.getStoreId());
+        line.setLayerId(TEST_LAYER);
+        store.create(line).timeout(TIMEOUT, TimeUnit.SECONDS).toBlocking().single();
+
+        SCQueryFilter filter = new SCQueryFilter(new SCPredicate(new SCBoundingBox(4.5, 4.5, 5.5, 5.5),
+                SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_NOTWITHIN));
+        filter.setLimit(10);
+        List<SCSpatialFeature> features = store.query(filter)
+                .timeout(TIMEOUT, TimeUnit.SECONDS)
+                .toList()
+                .toBlocking()
+                .single();
+        assertEquals("Every feature but the point in the bbox should match.", 10, features.size());
+        for (SCSpatialFeature feature : features) {
+            assertTrue("Only features outside the bbox should match.", filter.getPredicate().applyFilter(feature));
+        }
+        sc.getDataService().unregisterStore(store);
+    }
+
+    /**
+     * Registers and starts a new GeoPackage store for one test, with ten points from (0, 0) to (9, 9) in its
+     * {@value #TEST_LAYER} layer, so tests can change the store without affecting the others.
+     */
+    private static GeoPackageStore registerTestStore(String storeId) {
+        activity.deleteDatabase(storeId);
+        SCStoreConfig config = new SCStoreConfig();
+        config.setUniqueID(storeId);
+        config.setName(storeId);
+        config.setType(GeoPackageStore.TYPE);
+        config.setVersion("1");
+        config.setUri("file://" + storeId);
+        sc.getDataService().registerAndStartStoreByConfig(config);
+        TestSubscriber testSubscriber = new TestSubscriber();
+        sc.getDataService().storeStarted(storeId).timeout(TIMEOUT, TimeUnit.SECONDS).subscribe(testSubscriber);
+        testSubscriber.awaitTerminalEvent();
+        testSubscriber.assertNoErrors();
+
+        GeoPackageStore store = (GeoPackageStore) sc.getDataService().getStoreByIdentifier(storeId);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("n", "INTEGER");
+        store.addLayer(TEST_LAYER, fields);
+        GeometryFactory geometryFactory = new GeometryFactory();
+        List<SCSpatialFeature> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            SCGeometry point = new SCGeometry(geometryFactory.createPoint(new Coordinate(i, i)));
+            point.setStoreId(storeId);
+            point.setLayerId(TEST_LAYER);
+            point.getProperties().put("n", i);
+            points.add(point);
+        }
+        store.createBatch(points).timeout(TIMEOUT, TimeUnit.SECONDS).toBlocking().lastOrDefault(null);
+        return store;
+    }
+
+    // a sync that takes a second
+    private static Func1<String, Observable<?>> countingSync(final AtomicInteger syncs, final Scheduler scheduler) {
+        return new Func1<String, Observable<?>>() {
+            @Override
+            public Observable<?> call(String storeId) {
+                syncs.incrementAndGet();
+                return Observable.timer(1, TimeUnit.SECONDS, scheduler);
+            }
+        };
+    }
+
+    private static Func0<Observable<String>> noStores() {
+        return new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                return Observable.empty();
+            }
+        };
+    }
 }
@@ -4,17 +4,21 @@ import android.content.Context;
 import android.database.Cursor;
 import android.util.Log;
 
-import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.stores.SCChange;
+import com.boundlessgeo.spatialconnect.stores.SCStoreMetrics;
+import com.boundlessgeo.spatialconnect.stores.SCStoreStartupTiming;
 import com.boundlessgeo.spatialconnect.tiles.SCGpkgTileSource;
 import com.boundlessgeo.spatialconnect.tiles.SCTileMatrixRow;
 import com.squareup.sqlbrite.BriteDatabase;
 import com.squareup.sqlbrite.QueryObservable;
+import com.squareup.sqlbrite.SqlBrite;
 
 import org.sqlite.database.SQLException;
+import org.sqlite.database.sqlite.SQLiteStatement;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,8 +32,21 @@ import rx.functions.Func1;
  */
 public class GeoPackage {
 
-    private final String SENT_AUDIT_COL = "sent";
-    private final String RECEIVED_AUDIT_COL = "received";
+    /**
+     * The table where SpatialConnect keeps its own key/value metadata about the GeoPackage file.
+     */
+    private static final String METADATA_TABLE = "sc_metadata";
+
+    /**
+     * The metadata key of the fingerprint of the schema that was last checked.
+     */
+    private static final String SCHEMA_FINGERPRINT_KEY = "schema_fingerprint";
+
+    /**
+     * The version of the schema checks done when opening a GeoPackage.  Bump it when those checks change so files
+     * checked by an older version are checked again.
+     */
+    private static final int SCHEMA_CHECK_VERSION = 3;
 
     /**
      * The log tag for this class.
@@ -73,6 +90,26 @@ public class GeoPackage {
      */
     private HashMap<String, SCGpkgTileSource> tileSources = new HashMap();
 
+    /**
+     * The metrics updated by the statements executed through this GeoPackage.
+     */
+    private SCStoreMetrics metrics;
+
+    /**
+     * The time spent in each phase of opening this GeoPackage.
+     */
+    private SCStoreStartupTiming startupTiming;
+
+    /**
+     * The change log of the writes to the feature tables.
+     */
+    private SCGpkgChangeLog changeLog;
+
+    /**
+     * Whether the writes to the feature tables are logged in the change log.
+     */
+    private boolean logChanges;
+
     /**
      * Creates an instance of a {@link GeoPackage}. After creating a {@link BriteDatabase} for the GeoPackage, it will
      * validate the db schema against the GeoPackage spec, then initialize the feature tables for use in SpatialConnect.
@@ -81,15 +118,80 @@ public class GeoPackage {
      * @param name    the name of the GeoPackage file
      */
     public GeoPackage(Context context, String name) {
+        this(context, name, new SCStoreMetrics());
+    }
+
+    /**
+     * Creates an instance of a {@link GeoPackage} that records the statements executed on its write path in the
+     * supplied {@link SCStoreMetrics}.
+     *
+     * @param context the application context
+     * @param name    the name of the GeoPackage file
+     * @param metrics the metrics of the store that owns this GeoPackage
+     */
+    public GeoPackage(Context context, String name, SCStoreMetrics metrics) {
+        this(context, name, metrics, new SCStoreStartupTiming());
+    }
+
+    /**
+     * Creates an instance of a {@link GeoPackage} that also records how long each phase of opening it takes in the
+     * supplied {@link SCStoreStartupTiming}.
+     *
+     * @param context       the application context
+     * @param name          the name of the GeoPackage file
+     * @param metrics       the metrics of the store that owns this GeoPackage
+     * @param startupTiming the startup timing of the store that owns this GeoPackage
+     */
+    public GeoPackage(Context context, String name, SCStoreMetrics metrics, SCStoreStartupTiming startupTiming) {
+        this(context, name, metrics, startupTiming, true);
+    }
+
+    /**
+     * Creates an instance of a {@link GeoPackage} that only logs the writes to its feature tables if it is synced.
+     * A GeoPackage that is never synced doesn't get the change log triggers, so its writes don't leave unsent
+     * changes behind that would never be sent or compacted.
+     *
+     * @param context       the application context
+     * @param name          the name of the GeoPackage file
+     * @param metrics       the metrics of the store that owns this GeoPackage
+     * @param startupTiming the startup timing of the store that owns this GeoPackage
+     * @param logChanges    whether to log the writes to the feature tables in the change log
+     */
+    public GeoPackage(Context context, String name, SCStoreMetrics metrics, SCStoreStartupTiming startupTiming,
+                      boolean logChanges) {
         Log.d(LOG_TAG, "Initializing GeoPackage for " + name);
         this.name = name;
         this.context = context;
+        this.metrics = metrics;
+        this.startupTiming = startupTiming;
+        this.logChanges = logChanges;
         try {
+            long phaseStart = System.currentTimeMillis();
             db = new SCSqliteHelper(context, name).db();
-            if (initializeSpatialMetadata() && validateGeoPackageSchema()) {
+            changeLog = new SCGpkgChangeLog(this, db);
+            phaseStart = recordPhase(SCStoreStartupTiming.OPEN, phaseStart);
+            String fingerprint = getSchemaFingerprint();
+            if (fingerprint.equals(getMetadata(SCHEMA_FINGERPRINT_KEY))) {
+                // the schema hasn't changed since it was last checked, only the sources need to be loaded
+                Log.d(LOG_TAG, "Schema of " + name + " is unchanged, skipping the schema checks.");
+                phaseStart = recordPhase(SCStoreStartupTiming.VALIDATE, phaseStart);
+                getFeatureSources();
+                getTileSources();
+                recordPhase(SCStoreStartupTiming.INDEX, phaseStart);
+                isValid = true;
+                return;
+            }
+            boolean valid = initializeSpatialMetadata() && validateGeoPackageSchema();
+            phaseStart = recordPhase(SCStoreStartupTiming.VALIDATE, phaseStart);
+            if (valid) {
                 initializeFeatureSources();
                 getTileSources();
-                initializeAuditTables();
+                phaseStart = recordPhase(SCStoreStartupTiming.INDEX, phaseStart);
+                boolean logged = !logChanges || changeLog.initialize(getFeatureSources().values());
+                recordPhase(SCStoreStartupTiming.AUDIT, phaseStart);
+                if (logged) {
+                    saveSchemaFingerprint();
+                }
                 isValid = true;
             }
         }
@@ -99,6 +201,64 @@ public class GeoPackage {
         }
     }
 
+    // records the time since the phase started, returning the start of the next phase
+    private long recordPhase(String phase, long phaseStart) {
+        long now = System.currentTimeMillis();
+        startupTiming.record(phase, now - phaseStart);
+        return now;
+    }
+
+    /**
+     * The fingerprint of the schema of the GeoPackage.  SQLite bumps the schema version whenever a table, index or
+     * trigger is created, altered or dropped, so a file whose fingerprint matches the one saved after it was last
+     * checked doesn't need to be checked again.  The size of the file isn't part of it since it changes with every
+     * write of features.  Whether changes are logged is part of it since the change log is only set up when they are.
+     */
+    private String getSchemaFingerprint() {
+        return SCHEMA_CHECK_VERSION + ":" + getPragma("schema_version") + ":" + getPragma("user_version") + ":"
+                + (logChanges ? 1 : 0);
+    }
+
+    private long getPragma(String pragma) {
+        Cursor cursor = db.query("PRAGMA " + pragma);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    private String getMetadata(String key) {
+        Cursor cursor = null;
+        try {
+            cursor = db.query(String.format("SELECT value FROM %s WHERE key = ?", METADATA_TABLE), key);
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+        catch (Exception ex) {
+            // the metadata table doesn't exist until the file has been checked once
+            return null;
+        }
+        finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void saveSchemaFingerprint() {
+        try {
+            // create the table first since creating it changes the schema version
+            db.execute(String.format("CREATE TABLE IF NOT EXISTS %s (key TEXT PRIMARY KEY, value TEXT)",
+                    METADATA_TABLE));
+            db.execute(String.format("INSERT OR REPLACE INTO %s (key, value) VALUES (?, ?)", METADATA_TABLE),
+                    SCHEMA_FINGERPRINT_KEY, getSchemaFingerprint());
+        }
+        catch (Exception ex) {
+            Log.w(LOG_TAG, String.format("Could not save the schema fingerprint of %s b/c %s", name, ex.toString()));
+        }
+    }
+
     private boolean initializeSpatialMetadata() {
         Log.d(LOG_TAG, "Initializing GeoPackage schema.");
         Cursor cursor = null;
@@ -162,97 +322,6 @@ public class GeoPackage {
         }
     }
 
-    private void initializeAuditTables() {
-        Cursor cursor = null;
-        try {
-            for (SCGpkgFeatureSource source : getFeatureSources().values()) {
-                //check if table exists
-                String auditTableName = source.getTableName() + "_audit";
-                cursor = db.query(
-                        "SELECT name FROM sqlite_master WHERE type='table' AND name=?", auditTableName
-                );
-                if (cursor.getCount() == 1) {
-                    //if table exist check if columns exist
-                    cursor = db.query(String.format("PRAGMA table_info(%s)", auditTableName));
-                    boolean sentColumnFound = false;
-                    boolean recvdColumnFound = false;
-                    while (cursor.moveToNext()) {
-                        String columnName = SCSqliteHelper.getString(cursor, "name");
-                        if (columnName.equalsIgnoreCase(SENT_AUDIT_COL)) {
-                            sentColumnFound = true;
-                        }
-                        if (columnName.equalsIgnoreCase(RECEIVED_AUDIT_COL)) {
-                            recvdColumnFound = true;
-                        }
-                    }
-
-                    if (!sentColumnFound) {
-                        cursor = db.query(String.format("ALTER TABLE %s ADD COLUMN %s DATETIME DEFAULT null",
-                                auditTableName, SENT_AUDIT_COL)
-                        );
-                        cursor.moveToFirst();
-                    }
-
-                    if (!recvdColumnFound) {
-                        cursor = db.query(String.format("ALTER TABLE %s ADD COLUMN %s DATETIME DEFAULT null",
-                                auditTableName, RECEIVED_AUDIT_COL)
-                        );
-                        cursor.moveToFirst();
-                    }
-
-                    //check for triggers
-                    cursor = db.query(
-                            "SELECT name FROM sqlite_master WHERE type='trigger' AND name=?",
-                            auditTableName + "_insert");
-                    if (cursor.getCount() != 1) {
-                        Map<String,String>  columns = new LinkedHashMap<>();
-                        cursor = db.query(String.format("PRAGMA table_info(%s)", source.getTableName()));
-                        String columnName;
-                        String columnType;
-                        while (cursor.moveToNext()) {
-                            columnName = SCSqliteHelper.getString(cursor, "name");
-                            columnType  = SCSqliteHelper.getString(cursor, "type");
-                            columns.put(columnName, columnType);
-                        }
-                        //create audit table trigger
-                        cursor = db.query(createAuditTableTriggersSQL(source.getTableName(), columns));
-                        cursor.moveToFirst();
-                    }
-
-                } else {
-                    //get feature source fields
-                    Map<String,String> featureFields = new LinkedHashMap<>();
-                    cursor = db.query(String.format("PRAGMA table_info(%s)", source.getTableName()));
-                    String columnName;
-                    String columnType;
-                    while (cursor.moveToNext()) {
-                        columnName = SCSqliteHelper.getString(cursor, "name");
-                        columnType  = SCSqliteHelper.getString(cursor, "type");
-                        featureFields.put(columnName, columnType);
-                    }
-
-                    //create audit tables and add 2 columns
-                    Map<String,String>  auditFields = new LinkedHashMap<>();
-                    auditFields.putAll(featureFields);
-                    auditFields.put(SENT_AUDIT_COL,"DATETIME DEFAULT NULL");
-                    auditFields.put(RECEIVED_AUDIT_COL,"DATETIME");
-                    cursor = db.query(createTableSQL(source.getTableName() + "_audit", auditFields));
-                    cursor.moveToFirst();
-
-                    //create audit table trigger
-                    cursor = db.query(createAuditTableTriggersSQL(source.getTableName(), featureFields));
-                    cursor.moveToFirst();
-                }
-            }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "something when wrong trying to setup audit tables:" + e.getMessage());
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
     public String createTableSQL(String layer, Map<String, String> typeDefs){
         final String tableName = layer;
         StringBuilder sb = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(tableName);
@@ -268,35 +337,6 @@ public class GeoPackage {
         return sb.toString();
     }
 
-    public String createAuditTableTriggersSQL(String layer, Map<String, String> typeDefs)  {
-        //AFTER insert trigger
-        StringBuilder sql = new StringBuilder();
-        sql.append("CREATE TRIGGER ");
-        sql.append(layer).append("_audit_insert ");
-        sql.append("AFTER INSERT ON ");
-        sql.append(layer).append(" BEGIN ");
-        sql.append("INSERT INTO ").append(layer).append("_audit (");
-        int count = 0;
-        for (String key : typeDefs.keySet()) {
-            if (count != 0) {
-                sql.append(",");
-            }
-            sql.append(key);
-            count++;
-        }
-        sql.append(") VALUES (");
-        count = 0;
-        for (String key : typeDefs.keySet()) {
-            if (count != 0) {
-                sql.append(",");
-            }
-            sql.append("NEW.").append(key);
-            count++;
-        }
-        sql.append("); END;");
-        return sql.toString();
-    }
-
     // executes the CreateSpatialIndex function for a given table
     private void createSpatialIndex(String tableName, String geomColumnName, String pkName) {
         Log.d(LOG_TAG, "Creating index for table " + tableName);
@@ -478,6 +518,9 @@ public class GeoPackage {
                         }
                         // build a feature source from the table schema
                         SCGpkgFeatureSource source = createFeatureSource(tableName);
+                        if (geoPackageContents.getSrsId() != null) {
+                            source.setSrsId(geoPackageContents.getSrsId());
+                        }
                         while (cursor.moveToNext()) {
                             String columnName = SCSqliteHelper.getString(cursor, "name");
                             if (SCSqliteHelper.getString(cursor, "type").equalsIgnoreCase("GEOMETRY")
@@ -561,8 +604,15 @@ public class GeoPackage {
     public void refreshFeatureSources() {
         refreshGeoPackageContents();
         List<SCGpkgFeatureSource> featureTables = getFeatureTables().toBlocking().first();
+        HashMap<String, SCGpkgFeatureSource> refreshed = new HashMap<>();
         for (SCGpkgFeatureSource source : featureTables) {
-            this.featureSources.put(source.getTableName(), source);
+            refreshed.put(source.getTableName(), source);
+        }
+        HashMap<String, SCGpkgFeatureSource> previous = this.featureSources;
+        this.featureSources = refreshed;
+        // release the statements compiled against the previous schema, the tables may have changed or been dropped
+        for (SCGpkgFeatureSource source : previous.values()) {
+            source.close();
         }
     }
 
@@ -580,6 +630,12 @@ public class GeoPackage {
      */
     public void close() {
         //TODO: unsubscribe all subscribers to querys on this db
+        for (SCGpkgFeatureSource source : this.featureSources.values()) {
+            source.close();
+        }
+        if (changeLog != null) {
+            changeLog.close();
+        }
         db.close();
     }
 
@@ -595,6 +651,28 @@ public class GeoPackage {
         return db.createQuery(table, sql, args);
     }
 
+    /**
+     * Emits the name of a table each time a write to it is committed through the {@link BriteDatabase} instance for
+     * this GeoPackage.  The trigger queries are never run, so this only listens for the notifications.
+     *
+     * @param tables the tables to listen to
+     * @return an Observable of the names of the tables that changed
+     */
+    public Observable<String> tableChanges(Iterable<String> tables) {
+        List<Observable<String>> changes = new ArrayList<>();
+        for (final String table : tables) {
+            changes.add(db.createQuery(table, "SELECT 1")
+                    .skip(1) // the query emits once when subscribed to, before anything has changed
+                    .map(new Func1<SqlBrite.Query, String>() {
+                        @Override
+                        public String call(SqlBrite.Query query) {
+                            return table;
+                        }
+                    }));
+        }
+        return Observable.merge(changes);
+    }
+
     /**
      * Calls executeAndTrigger on the {@link BriteDatabase} instance for this GeoPackage.
      *
@@ -603,16 +681,54 @@ public class GeoPackage {
      */
     public void executeAndTrigger(String table, String sql) {
         db.executeAndTrigger(table, sql);
+        metrics.recordWriteStatement(0);
+    }
+
+    /**
+     * Calls compileStatement on the {@link BriteDatabase} instance for this GeoPackage.
+     *
+     * @param sql
+     * @return {@link SQLiteStatement}
+     */
+    public SQLiteStatement compileStatement(String sql) {
+        return db.compileStatement(sql);
+    }
+
+    /**
+     * Calls executeInsert on the {@link BriteDatabase} instance for this GeoPackage.
+     *
+     * @param table
+     * @param statement
+     * @return the row id of the inserted row or -1 if the insert failed
+     */
+    public long executeInsert(String table, SQLiteStatement statement) {
+        long rowId = db.executeInsert(table, statement);
+        metrics.recordWriteStatement(rowId == -1 ? 0 : 1);
+        return rowId;
+    }
+
+    /**
+     * Calls executeUpdateDelete on the {@link BriteDatabase} instance for this GeoPackage.
+     *
+     * @param table
+     * @param statement
+     * @return the number of rows affected
+     */
+    public int executeUpdateDelete(String table, SQLiteStatement statement) {
+        int rows = db.executeUpdateDelete(table, statement);
+        metrics.recordWriteStatement(rows);
+        return rows;
     }
 
     /**
-     * Calls query on the {@link BriteDatabase} instance for this GeoPackage.
+     * Calls query on the {@link BriteDatabase} instance for this GeoPackage, recording it as a read statement.
      *
      * @param sql
      * @param args
      * @return {@link Cursor}
      */
     public Cursor query(String sql, String...args) {
+        metrics.recordReadStatement();
         return db.query(sql, args);
     }
 
@@ -632,21 +748,45 @@ public class GeoPackage {
         return name;
     }
 
-    public Observable<SCSpatialFeature> unSent() {
+    public SCStoreMetrics getMetrics() {
+        return metrics;
+    }
 
-        return getFeatureTables()
-            .flatMap(new Func1<List<SCGpkgFeatureSource>, Observable<SCGpkgFeatureSource>>() {
-                @Override
-                public Observable<SCGpkgFeatureSource> call(List<SCGpkgFeatureSource> scGpkgFeatureSources) {
-                    return Observable.from(scGpkgFeatureSources);
-                }
-            })
-            .flatMap(new Func1<SCGpkgFeatureSource, Observable<SCSpatialFeature>>() {
-                @Override
-                public Observable<SCSpatialFeature> call(SCGpkgFeatureSource scGpkgFeatureSource) {
-                    return scGpkgFeatureSource.unSent();
-                }
-            });
+    /**
+     * Emits the unsent changes to the feature tables from the change log, oldest first, so the changes are only read
+     * as fast as the subscriber requests them.
+     */
+    public Observable<SCChange> unSent() {
+        if (!logChanges) {
+            return Observable.empty();
+        }
+        return changeLog.unSent();
+    }
+
+    /**
+     * Marks the changes with the sequence numbers as sent, in a single transaction.
+     *
+     * @param sequences the sequence numbers of the changes that were sent
+     * @return the number of changes marked sent
+     */
+    public int markChangesSent(List<Long> sequences) {
+        if (!logChanges) {
+            return 0;
+        }
+        return changeLog.markSent(sequences);
+    }
+
+    /**
+     * Deletes the changes that were sent longer ago than the retention.
+     *
+     * @param retentionSeconds how long to keep changes after they are sent
+     * @return the number of changes deleted
+     */
+    public int compactChangeLog(long retentionSeconds) {
+        if (!logChanges) {
+            return 0;
+        }
+        return changeLog.compact(retentionSeconds);
     }
 
     public void addFeatureSource(String layer, Map<String,String>  fields) {
@@ -670,17 +810,15 @@ public class GeoPackage {
                 cursor = db.query(String.format("SELECT AddGeometryColumn('%s', 'geom', 'Geometry', 4326)", tableName));
                 cursor.moveToFirst(); // force query to execute
 
-                //create audit tables and add 2 columns
-                Map<String,String>  auditFields = new HashMap<>();
-                auditFields.putAll(fields);
-                auditFields.put(SENT_AUDIT_COL,"DATETIME DEFAULT NULL");
-                auditFields.put(RECEIVED_AUDIT_COL,"DATETIME");
-                cursor = db.query(createTableSQL(layer + "_audit", auditFields));
-                cursor.moveToFirst();
+                //index the geometry column so the layer can be queried by bbox
+                cursor = db.query(String.format("SELECT CreateSpatialIndex('%s', 'geom', 'id')", tableName));
+                cursor.moveToFirst(); // force query to execute
 
-                //create audit table trigger
-                cursor = db.query(createAuditTableTriggersSQL(layer, fields));
-                cursor.moveToFirst();
+                //log the writes to the layer so they are synced
+                if (logChanges) {
+                    changeLog.createTable();
+                    changeLog.createTriggers(tableName);
+                }
 
                 tx.markSuccessful();
             } catch (Exception ex) {
@@ -697,6 +835,16 @@ public class GeoPackage {
         }
     }
 
+    /**
+     * Indexes a column of a feature table so features can be looked up by its value.
+     *
+     * @param layer  the name of the feature table
+     * @param column the name of the column to index
+     */
+    public void addIndex(String layer, String column) {
+        db.execute(String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s)", layer, column, layer, column));
+    }
+
     private String addToGpkgContentsSQL(String tableName) {
         StringBuilder sb = new StringBuilder();
         sb.append("INSERT OR REPLACE INTO gpkg_contents ")
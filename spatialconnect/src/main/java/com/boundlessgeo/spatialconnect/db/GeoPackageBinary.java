@@ -0,0 +1,192 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.db;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ByteOrderValues;
+import com.vividsolutions.jts.io.InStream;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes and decodes JTS geometries as
+ * <a href="http://www.geopackage.org/spec/#gpb_format">GeoPackage binary</a> blobs so they can be bound directly to
+ * a geometry column without going through {@code ST_GeomFromText}, and read back without going through
+ * {@code ST_AsBinary}.
+ */
+public final class GeoPackageBinary {
+
+    private static final byte MAGIC_0 = 0x47; // 'G'
+    private static final byte MAGIC_1 = 0x50; // 'P'
+    private static final byte VERSION = 0;
+
+    private static final int FLAG_LITTLE_ENDIAN = 0x01;
+    private static final int FLAG_EMPTY = 0x10;
+    private static final int ENVELOPE_NONE = 0;
+    private static final int ENVELOPE_XY = 1;
+
+    private static final int ENVELOPE_MASK = 0x0E;
+
+    private static final int HEADER_LENGTH = 8;
+    private static final int XY_ENVELOPE_LENGTH = 32;
+
+    // the length of the envelope for each envelope contents indicator: none, xy, xyz, xym and xyzm
+    private static final int[] ENVELOPE_LENGTHS = {0, 32, 48, 48, 64};
+
+    private GeoPackageBinary() {
+    }
+
+    /**
+     * Encodes the geometry as a little endian GeoPackage binary blob with an XY envelope.
+     *
+     * @param geometry the geometry to encode
+     * @param srsId    the srs_id of the geometry column the blob will be written to
+     * @return the GeoPackage binary representation of the geometry
+     */
+    public static byte[] toBytes(Geometry geometry, int srsId) {
+        boolean empty = geometry.isEmpty();
+        int flags = FLAG_LITTLE_ENDIAN | ((empty ? ENVELOPE_NONE : ENVELOPE_XY) << 1);
+        if (empty) {
+            flags |= FLAG_EMPTY;
+        }
+        // JTS can't write an empty point as WKB, so empty geometries are stored as an empty collection
+        byte[] wkb = new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN).write(
+                empty ? geometry.getFactory().createGeometryCollection(null) : geometry
+        );
+
+        ByteBuffer buffer = ByteBuffer
+                .allocate(HEADER_LENGTH + (empty ? 0 : XY_ENVELOPE_LENGTH) + wkb.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION).put((byte) flags).putInt(srsId);
+        if (!empty) {
+            Envelope envelope = geometry.getEnvelopeInternal();
+            buffer.putDouble(envelope.getMinX())
+                    .putDouble(envelope.getMaxX())
+                    .putDouble(envelope.getMinY())
+                    .putDouble(envelope.getMaxY());
+        }
+        buffer.put(wkb);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the srs_id stored in the header of a GeoPackage binary blob.
+     *
+     * @throws ParseException if the blob isn't GeoPackage binary
+     */
+    public static int readSrsId(byte[] blob) throws ParseException {
+        return header(blob).getInt(4);
+    }
+
+    /**
+     * Returns the envelope of a GeoPackage binary blob.  The envelope is read from the header when it has one, so the
+     * geometry itself is only parsed for blobs written without an envelope.
+     *
+     * @param blob    the blob read from the geometry column
+     * @param factory the factory used if the geometry has to be parsed
+     * @return the envelope of the geometry, which is null for an empty geometry
+     * @throws ParseException if the blob isn't valid GeoPackage binary
+     */
+    public static Envelope readEnvelope(byte[] blob, GeometryFactory factory) throws ParseException {
+        ByteBuffer header = header(blob);
+        int flags = header.get(3);
+        if ((flags & FLAG_EMPTY) != 0) {
+            return null;
+        }
+        if (envelopeLength(flags) > 0) {
+            // every envelope starts with minx, maxx, miny and maxy
+            return new Envelope(
+                    header.getDouble(HEADER_LENGTH),
+                    header.getDouble(HEADER_LENGTH + 8),
+                    header.getDouble(HEADER_LENGTH + 16),
+                    header.getDouble(HEADER_LENGTH + 24)
+            );
+        }
+        return toGeometry(blob, factory).getEnvelopeInternal();
+    }
+
+    /**
+     * Decodes a GeoPackage binary blob into a JTS geometry whose SRID is the srs_id from the header.
+     *
+     * @param blob    the blob read from the geometry column
+     * @param factory the factory used to create the geometry
+     * @return the geometry stored in the blob
+     * @throws ParseException if the blob isn't valid GeoPackage binary
+     */
+    public static Geometry toGeometry(byte[] blob, GeometryFactory factory) throws ParseException {
+        ByteBuffer header = header(blob);
+        int srsId = header.getInt(4);
+        int offset = HEADER_LENGTH + envelopeLength(header.get(3));
+        if (offset > blob.length) {
+            throw new ParseException("The GeoPackage binary envelope is truncated.");
+        }
+        try {
+            Geometry geometry = new WKBReader(factory).read(new OffsetInStream(blob, offset));
+            geometry.setSRID(srsId);
+            return geometry;
+        }
+        catch (IOException e) {
+            throw new ParseException("The GeoPackage binary geometry is truncated.");
+        }
+    }
+
+    // checks the magic and version, returning a buffer over the blob in the byte order of the header
+    private static ByteBuffer header(byte[] blob) throws ParseException {
+        if (blob == null || blob.length < HEADER_LENGTH || blob[0] != MAGIC_0 || blob[1] != MAGIC_1) {
+            throw new ParseException("The blob is not GeoPackage binary.");
+        }
+        if (blob[2] != VERSION) {
+            throw new ParseException("Unsupported GeoPackage binary version " + blob[2]);
+        }
+        return ByteBuffer.wrap(blob)
+                .order((blob[3] & FLAG_LITTLE_ENDIAN) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    private static int envelopeLength(int flags) throws ParseException {
+        int indicator = (flags & ENVELOPE_MASK) >> 1;
+        if (indicator >= ENVELOPE_LENGTHS.length) {
+            throw new ParseException("Invalid GeoPackage binary envelope contents indicator " + indicator);
+        }
+        return ENVELOPE_LENGTHS[indicator];
+    }
+
+    // reads the WKB after the header in place so the blob doesn't need to be copied
+    private static class OffsetInStream implements InStream {
+
+        private final byte[] buffer;
+        private int position;
+
+        OffsetInStream(byte[] buffer, int offset) {
+            this.buffer = buffer;
+            this.position = offset;
+        }
+
+        @Override
+        public void read(byte[] bytes) throws IOException {
+            if (position + bytes.length > buffer.length) {
+                throw new IOException("Unexpected end of WKB");
+            }
+            System.arraycopy(buffer, position, bytes, 0, bytes.length);
+            position += bytes.length;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.stores.SCChange;
+import com.squareup.sqlbrite.BriteDatabase;
+
+import org.sqlite.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import rx.Observable;
+import rx.Observer;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.observables.SyncOnSubscribe;
+
+/**
+ * The change log of a GeoPackage: one table shared by all of its feature tables, with a row per insert, update or
+ * delete of a feature.  A row only records the table, the primary key of the feature, the operation and, for
+ * updates, the columns that changed, so an edit costs a few bytes instead of a copy of the feature.  The rows are
+ * written by triggers on each feature table, so every write is logged no matter how it's made.
+ * <p>
+ * The sync reads the unsent rows in sequence order and joins them to the current state of the features.
+ */
+class SCGpkgChangeLog {
+
+    private static final String LOG_TAG = SCGpkgChangeLog.class.getSimpleName();
+
+    /**
+     * The name of the change log table.
+     */
+    static final String TABLE = "sc_changelog";
+
+    /**
+     * The number of unsent changes read per query.
+     */
+    static final int PAGE_SIZE = 500;
+
+    private static final String OP_INSERT = "insert";
+    private static final String OP_UPDATE = "update";
+    private static final String OP_DELETE = "delete";
+
+    private final GeoPackage gpkg;
+    private final BriteDatabase db;
+    private SQLiteStatement markSentStatement;
+
+    SCGpkgChangeLog(GeoPackage gpkg, BriteDatabase db) {
+        this.gpkg = gpkg;
+        this.db = db;
+    }
+
+    /**
+     * Creates the change log table and its partial indexes: one of the unsent rows by sequence number, which the
+     * sync reads page by page, and one of the sent rows by the time they were sent, which compaction deletes from.
+     */
+    void createTable() {
+        db.execute(String.format("CREATE TABLE IF NOT EXISTS %s (seq INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "table_name TEXT NOT NULL, pk TEXT NOT NULL, op TEXT NOT NULL, changed_columns TEXT, "
+                + "sent DATETIME DEFAULT NULL)", TABLE));
+        db.execute(String.format("CREATE INDEX IF NOT EXISTS %s_unsent ON %s (seq) WHERE sent IS NULL",
+                TABLE, TABLE));
+        db.execute(String.format("CREATE INDEX IF NOT EXISTS %s_sent ON %s (sent) WHERE sent IS NOT NULL",
+                TABLE, TABLE));
+    }
+
+    /**
+     * Creates the change log and the triggers of each feature table in a single transaction.  The unsent rows of a
+     * table's old audit table are moved to the change log as inserts, or every feature of the table is logged as an
+     * insert if the audit table doesn't record the features' keys, then the audit table and its trigger are dropped.
+     *
+     * @param sources the feature tables to log
+     * @return true if the change log is set up for every table
+     */
+    boolean initialize(Collection<SCGpkgFeatureSource> sources) {
+        BriteDatabase.Transaction tx = db.newTransaction();
+        try {
+            createTable();
+            for (SCGpkgFeatureSource source : sources) {
+                migrateAuditTable(source);
+                createTriggers(source.getTableName());
+            }
+            tx.markSuccessful();
+            return true;
+        }
+        catch (Exception ex) {
+            Log.e(LOG_TAG, "Could not set up the change log of " + gpkg.getName() + ": " + ex.getMessage());
+            return false;
+        }
+        finally {
+            tx.end();
+        }
+    }
+
+    /**
+     * (Re)creates the insert, update and delete triggers that log the writes to the table.  The triggers are built
+     * from the current columns of the table, so they are recreated whenever the schema is checked.  The update
+     * trigger only fires when a column's value actually changes, and records which ones did.
+     *
+     * @param table the feature table
+     */
+    void createTriggers(String table) {
+        String pk = null;
+        List<String> columns = new ArrayList<>();
+        Cursor cursor = db.query(String.format("PRAGMA table_info(%s)", table));
+        try {
+            while (cursor.moveToNext()) {
+                String columnName = SCSqliteHelper.getString(cursor, "name");
+                if (SCSqliteHelper.getInt(cursor, "pk") == 1) {
+                    pk = columnName;
+                }
+                else {
+                    columns.add(columnName);
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        if (pk == null) {
+            pk = "rowid";
+        }
+
+        db.execute(String.format("DROP TRIGGER IF EXISTS %s_changelog_insert", table));
+        db.execute(String.format("DROP TRIGGER IF EXISTS %s_changelog_update", table));
+        db.execute(String.format("DROP TRIGGER IF EXISTS %s_changelog_delete", table));
+
+        db.execute(String.format("CREATE TRIGGER %s_changelog_insert AFTER INSERT ON %s BEGIN "
+                        + "INSERT INTO %s (table_name, pk, op) VALUES ('%s', NEW.%s, '%s'); END;",
+                table, table, TABLE, table, pk, OP_INSERT));
+        db.execute(String.format("CREATE TRIGGER %s_changelog_delete AFTER DELETE ON %s BEGIN "
+                        + "INSERT INTO %s (table_name, pk, op) VALUES ('%s', OLD.%s, '%s'); END;",
+                table, table, TABLE, table, pk, OP_DELETE));
+        if (columns.isEmpty()) {
+            return;
+        }
+        StringBuilder changed = new StringBuilder();
+        StringBuilder changedColumns = new StringBuilder();
+        for (String column : columns) {
+            String test = String.format("OLD.%s IS NOT NEW.%s", column, column);
+            if (changed.length() > 0) {
+                changed.append(" OR ");
+                changedColumns.append(" || ");
+            }
+            changed.append(test);
+            changedColumns.append(String.format("CASE WHEN %s THEN '%s,' ELSE '' END", test, column));
+        }
+        db.execute(String.format("CREATE TRIGGER %s_changelog_update AFTER UPDATE ON %s WHEN %s BEGIN "
+                        + "INSERT INTO %s (table_name, pk, op, changed_columns) "
+                        + "VALUES ('%s', NEW.%s, '%s', rtrim(%s, ',')); END;",
+                table, table, changed, TABLE, table, pk, OP_UPDATE, changedColumns));
+    }
+
+    // moves the unsent rows of the table's audit table to the change log and drops the audit table
+    private void migrateAuditTable(SCGpkgFeatureSource source) {
+        String auditTable = source.getTableName() + "_audit";
+        Map<String, String> auditColumns = new LinkedHashMap<>();
+        Cursor cursor = db.query(String.format("PRAGMA table_info(%s)", auditTable));
+        try {
+            while (cursor.moveToNext()) {
+                auditColumns.put(SCSqliteHelper.getString(cursor, "name"), SCSqliteHelper.getString(cursor, "type"));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        if (auditColumns.isEmpty()) {
+            return;
+        }
+        Log.d(LOG_TAG, "Moving the unsent rows of " + auditTable + " to the change log");
+        String unsent = auditColumns.containsKey("sent") ? " WHERE sent IS NULL" : "";
+        if (auditColumns.containsKey(source.getPrimaryKeyName())) {
+            db.execute(String.format("INSERT INTO %s (table_name, pk, op) SELECT ?, %s, '%s' FROM %s%s ORDER BY id",
+                    TABLE, source.getPrimaryKeyName(), OP_INSERT, auditTable, unsent),
+                    source.getTableName());
+        }
+        else if (hasRows(String.format("SELECT 1 FROM %s%s LIMIT 1", auditTable, unsent))) {
+            // audit tables of form layers don't copy the feature's key and their own ids don't match the features',
+            // so every current feature is sent again instead
+            db.execute(String.format("INSERT INTO %s (table_name, pk, op) SELECT ?, %s, '%s' FROM %s ORDER BY %s",
+                    TABLE, source.getPrimaryKeyName(), OP_INSERT, source.getTableName(), source.getPrimaryKeyName()),
+                    source.getTableName());
+        }
+        db.execute(String.format("DROP TRIGGER IF EXISTS %s_insert", auditTable));
+        db.execute(String.format("DROP TABLE %s", auditTable));
+    }
+
+    private boolean hasRows(String sql) {
+        Cursor cursor = db.query(sql);
+        try {
+            return cursor.moveToFirst();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Emits the unsent changes, oldest first.  The change log is read a page at a time by keyset on the sequence
+     * number, using the partial index of unsent rows, and the next page is only read when the subscriber requests
+     * more changes.  Changes to a feature that no longer exists are superseded by the change that removed it, so
+     * they are marked sent without being emitted.
+     */
+    Observable<SCChange> unSent() {
+        return Observable.create(SyncOnSubscribe.createStateful(
+                new Func0<Long>() {
+                    @Override
+                    public Long call() {
+                        return 0L;
+                    }
+                },
+                new Func2<Long, Observer<? super List<SCChange>>, Long>() {
+                    @Override
+                    public Long call(Long lastSequence, Observer<? super List<SCChange>> observer) {
+                        return readPage(lastSequence, observer);
+                    }
+                }))
+                .concatMap(new Func1<List<SCChange>, Observable<SCChange>>() {
+                    @Override
+                    public Observable<SCChange> call(List<SCChange> page) {
+                        return Observable.from(page);
+                    }
+                });
+    }
+
+    // emits the changes after the sequence number, completing when there are none, and returns the last one read
+    private long readPage(long lastSequence, Observer<? super List<SCChange>> observer) {
+        List<LogEntry> entries = new ArrayList<>(PAGE_SIZE);
+        List<SCChange> page = new ArrayList<>(PAGE_SIZE);
+        List<Long> superseded = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = db.query(String.format(Locale.US, "SELECT seq, table_name, pk, op, changed_columns FROM %s "
+                    + "WHERE sent IS NULL AND seq > ? ORDER BY seq LIMIT %d", TABLE, PAGE_SIZE),
+                    String.valueOf(lastSequence));
+            while (cursor.moveToNext()) {
+                entries.add(new LogEntry(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getString(4)));
+            }
+            cursor.close();
+            cursor = null;
+            if (entries.isEmpty()) {
+                observer.onCompleted();
+                return lastSequence;
+            }
+
+            Map<String, Map<String, SCSpatialFeature>> features = readFeatures(entries);
+            for (LogEntry entry : entries) {
+                SCGpkgFeatureSource source = gpkg.getFeatureSourceByName(entry.table);
+                SCChange change = entry.toChange(features.get(entry.table),
+                        source != null ? source.getGeomColumnName() : null);
+                if (change != null) {
+                    page.add(change);
+                }
+                else {
+                    superseded.add(entry.sequence);
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.e(LOG_TAG, "Something went wrong trying to get unsent changes: " + e.getMessage());
+            observer.onError(e);
+            return lastSequence;
+        }
+        finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (!superseded.isEmpty()) {
+            markSent(superseded);
+        }
+        observer.onNext(page);
+        return entries.get(entries.size() - 1).sequence;
+    }
+
+    // reads the current rows of the features inserted or updated in the page with one query per table
+    private Map<String, Map<String, SCSpatialFeature>> readFeatures(List<LogEntry> entries) {
+        Map<String, List<String>> idsByTable = new LinkedHashMap<>();
+        for (LogEntry entry : entries) {
+            if (!entry.operation.equals(OP_DELETE)) {
+                List<String> ids = idsByTable.get(entry.table);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    idsByTable.put(entry.table, ids);
+                }
+                ids.add(entry.pk);
+            }
+        }
+        Map<String, Map<String, SCSpatialFeature>> features = new HashMap<>();
+        for (Map.Entry<String, List<String>> table : idsByTable.entrySet()) {
+            Map<String, SCSpatialFeature> rows = new HashMap<>();
+            features.put(table.getKey(), rows);
+            SCGpkgFeatureSource source = gpkg.getFeatureSourceByName(table.getKey());
+            if (source == null) {
+                // the table was dropped, its changes are superseded
+                continue;
+            }
+            SCGpkgRowDecoder decoder = source.getRowDecoder();
+            StringBuilder params = new StringBuilder();
+            for (int i = 0; i < table.getValue().size(); i++) {
+                params.append(i == 0 ? "?" : ",?");
+            }
+            Cursor cursor = db.query(String.format("SELECT %s FROM %s AS f WHERE f.%s IN (%s)",
+                    decoder.getSelectColumns(), source.getTableName(), source.getPrimaryKeyName(), params),
+                    table.getValue().toArray(new String[table.getValue().size()]));
+            try {
+                while (cursor.moveToNext()) {
+                    SCSpatialFeature feature = decoder.decode(cursor);
+                    rows.put(feature.getId(), feature);
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+        return features;
+    }
+
+    /**
+     * Marks the changes as sent in a single transaction, using a cached, prepared UPDATE statement.
+     *
+     * @param sequences the sequence numbers of the changes that were sent
+     * @return the number of changes marked sent
+     */
+    int markSent(List<Long> sequences) {
+        int rows = 0;
+        BriteDatabase.Transaction tx = db.newTransaction();
+        try {
+            synchronized (this) {
+                if (markSentStatement == null) {
+                    markSentStatement = gpkg.compileStatement(
+                            String.format("UPDATE %s SET sent = datetime() WHERE seq = ?", TABLE));
+                }
+                for (Long sequence : sequences) {
+                    markSentStatement.clearBindings();
+                    markSentStatement.bindLong(1, sequence);
+                    rows += gpkg.executeUpdateDelete(TABLE, markSentStatement);
+                }
+            }
+            tx.markSuccessful();
+        }
+        catch (Exception ex) {
+            Log.e(LOG_TAG, "Something went wrong marking changes sent: " + ex.getMessage());
+            rows = 0;
+        }
+        finally {
+            tx.end();
+        }
+        return rows;
+    }
+
+    /**
+     * Deletes the changes that were marked sent longer ago than the retention.  Changes that haven't been sent are
+     * always kept.
+     *
+     * @param retentionSeconds how long to keep changes after they are sent
+     * @return the number of changes deleted
+     */
+    int compact(long retentionSeconds) {
+        SQLiteStatement statement = gpkg.compileStatement(String.format(
+                "DELETE FROM %s WHERE sent IS NOT NULL AND sent < datetime('now', ?)", TABLE));
+        try {
+            statement.bindString(1, String.format(Locale.US, "-%d seconds", retentionSeconds));
+            return gpkg.executeUpdateDelete(TABLE, statement);
+        }
+        catch (Exception ex) {
+            Log.w(LOG_TAG, String.format("Could not compact the change log of %s b/c %s",
+                    gpkg.getName(), ex.toString()));
+            return 0;
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (markSentStatement != null) {
+                markSentStatement.close();
+                markSentStatement = null;
+            }
+        }
+    }
+
+    // a row of the change log
+    private static class LogEntry {
+        final long sequence;
+        final String table;
+        final String pk;
+        final String operation;
+        final String changedColumns;
+
+        LogEntry(long sequence, String table, String pk, String operation, String changedColumns) {
+            this.sequence = sequence;
+            this.table = table;
+            this.pk = pk;
+            this.operation = operation;
+            this.changedColumns = changedColumns;
+        }
+
+        // returns the change with the feature's current values, or null if the feature no longer exists
+        SCChange toChange(Map<String, SCSpatialFeature> rows, String geomColumnName) {
+            if (operation.equals(OP_DELETE)) {
+                SCSpatialFeature feature = new SCSpatialFeature();
+                feature.setLayerId(table);
+                feature.setId(pk);
+                return new SCChange(sequence, SCChange.Operation.DELETE, feature, null);
+            }
+            SCSpatialFeature current = rows != null ? rows.get(pk) : null;
+            if (current == null) {
+                return null;
+            }
+            if (operation.equals(OP_INSERT)) {
+                return new SCChange(sequence, SCChange.Operation.INSERT, current, null);
+            }
+            List<String> columns = changedColumns == null || changedColumns.isEmpty()
+                    ? new ArrayList<String>() : Arrays.asList(changedColumns.split(","));
+            // an update only carries the geometry and properties it wrote
+            SCSpatialFeature delta = current instanceof SCGeometry && columns.contains(geomColumnName)
+                    ? new SCGeometry(((SCGeometry) current).getGeometry()) : new SCSpatialFeature();
+            delta.setLayerId(table);
+            delta.setId(pk);
+            for (String column : columns) {
+                if (current.getProperties().containsKey(column)) {
+                    delta.getProperties().put(column, current.getProperties().get(column));
+                }
+            }
+            return new SCChange(sequence, SCChange.Operation.UPDATE, delta, columns);
+        }
+    }
+}
@@ -1,25 +1,18 @@
 package com.boundlessgeo.spatialconnect.db;
 
-import android.database.Cursor;
-import android.database.DatabaseUtils;
-import android.util.Log;
-
 import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryProjection;
 import com.squareup.sqlbrite.BriteDatabase;
 
+import org.sqlite.database.sqlite.SQLiteStatement;
+
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 
-import rx.Observable;
-import rx.Subscriber;
-
 /**
  * This class is responsible for reading and writing {@link SCSpatialFeature}s to a feature table in a GeoPackage.
  */
@@ -40,8 +33,6 @@ public class SCGpkgFeatureSource {
      */
     private String tableName;
 
-    private String auditName;
-
     /**
      * The name of the primary key column.
      */
@@ -53,11 +44,27 @@ public class SCGpkgFeatureSource {
     private String geomColumnName;
 
 
+    /**
+     * The srs_id of the geometry column.
+     */
+    private int srsId;
+
     /**
      * A map of the columns and their database types.
      */
     private Map<String, String> columns = new LinkedHashMap<>();
 
+    /**
+     * A cache of the compiled write statements for this table, keyed by their SQL.
+     */
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    /**
+     * A cache of the row decoders for queries of this table, keyed by the geometry mode and the property columns
+     * they select.
+     */
+    private final Map<String, SCGpkgRowDecoder> rowDecoders = new HashMap<>();
+
     private BriteDatabase db;
 
     /**
@@ -70,7 +77,6 @@ public class SCGpkgFeatureSource {
     public SCGpkgFeatureSource(GeoPackage geoPackage, String tableName) {
         this.gpkg = geoPackage;
         this.tableName = tableName;
-        this.auditName = String.format("%s_audit", tableName);
     }
 
     public Map<String, String> getColumns() {
@@ -79,12 +85,49 @@ public class SCGpkgFeatureSource {
 
     public void addColumn(String columnName, String columnType) {
         this.columns.put(columnName, columnType);
+        synchronized (rowDecoders) {
+            rowDecoders.clear();
+        }
+    }
+
+    /**
+     * Returns the decoder for queries selecting all of the property columns of this table.
+     */
+    public SCGpkgRowDecoder getRowDecoder() {
+        return getRowDecoder(new ArrayList<>(columns.keySet()), SCGeometryProjection.SCGEOMETRY_PROJECTION_FULL);
+    }
+
+    /**
+     * Returns the decoder for queries selecting the given property columns, building it the first time the columns
+     * are queried.
+     *
+     * @param columnNames        the property columns selected by the query, in order
+     * @param geometryProjection how much of the geometry the query needs
+     */
+    public SCGpkgRowDecoder getRowDecoder(List<String> columnNames, SCGeometryProjection geometryProjection) {
+        String key = geometryProjection.name() + columnNames;
+        synchronized (rowDecoders) {
+            SCGpkgRowDecoder decoder = rowDecoders.get(key);
+            if (decoder == null) {
+                decoder = new SCGpkgRowDecoder(this, new ArrayList<>(columnNames), geometryProjection);
+                rowDecoders.put(key, decoder);
+            }
+            return decoder;
+        }
     }
 
     public void setGeomColumnName(String geomColumnName) {
         this.geomColumnName = geomColumnName;
     }
 
+    public void setSrsId(int srsId) {
+        this.srsId = srsId;
+    }
+
+    public int getSrsId() {
+        return srsId;
+    }
+
     public void setPrimaryKeyName(String primaryKeyName) {
         this.primaryKeyName = primaryKeyName;
     }
@@ -102,155 +145,164 @@ public class SCGpkgFeatureSource {
     }
 
     /**
-     * Builds the column names part of the INSERT statement.  Only adds the columns from the feature, which may not be
-     * all columns in the schema.  Note that the INSERT statement doesn't use the primary key column b/c it should be
-     * auto generated by the database.
+     * Inserts the feature into this feature table using a cached, prepared INSERT statement.  Only the columns that
+     * have a value in the feature's properties are written; the primary key is generated by the database.
      *
-     * @return a CSV string of all column names used in the INSERT statement
+     * @param feature the feature to insert
+     * @return the row id of the inserted feature or -1 if the insert failed
      */
-    public String getColumnNamesForInsert(SCSpatialFeature feature) {
-        StringBuilder sb = new StringBuilder();
-        List<String> columnNames = new ArrayList<>(columns.keySet());
-        Collections.sort(columnNames, ALPHABETICAL_ORDER);
+    public long insert(SCSpatialFeature feature) {
+        List<String> columnNames = getColumnNamesForWrite(feature);
+        StringBuilder names = new StringBuilder();
+        StringBuilder params = new StringBuilder();
         for (String columnName : columnNames) {
-            if (feature.getProperties().get(columnName) != null) {
-                sb.append(columnName + ",");
-            }
+            names.append(columnName).append(",");
+            params.append("?,");
+        }
+        names.append(geomColumnName);
+        params.append("?");
+        String sql = String.format("INSERT OR REPLACE INTO %s (%s) VALUES (%s)", tableName, names, params);
+
+        SQLiteStatement statement = getStatement(sql);
+        synchronized (statement) {
+            statement.clearBindings();
+            int index = bindProperties(statement, feature, columnNames);
+            bindGeometry(statement, index, feature);
+            return gpkg.executeInsert(tableName, statement);
         }
-        sb.append(geomColumnName);
-        return sb.toString();
     }
 
     /**
-     * Builds the column values part of the INSERT statement.  In order to ensure that the columns match the values, we
-     * sort the column names alphabetically.
+     * Updates the feature in this feature table using a cached, prepared UPDATE statement.  Only the columns that
+     * have a value in the feature's properties are written.  The geometry column is written if the feature is a
+     * {@link SCGeometry}.
      *
-     * @return a CSV string of all column values used in the INSERT statement
+     * @param feature the feature to update
+     * @return the number of rows updated
      */
-    public String getColumnValuesForInsert(final SCSpatialFeature feature) {
-        StringBuilder sb = new StringBuilder();
-        List<String> columnNames = new ArrayList<>(columns.keySet());
-        Collections.sort(columnNames, ALPHABETICAL_ORDER);
-        boolean firstIteration = true;
+    public int update(SCSpatialFeature feature) {
+        List<String> columnNames = getColumnNamesForWrite(feature);
+        boolean hasGeometry = feature instanceof SCGeometry;
+        StringBuilder setClause = new StringBuilder();
         for (String columnName : columnNames) {
-            if (feature.getProperties().get(columnName) != null) {
-                if (!firstIteration) {
-                    sb.append(",");
-                }
-                sb.append(DatabaseUtils.sqlEscapeString(String.valueOf(feature.getProperties().get(columnName))));
-                firstIteration = false;
+            if (setClause.length() > 0) {
+                setClause.append(", ");
             }
+            setClause.append(columnName).append("=?");
         }
-        if (sb.toString().length() > 0) {
-            sb.append(",");
+        if (hasGeometry) {
+            if (setClause.length() > 0) {
+                setClause.append(", ");
+            }
+            setClause.append(geomColumnName).append("=?");
         }
-        if (feature instanceof SCGeometry && ((SCGeometry)feature).getGeometry() != null) {
-            sb.append("ST_GeomFromText('")
-                    .append(((SCGeometry)feature).getGeometry().toString())
-                    .append("')");
+        if (setClause.length() == 0) {
+            return 0;
         }
-        else {
-            sb.append("NULL");
+        String sql = String.format("UPDATE %s SET %s WHERE %s = ?", tableName, setClause, primaryKeyName);
+
+        SQLiteStatement statement = getStatement(sql);
+        synchronized (statement) {
+            statement.clearBindings();
+            int index = bindProperties(statement, feature, columnNames);
+            if (hasGeometry) {
+                bindGeometry(statement, index++, feature);
+            }
+            statement.bindString(index, feature.getId());
+            return gpkg.executeUpdateDelete(tableName, statement);
         }
-        return sb.toString();
     }
 
     /**
-     * Builds the {@code SET column_name = value1, column2 = value2} part of the UPDATE statement.
+     * Deletes the feature with the given id from this feature table using a cached, prepared DELETE statement.
      *
-     * @param feature
-     * @return a string containing the SET clause of the UPDATE statement
+     * @param featureId the value of the primary key of the feature to delete
+     * @return the number of rows deleted
      */
-    public String getUpdateSetClause(SCSpatialFeature feature) {
-        StringBuilder sb = new StringBuilder();
-        for (String columnName : columns.keySet()) {
-            if (feature.getProperties().get(columnName) != null) {
-                sb.append(columnName);
-                sb.append("=");
-                sb.append((DatabaseUtils.sqlEscapeString(String.valueOf(feature.getProperties().get(columnName)))));
-                sb.append(", ");
-            }
+    public int delete(String featureId) {
+        String sql = String.format("DELETE FROM %s WHERE %s = ?", tableName, primaryKeyName);
+        SQLiteStatement statement = getStatement(sql);
+        synchronized (statement) {
+            statement.clearBindings();
+            statement.bindString(1, featureId);
+            return gpkg.executeUpdateDelete(tableName, statement);
         }
-        sb.append(geomColumnName);
-        sb.append("=");
-        sb.append("ST_GeomFromText('").append(((SCGeometry)feature).getGeometry().toString()).append("')");
-        return sb.toString();
     }
 
-    public SCSpatialFeature featureFromResultSet(Cursor rs) {
-        Map<String,Object> properties = new HashMap<>();
-        String data;
-        String columnName;
-        for (int i=0; i<rs.getColumnCount(); i++) {
-            data = rs.getString(i);
-            columnName = rs.getColumnName(i);
-            properties.put(columnName, data);
+    /**
+     * Closes all the prepared statements cached for this feature table.
+     */
+    public void close() {
+        synchronized (statements) {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
         }
-
-        SCSpatialFeature  spatialFeature = new SCSpatialFeature();
-        spatialFeature.setId(properties.get(primaryKeyName).toString());
-        spatialFeature.setLayerId(tableName);
-
-        properties.remove(geomColumnName);
-        properties.remove(primaryKeyName);
-        spatialFeature.setProperties(properties);
-
-        return spatialFeature;
     }
 
-    public Observable<SCSpatialFeature> unSent() {
-
-        final String sql = String.format("SELECT * FROM %s WHERE sent IS NULL", auditName);
-        return Observable.create(new Observable.OnSubscribe<SCSpatialFeature>() {
-            @Override
-            public void call(final Subscriber subscriber) {
-                query(sql, subscriber);
+    // returns the cached statement for the sql, compiling it the first time it's used
+    private SQLiteStatement getStatement(String sql) {
+        synchronized (statements) {
+            SQLiteStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = gpkg.compileStatement(sql);
+                statements.put(sql, statement);
             }
-        });
+            return statement;
+        }
     }
 
-    public void updateAuditTable(SCSpatialFeature feature) {
-        Cursor cursor = null;
-        try {
-            String query =
-                    String.format(Locale.US, "UPDATE %s SET sent = datetime() WHERE %s = %s",
-                            this.auditName, this.primaryKeyName, feature.getId());
-            cursor = gpkg.query(query);
-            cursor.moveToFirst();
-        } catch (Exception ex) {
-            Log.e(LOG_TAG, "Something went wrong updating audit table: " + ex.getMessage());
-        }
-        finally {
-            if (cursor != null) {
-                cursor.close();
+    // returns the names of the columns in schema order that have a value in the feature
+    private List<String> getColumnNamesForWrite(SCSpatialFeature feature) {
+        List<String> columnNames = new ArrayList<>(columns.size());
+        for (String columnName : columns.keySet()) {
+            if (feature.getProperties().get(columnName) != null) {
+                columnNames.add(columnName);
             }
         }
+        return columnNames;
     }
 
-    private void query(String sql, Subscriber subscriber) {
-        Cursor layerCursor = gpkg.query(sql);
-        try {
-            while (layerCursor.moveToNext()) {
-                SCSpatialFeature f = featureFromResultSet(layerCursor);
-                subscriber.onNext(f);
+    // binds the property values starting at index 1 and returns the next free index
+    private int bindProperties(SQLiteStatement statement, SCSpatialFeature feature, List<String> columnNames) {
+        int index = 1;
+        for (String columnName : columnNames) {
+            bindValue(statement, index++, feature.getProperties().get(columnName));
+        }
+        return index;
+    }
 
-            }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Something went wrong trying to get unsynced features: " + e.getMessage());
-        } finally {
-            layerCursor.close();
+    private void bindGeometry(SQLiteStatement statement, int index, SCSpatialFeature feature) {
+        if (feature instanceof SCGeometry && ((SCGeometry) feature).getGeometry() != null) {
+            statement.bindBlob(index, GeoPackageBinary.toBytes(((SCGeometry) feature).getGeometry(), srsId));
+        }
+        else {
+            statement.bindNull(index);
         }
     }
 
-    private static Comparator<String> ALPHABETICAL_ORDER = new Comparator<String>() {
-        public int compare(String str1, String str2) {
-            int res = String.CASE_INSENSITIVE_ORDER.compare(str1, str2);
-            if (res == 0) {
-                res = str1.compareTo(str2);
-            }
-            return res;
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            statement.bindLong(index, ((Number) value).longValue());
+        }
+        else if (value instanceof Number) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        }
+        else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
         }
-    };
+        else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        }
+        else {
+            statement.bindString(index, String.valueOf(value));
+        }
+    }
 
     @Override
     public boolean equals(Object o) {
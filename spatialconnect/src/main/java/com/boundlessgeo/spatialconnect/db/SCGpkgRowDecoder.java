@@ -0,0 +1,185 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryProjection;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the rows of a feature query into {@link SCSpatialFeature}s.  The decoder owns the select list of the query
+ * so the position of each column is known when it's built; the column types are resolved to a handler at the same
+ * time, leaving only the typed cursor reads to do for each row.
+ */
+public class SCGpkgRowDecoder {
+
+    private static final String LOG_TAG = SCGpkgRowDecoder.class.getSimpleName();
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    private enum ColumnHandler {
+        BLOB, INTEGER, REAL, TEXT, UNSUPPORTED;
+
+        static ColumnHandler forType(String columnType) {
+            if (columnType.equalsIgnoreCase("BLOB")
+                    || columnType.equalsIgnoreCase("GEOMETRY")
+                    || columnType.equalsIgnoreCase("POINT")
+                    || columnType.equalsIgnoreCase("LINESTRING")
+                    || columnType.equalsIgnoreCase("POLYGON")) {
+                return BLOB;
+            }
+            else if (columnType.startsWith("INTEGER")) {
+                return INTEGER;
+            }
+            else if (columnType.startsWith("REAL")) {
+                return REAL;
+            }
+            else if (columnType.startsWith("TEXT")) {
+                return TEXT;
+            }
+            return UNSUPPORTED;
+        }
+    }
+
+    private final String tableName;
+    private final String selectColumns;
+    private final String[] columnNames;
+    private final ColumnHandler[] handlers;
+    private final int primaryKeyIndex;
+    private final int geometryIndex;
+    private final SCGeometryProjection geometryProjection;
+
+    /**
+     * Builds the decoder for a query of the named property columns of the feature source.  Columns the source doesn't
+     * have are left out of the select list.
+     *
+     * @param source             the feature source being queried
+     * @param columnNames        the property columns to select, in the order they are selected
+     * @param geometryProjection how much of the geometry to decode; the envelope is read from the GeoPackage binary
+     *                           header and no geometry column is selected at all for
+     *                           {@link SCGeometryProjection#SCGEOMETRY_PROJECTION_NONE}
+     */
+    SCGpkgRowDecoder(SCGpkgFeatureSource source, List<String> columnNames, SCGeometryProjection geometryProjection) {
+        Map<String, String> columnTypes = source.getColumns();
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        String[] names = new String[columnNames.size()];
+        ColumnHandler[] columnHandlers = new ColumnHandler[columnNames.size()];
+        for (String columnName : columnNames) {
+            String columnType = columnTypes.get(columnName);
+            if (columnType == null) {
+                continue;
+            }
+            ColumnHandler handler = ColumnHandler.forType(columnType);
+            if (handler == ColumnHandler.UNSUPPORTED) {
+                Log.w(LOG_TAG, "The column type " + columnType + " did not match any supported" +
+                        " column type so it won't be added to the features.");
+                continue;
+            }
+            names[count] = columnName;
+            columnHandlers[count] = handler;
+            count++;
+            sb.append("f.").append(columnName).append(",");
+        }
+        sb.append("f.").append(source.getPrimaryKeyName());
+        if (geometryProjection != SCGeometryProjection.SCGEOMETRY_PROJECTION_NONE) {
+            // the GeoPackage binary is selected as is and decoded here instead of converting it to WKB with ST_AsBinary
+            sb.append(",f.").append(source.getGeomColumnName());
+        }
+
+        this.tableName = source.getTableName();
+        this.selectColumns = sb.toString();
+        this.columnNames = new String[count];
+        this.handlers = new ColumnHandler[count];
+        System.arraycopy(names, 0, this.columnNames, 0, count);
+        System.arraycopy(columnHandlers, 0, this.handlers, 0, count);
+        this.primaryKeyIndex = count;
+        this.geometryIndex = geometryProjection == SCGeometryProjection.SCGEOMETRY_PROJECTION_NONE ? -1 : count + 1;
+        this.geometryProjection = geometryProjection;
+    }
+
+    /**
+     * @return the select list to use for the query, with the columns in the order this decoder reads them
+     */
+    public String getSelectColumns() {
+        return selectColumns;
+    }
+
+    /**
+     * Decodes the current row of a cursor over a query built with {@link #getSelectColumns()}.
+     *
+     * @param cursor the cursor positioned at the row to decode
+     * @return the feature for the row, without its store id
+     */
+    public SCSpatialFeature decode(Cursor cursor) {
+        SCSpatialFeature feature = new SCSpatialFeature();
+        if (geometryIndex >= 0) {
+            byte[] gpb = cursor.getBlob(geometryIndex);
+            try {
+                if (gpb != null && gpb.length > 0) {
+                    Geometry geometry = decodeGeometry(gpb);
+                    if (geometry != null) {
+                        feature = new SCGeometry(geometry);
+                    }
+                }
+            }
+            catch (ParseException e) {
+                Log.w(LOG_TAG, "Could not parse geometry");
+            }
+        }
+        feature.setLayerId(tableName);
+        feature.setId(cursor.getString(primaryKeyIndex));
+        Map<String, Object> properties = feature.getProperties();
+        for (int i = 0; i < handlers.length; i++) {
+            switch (handlers[i]) {
+                case BLOB:
+                    properties.put(columnNames[i], cursor.getBlob(i));
+                    break;
+                case INTEGER:
+                    properties.put(columnNames[i], cursor.getInt(i));
+                    break;
+                case REAL:
+                    properties.put(columnNames[i], cursor.getDouble(i));
+                    break;
+                default:
+                    properties.put(columnNames[i], cursor.getString(i));
+            }
+        }
+        return feature;
+    }
+
+    private Geometry decodeGeometry(byte[] gpb) throws ParseException {
+        if (geometryProjection == SCGeometryProjection.SCGEOMETRY_PROJECTION_ENVELOPE) {
+            Envelope envelope = GeoPackageBinary.readEnvelope(gpb, GEOMETRY_FACTORY);
+            if (envelope == null) {
+                return null;
+            }
+            Geometry geometry = GEOMETRY_FACTORY.toGeometry(envelope);
+            geometry.setSRID(GeoPackageBinary.readSrsId(gpb));
+            return geometry;
+        }
+        return GeoPackageBinary.toGeometry(gpb, GEOMETRY_FACTORY);
+    }
+}
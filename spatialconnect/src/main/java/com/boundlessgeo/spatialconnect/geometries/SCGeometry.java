@@ -79,6 +79,10 @@ import java.io.File;
     protected Geometry geometry;
     protected String exportType;
     protected String jtsGeometryType;
+    /**
+     * The bounding box and GeoJSON of the geometry are only built when they're first asked for, since most features
+     * read from a store are never serialized.  Both are cleared when the geometry is replaced.
+     */
     protected SCBoundingBox bbox;
     protected String geometryGeoJson;
     private final String TAG = "SCGeometry";
@@ -90,8 +94,6 @@ import java.io.File;
         this.exportType = "Feature";
         this.geometry = geometry;
         this.jtsGeometryType = this.geometry.getGeometryType();
-        this.bbox = new SCBoundingBox(this);
-        this.geometryGeoJson = getGeometryGeoJson(this.geometry);
     }
 
     @JsonProperty("type")
@@ -103,6 +105,10 @@ import java.io.File;
     @JsonProperty("bbox")
     public Double[] getBbox()
     {
+        if(bbox == null && geometry != null)
+        {
+            bbox = new SCBoundingBox(this);
+        }
         if(bbox != null)
         {
             return bbox.getBbox();
@@ -124,12 +130,19 @@ import java.io.File;
     public void setGeometry(Geometry geometry)
     {
         this.geometry = geometry;
+        this.jtsGeometryType = geometry != null ? geometry.getGeometryType() : null;
+        this.bbox = null;
+        this.geometryGeoJson = null;
     }
 
     @JsonRawValue()
     @JsonProperty("geometry")
     public String getGeometryGeoJson()
     {
+        if(geometryGeoJson == null && geometry != null)
+        {
+            geometryGeoJson = getGeometryGeoJson(geometry);
+        }
         return geometryGeoJson;
     }
 
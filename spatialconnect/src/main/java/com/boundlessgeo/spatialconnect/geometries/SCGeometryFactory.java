@@ -15,6 +15,7 @@
 package com.boundlessgeo.spatialconnect.geometries;
 
 import android.util.Log;
+import com.boundlessgeo.spatialconnect.scutilities.Json.FeatureCollectionIterator;
 import com.boundlessgeo.spatialconnect.scutilities.Json.JsonUtilities;
 import com.boundlessgeo.spatialconnect.scutilities.Json.SCObjectMapper;
 import com.fasterxml.jackson.databind.JavaType;
@@ -25,9 +26,18 @@ import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKTReader;
 
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
 //TODO - Replace exception handling with logcat when ready for test/deployment in emulator or device
 //TODO - Generate JavaDoc
 
@@ -973,9 +983,7 @@ public class SCGeometryFactory
             List<SCSpatialFeature> features = new ArrayList<>();
             while (it.hasNext())
             {
-                JsonNode jFeature = it.next();
-                String featureJson = jFeature.toString();
-                features.add(utilities.getSpatialFeatureFromJson(featureJson));
+                features.add(utilities.getSpatialFeatureFromJson(it.next()));
             }
             scGeometryCollection = new SCGeometryCollection(features);
 
@@ -1005,12 +1013,111 @@ public class SCGeometryFactory
         return scGeometryCollection;
     }
 
+    /**
+     * Streams the features of a GeoJSON FeatureCollection file.  Features are parsed as they are requested, so memory
+     * use doesn't grow with the size of the file, and the file is closed as soon as the subscriber unsubscribes.
+     *
+     * @param file the FeatureCollection file
+     * @return an Observable of the features in the file, which supports backpressure
+     */
+    public Observable<SCSpatialFeature> getFeaturesFromFeatureCollectionJson(final File file)
+    {
+        return Observable.using(
+                new Func0<FeatureCollectionIterator>()
+                {
+                    @Override
+                    public FeatureCollectionIterator call()
+                    {
+                        try
+                        {
+                            return new FeatureCollectionIterator(FileUtils.openInputStream(file));
+                        }
+                        catch (IOException ex)
+                        {
+                            throw new IllegalStateException("Couldn't read " + file.getName(), ex);
+                        }
+                    }
+                },
+                new Func1<FeatureCollectionIterator, Observable<SCSpatialFeature>>()
+                {
+                    @Override
+                    public Observable<SCSpatialFeature> call(final FeatureCollectionIterator iterator)
+                    {
+                        return Observable.from(new Iterable<SCSpatialFeature>()
+                        {
+                            @Override
+                            public Iterator<SCSpatialFeature> iterator()
+                            {
+                                return iterator;
+                            }
+                        });
+                    }
+                },
+                new Action1<FeatureCollectionIterator>()
+                {
+                    @Override
+                    public void call(FeatureCollectionIterator iterator)
+                    {
+                        try
+                        {
+                            iterator.close();
+                        }
+                        catch (IOException ex)
+                        {
+                            Log.e(TAG, "Couldn't close " + file.getName(), ex);
+                        }
+                    }
+                }
+        );
+    }
+
     //region Miscellaneous
     public void setSRID(int srid)
     {
         this.geometryFactory = new GeometryFactory(new PrecisionModel(), srid);
     }
 
+    /**
+     * Builds the SCGeometry for a parsed GeoJSON geometry.
+     *
+     * @return the geometry, or null if its type isn't supported or it can't be parsed
+     */
+    public SCGeometry getGeometryFromGeoJson(JsonNode geometryNode)
+    {
+        Geometry jtsGeometry;
+        try
+        {
+            jtsGeometry = SCObjectMapper.getMapper().treeToValue(geometryNode, Geometry.class);
+        }
+        catch (Exception ex)
+        {
+            Log.e(TAG, "Error in getGeometryFromGeoJson(JsonNode). Check the syntax: " + geometryNode, ex);
+            return null;
+        }
+        if (jtsGeometry == null)
+        {
+            return null;
+        }
+        jtsGeometry.setSRID(this.srid);
+        switch (geometryNode.path("type").asText().toLowerCase(Locale.US))
+        {
+            case "point":
+                return new SCPoint(jtsGeometry);
+            case "linestring":
+                return new SCLineString(jtsGeometry);
+            case "polygon":
+                return new SCPolygon(jtsGeometry);
+            case "multipoint":
+                return new SCMultiPoint(jtsGeometry);
+            case "multilinestring":
+                return new SCMultiLineString(jtsGeometry);
+            case "multipolygon":
+                return new SCMultiPolygon(jtsGeometry);
+            default:
+                return null;
+        }
+    }
+
     public Geometry getGeometryFromJson(String json)
     {
         Geometry geometry = null;
@@ -22,6 +22,7 @@ import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometryFactory;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
 import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCGeometryProjection;
 import com.boundlessgeo.spatialconnect.query.SCPredicate;
 import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
 import com.boundlessgeo.spatialconnect.schema.SCCommand;
@@ -333,6 +334,18 @@ public class SCJavascriptBridgeHandler implements WebViewJavascriptBridge.WVJBHa
             SCQueryFilter filter = new SCQueryFilter(
                     new SCPredicate(bbox, SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN)
             );
+            // optional projection, ex: "$properties": ["name"], "$geometry": "envelope"
+            JsonNode filterNode = payload.get("payload").get("filter");
+            for (JsonNode propertyName : filterNode.path("$properties")) {
+                filter.addPropertyName(propertyName.asText());
+            }
+            String geometry = filterNode.path("$geometry").asText();
+            if (geometry.equalsIgnoreCase("envelope")) {
+                filter.setGeometryProjection(SCGeometryProjection.SCGEOMETRY_PROJECTION_ENVELOPE);
+            }
+            else if (geometry.equalsIgnoreCase("none")) {
+                filter.setGeometryProjection(SCGeometryProjection.SCGEOMETRY_PROJECTION_NONE);
+            }
             return filter;
         } catch (IOException e) {
             Log.e(LOG_TAG, "couldn't build filter...check the syntax of your bbox: " + bboxNode.textValue());
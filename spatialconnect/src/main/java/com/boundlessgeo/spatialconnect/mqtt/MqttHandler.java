@@ -39,9 +39,12 @@ import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import rx.Observable;
 import rx.functions.Action1;
+import rx.functions.Func1;
 import rx.subjects.BehaviorSubject;
 import rx.subjects.PublishSubject;
 
@@ -64,11 +67,30 @@ public class MqttHandler implements MqttCallbackExtended {
     public static BehaviorSubject<Boolean> clientConnected = BehaviorSubject.create(false);
     private boolean isSecure;
     private Observable<SCTuple> multicast;
+    private final PublishSubject<IMqttDeliveryToken> deliveries = PublishSubject.create();
+    private final Map<String, Integer> topics = new ConcurrentHashMap<>();
 
     private MqttHandler(Context context) {
         this.context = context;
         scMessageSubject = PublishSubject.create();
         multicast = scMessageSubject.share();
+        // a single listener re-subscribes to every topic when the client connects
+        clientConnected
+                .distinctUntilChanged()
+                .filter(new Func1<Boolean, Boolean>() {
+                    @Override
+                    public Boolean call(Boolean connected) {
+                        return connected;
+                    }
+                })
+                .subscribe(new Action1<Boolean>() {
+                    @Override
+                    public void call(Boolean connected) {
+                        for (Map.Entry<String, Integer> topic : topics.entrySet()) {
+                            subscribeNow(topic.getKey(), topic.getValue());
+                        }
+                    }
+                });
     }
 
     public static MqttHandler getInstance(Context context) {
@@ -117,64 +139,70 @@ public class MqttHandler implements MqttCallbackExtended {
         Log.d(LOG_TAG, "connecting to mqtt broker at " + client.getServerURI());
         // only try to connect to mqtt broker after the user has successfully authenticated
         final SCAuthService authService = SpatialConnect.getInstance().getAuthService();
-        authService.getLoginStatus().subscribe(new Action1<Integer>() {
-            @Override
-            public void call(Integer status) {
-                if (status == SCAuthService.SCAuthStatus.AUTHENTICATED.value()) {
-                    String accessToken = authService.getAccessToken();
-                    try {
-                        // set the clean session to remove any previous connection the broker may have for this client
-                        MqttConnectOptions options = new MqttConnectOptions();
-                        options.setCleanSession(false);
-                        options.setAutomaticReconnect(true);
-                        options.setUserName(accessToken);
-                        options.setPassword("anypass".toCharArray());
-                        if (isSecure) {
-                            options.setSocketFactory(
-                                    new SCSocketFactory(context.getResources().openRawResource(R.raw.ca))
-                            );
-                        }
-                        client.connect(options, null, new ConnectActionListener());
+        authService.getLoginStatus()
+                .filter(new Func1<Integer, Boolean>() {
+                    @Override
+                    public Boolean call(Integer status) {
+                        return status == SCAuthService.SCAuthStatus.AUTHENTICATED.value();
                     }
-                    catch (MqttException e) {
-                        Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
-                    } catch (IOException e) {
-                        Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
-                    } catch (CertificateException e) {
-                        Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
-                    } catch (NoSuchAlgorithmException e) {
-                        Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
-                    } catch (KeyStoreException e) {
-                        Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
-                    } catch (KeyManagementException e) {
-                        Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                })
+                .take(1)
+                .subscribe(new Action1<Integer>() {
+                    @Override
+                    public void call(Integer status) {
+                        String accessToken = authService.getAccessToken();
+                        try {
+                            // set the clean session to remove any previous connection the broker may have for this client
+                            MqttConnectOptions options = new MqttConnectOptions();
+                            options.setCleanSession(false);
+                            options.setAutomaticReconnect(true);
+                            options.setUserName(accessToken);
+                            options.setPassword("anypass".toCharArray());
+                            if (isSecure) {
+                                options.setSocketFactory(
+                                        new SCSocketFactory(context.getResources().openRawResource(R.raw.ca))
+                                );
+                            }
+                            client.connect(options, null, new ConnectActionListener());
+                        }
+                        catch (MqttException e) {
+                            Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                        } catch (IOException e) {
+                            Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                        } catch (CertificateException e) {
+                            Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                        } catch (NoSuchAlgorithmException e) {
+                            Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                        } catch (KeyStoreException e) {
+                            Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                        } catch (KeyManagementException e) {
+                            Log.e(LOG_TAG, "could not connect to mqtt broker.", e.getCause());
+                        }
                     }
-                }
-            }
-        });
+                });
     }
 
     /**
-     * Subscribe client to a topic.
+     * Subscribe client to a topic.  The topic is subscribed to now if the client is connected, and again each time
+     * the client connects, however many times it's asked for.
      *
      * @param topic to subscribe to
      * @param qos   quality of service (0, 1, 2)
      */
     public void subscribe(final String topic, final int qos) {
-        clientConnected.subscribe(new Action1<Boolean>() {
-            @Override
-            public void call(Boolean connected) {
-                if (connected) {
-                    try {
-                        Log.d(LOG_TAG, "subscribing to topic " + topic + " with qos " + qos);
-                        client.subscribe(topic, qos);
-                    }
-                    catch (MqttException e) {
-                        Log.e(LOG_TAG, "could not subscribe to topic " + topic, e.getCause());
-                    }
-                }
-            }
-        });
+        if (topics.put(topic, qos) == null && clientConnected.getValue()) {
+            subscribeNow(topic, qos);
+        }
+    }
+
+    private void subscribeNow(String topic, int qos) {
+        try {
+            Log.d(LOG_TAG, "subscribing to topic " + topic + " with qos " + qos);
+            client.subscribe(topic, qos);
+        }
+        catch (MqttException e) {
+            Log.e(LOG_TAG, "could not subscribe to topic " + topic, e.getCause());
+        }
     }
 
     /**
@@ -185,23 +213,48 @@ public class MqttHandler implements MqttCallbackExtended {
      * @param qos     quality of service (0, 1, 2)
      */
     public void publish(final String topic, final SCMessageOuterClass.SCMessage message, final int qos) {
-        clientConnected.subscribe(new Action1<Boolean>() {
-            @Override
-            public void call(Boolean connected) {
-                if (connected) {
-                    Log.d(LOG_TAG, "publishing to topic " + topic + " with qos " + qos);
-                    // create a new MqttMessage from the message string
-                    MqttMessage mqttMsg = new MqttMessage(message.toByteArray());
-                    mqttMsg.setQos(qos);
-                    try {
-                        client.publish(topic, mqttMsg);
+        // publish once, on the first connection, rather than again on every reconnect
+        clientConnected
+                .filter(new Func1<Boolean, Boolean>() {
+                    @Override
+                    public Boolean call(Boolean connected) {
+                        return connected;
                     }
-                    catch (MqttException e) {
-                        Log.e(LOG_TAG, "could not publish to topic " + topic, e.getCause());
+                })
+                .take(1)
+                .subscribe(new Action1<Boolean>() {
+                    @Override
+                    public void call(Boolean connected) {
+                        Log.d(LOG_TAG, "publishing to topic " + topic + " with qos " + qos);
+                        // create a new MqttMessage from the message string
+                        MqttMessage mqttMsg = new MqttMessage(message.toByteArray());
+                        mqttMsg.setQos(qos);
+                        try {
+                            client.publish(topic, mqttMsg);
+                        }
+                        catch (MqttException e) {
+                            Log.e(LOG_TAG, "could not publish to topic " + topic, e.getCause());
+                        }
                     }
-                }
-            }
-        });
+                });
+    }
+
+    /**
+     * Publish message to a topic right away.  The returned token is passed to the observers of
+     * {@link #getDeliveries()} when the broker has acknowledged the message for the qos.
+     *
+     * @param topic   topic to publish the message to
+     * @param message SCMessage to send as payload
+     * @param qos     quality of service (0, 1, 2)
+     * @return the delivery token of the message
+     * @throws MqttException if the client couldn't accept the message, for example when it isn't connected
+     */
+    public IMqttDeliveryToken publishNow(String topic, SCMessageOuterClass.SCMessage message, int qos)
+            throws MqttException {
+        Log.d(LOG_TAG, "publishing to topic " + topic + " with qos " + qos);
+        MqttMessage mqttMsg = new MqttMessage(message.toByteArray());
+        mqttMsg.setQos(qos);
+        return client.publish(topic, mqttMsg);
     }
 
     @Override
@@ -221,7 +274,7 @@ public class MqttHandler implements MqttCallbackExtended {
 
     @Override
     public void deliveryComplete(IMqttDeliveryToken token) {
-        // todo: update or remove the audit table rows when changes have been successfully delivered to backend
+        deliveries.onNext(token);
     }
 
     @Override
@@ -237,6 +290,13 @@ public class MqttHandler implements MqttCallbackExtended {
         return multicast;
     }
 
+    /**
+     * Observable emitting the delivery token of each published message once the broker has acknowledged it.
+     */
+    public Observable<IMqttDeliveryToken> getDeliveries() {
+        return deliveries;
+    }
+
     /**
      * An implementation of an IMqttActionListener for connecting/authenticating to the broker.
      */
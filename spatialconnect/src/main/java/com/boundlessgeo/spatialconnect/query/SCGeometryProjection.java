@@ -0,0 +1,35 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.query;
+
+
+/**
+ * How much of each feature's geometry a query returns.
+ */
+public enum SCGeometryProjection
+{
+    /**
+     * The full geometry.
+     */
+    SCGEOMETRY_PROJECTION_FULL,
+    /**
+     * Only the envelope of the geometry, returned as a polygon (or a point for a point geometry).
+     */
+    SCGEOMETRY_PROJECTION_ENVELOPE,
+    /**
+     * No geometry; the features are returned as plain {@link com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature}s.
+     */
+    SCGEOMETRY_PROJECTION_NONE
+}
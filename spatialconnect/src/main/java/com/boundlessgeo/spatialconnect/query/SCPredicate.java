@@ -85,10 +85,14 @@ public class SCPredicate {
     public boolean isWithinBoundingBox(SCGeometry scGeometry) {
         Double[] bboxCoords = this.filterBbox.getBbox();
         Envelope envelope = new Envelope(bboxCoords[0], bboxCoords[2], bboxCoords[1], bboxCoords[3]);
-        return scGeometry.getGeometry().within(geometryFactory.toGeometry(envelope));
+        return scGeometry.getGeometry().intersects(geometryFactory.toGeometry(envelope));
     }
 
     public SCBoundingBox getBoundingBox() {
         return this.filterBbox;
     }
+
+    public SCGeometryPredicateComparison getGeometryComparison() {
+        return this.geometryComp;
+    }
 }
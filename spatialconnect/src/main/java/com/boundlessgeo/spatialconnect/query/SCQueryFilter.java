@@ -14,9 +14,14 @@
  */
 package com.boundlessgeo.spatialconnect.query;
 
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.vividsolutions.jts.geom.Geometry;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SCQueryFilter
 {
@@ -24,6 +29,11 @@ public class SCQueryFilter
     private SCPredicate predicate;
     private List<String> layerIds;
     private String featureId;
+    /**
+     * The properties to return for each feature; all of them are returned when this is empty.
+     */
+    private List<String> propertyNames = new ArrayList<>();
+    private SCGeometryProjection geometryProjection = SCGeometryProjection.SCGEOMETRY_PROJECTION_FULL;
 
     private int limit = 100;
 
@@ -66,4 +76,73 @@ public class SCQueryFilter
     public void setFeatureId(String s) {
         this.featureId = s;
     }
+
+    public void addPropertyName(String propertyName) {
+        propertyNames.add(propertyName);
+    }
+
+    public List<String> getPropertyNames() {
+        return this.propertyNames;
+    }
+
+    public SCGeometryProjection getGeometryProjection() {
+        return geometryProjection;
+    }
+
+    public void setGeometryProjection(SCGeometryProjection geometryProjection) {
+        this.geometryProjection = geometryProjection;
+    }
+
+    /**
+     * @return true if the filter asks for less than the full feature
+     */
+    public boolean hasProjection() {
+        return propertyNames.size() > 0
+                || geometryProjection != SCGeometryProjection.SCGEOMETRY_PROJECTION_FULL;
+    }
+
+    /**
+     * Applies the projection to a feature that was read in full, for stores that can't push the projection down to
+     * where the features are read.
+     *
+     * @param feature the full feature
+     * @return the feature with only the projected properties and geometry
+     */
+    public SCSpatialFeature applyProjection(SCSpatialFeature feature) {
+        if (!hasProjection()) {
+            return feature;
+        }
+        SCSpatialFeature projected = feature;
+        if (feature instanceof SCGeometry) {
+            Geometry geometry = ((SCGeometry) feature).getGeometry();
+            if (geometryProjection == SCGeometryProjection.SCGEOMETRY_PROJECTION_NONE || geometry == null) {
+                projected = new SCSpatialFeature();
+            }
+            else if (geometryProjection == SCGeometryProjection.SCGEOMETRY_PROJECTION_ENVELOPE) {
+                Geometry envelope = geometry.getEnvelope();
+                envelope.setSRID(geometry.getSRID());
+                projected = new SCGeometry(envelope);
+            }
+        }
+        if (projected != feature) {
+            projected.setId(feature.getId());
+            projected.setStoreId(feature.getStoreId());
+            projected.setLayerId(feature.getLayerId());
+            projected.setCreated(feature.getCreated());
+            projected.setModified(feature.getModified());
+        }
+        if (propertyNames.size() > 0) {
+            Map<String, Object> properties = new HashMap<>();
+            for (String propertyName : propertyNames) {
+                if (feature.getProperties().containsKey(propertyName)) {
+                    properties.put(propertyName, feature.getProperties().get(propertyName));
+                }
+            }
+            projected.setProperties(properties);
+        }
+        else if (projected != feature) {
+            projected.setProperties(feature.getProperties());
+        }
+        return projected;
+    }
 }
@@ -15,6 +15,9 @@ public enum SCCommand {
 	DATASERVICE_UPDATEFEATURE(115),
 	DATASERVICE_DELETEFEATURE(116),
 	DATASERVICE_FORMLIST(117),
+	DATASERVICE_CREATEFEATURES(118),
+	DATASERVICE_UPDATEFEATURES(119),
+	DATASERVICE_DELETEFEATURES(120),
 	SENSORSERVICE_GPS(200),
 	AUTHSERVICE_AUTHENTICATE(300),
 	AUTHSERVICE_LOGOUT(301),
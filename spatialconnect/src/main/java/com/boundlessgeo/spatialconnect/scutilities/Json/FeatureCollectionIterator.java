@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015-2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.scutilities.Json;
+
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the features of a GeoJSON FeatureCollection one at a time from a stream.  Only the feature being read is
+ * held in memory, so the size of the document doesn't matter and the first feature is available as soon as it has
+ * been read.  Features that can't be parsed are skipped.
+ */
+public class FeatureCollectionIterator implements Iterator<SCSpatialFeature>, Closeable {
+
+    private final JsonParser parser;
+    private final JsonUtilities utilities = new JsonUtilities();
+    private boolean inFeatures;
+    private SCSpatialFeature next;
+
+    /**
+     * Creates the iterator and positions it at the start of the features array.  The iterator owns the stream and
+     * closes it in {@link #close()}.
+     *
+     * @param in the stream of the FeatureCollection document
+     * @throws IOException if the document isn't a JSON object
+     */
+    public FeatureCollectionIterator(InputStream in) throws IOException {
+        parser = SCObjectMapper.getMapper().getFactory().createParser(in);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            parser.close();
+            throw new IOException("The GeoJSON document is not an object.");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("features".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                inFeatures = true;
+                return;
+            }
+            // the other members of the collection aren't needed
+            parser.skipChildren();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null && inFeatures) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_OBJECT) {
+                    JsonNode featureNode = parser.readValueAsTree();
+                    next = utilities.getSpatialFeatureFromJson(featureNode);
+                }
+                else if (token == JsonToken.END_ARRAY || token == null) {
+                    inFeatures = false;
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Couldn't read the next feature.", e);
+        }
+        return next != null;
+    }
+
+    @Override
+    public SCSpatialFeature next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SCSpatialFeature feature = next;
+        next = null;
+        return feature;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inFeatures = false;
+        parser.close();
+    }
+}
@@ -90,6 +90,24 @@ public class JsonUtilities
 
 
     public SCSpatialFeature getSpatialFeatureFromJson(String json)
+    {
+        try
+        {
+            return getSpatialFeatureFromJson(SCObjectMapper.getMapper().readTree(json));
+        }
+        catch (Exception ex)
+        {
+            //Log.e(TAG, "Error in getFeatureFromGeoJson(String)", ex);
+            ex.printStackTrace();
+        }
+        return new SCSpatialFeature();
+    }
+
+    /**
+     * Builds a feature from a GeoJSON feature that has already been parsed, so features read from a larger document
+     * don't have to be written back out to a string and parsed again.
+     */
+    public SCSpatialFeature getSpatialFeatureFromJson(JsonNode node)
     {
         SCGeometryFactory factory = new SCGeometryFactory();
         SCSpatialFeature feature = new SCSpatialFeature();
@@ -102,7 +120,6 @@ public class JsonUtilities
         try
         {
             ObjectMapper mapper = SCObjectMapper.getMapper();
-            JsonNode node = mapper.readTree(json);
 
             JsonNode idNode = node.get("id");
             if(idNode != null)
@@ -124,42 +141,19 @@ public class JsonUtilities
 
             JsonNode geometryNode = node.get("geometry");
 
-            if (geometryNode != null) {
-                SCGeometry scGeometry;
-                String type = geometryNode.get("type").asText();
-                String geomJson = geometryNode.toString();
-
-                switch (type.toLowerCase(Locale.US))
+            if (geometryNode != null && !geometryNode.isNull()) {
+                SCGeometry scGeometry = factory.getGeometryFromGeoJson(geometryNode);
+                if (scGeometry == null)
                 {
-                    case "point":
-                        scGeometry = factory.getPointFromGeoJson(geomJson);
-                        break;
-                    case "linestring":
-                        scGeometry = factory.getLineStringFromGeoJson(geomJson);
-                        break;
-                    case "polygon":
-                        scGeometry = factory.getPolygonFromGeoJson(geomJson);
-                        break;
-                    case "multipoint":
-                        scGeometry = factory.getMultiPointFromGeoJson(geomJson);
-                        break;
-                    case "multilinestring":
-                        scGeometry = factory.getMultiLineStringFromGeoJson(geomJson);
-                        break;
-                    case "multipolygon":
-                        scGeometry = factory.getMultiPolygonFromGeoJson(geomJson);
-                        break;
-                    default:
-                        return null;
+                    return null;
                 }
                 feature = scGeometry;
             }
 
-            JavaType javaType = mapper.getTypeFactory().constructMapType(Map.class, String.class, Object.class);
-
             JsonNode propertiesNode = node.get("properties");
-            if (propertiesNode != null)
+            if (propertiesNode != null && !propertiesNode.isNull())
             {
+                JavaType javaType = mapper.getTypeFactory().constructMapType(Map.class, String.class, Object.class);
                 properties = mapper.readValue(propertiesNode.traverse(), javaType);
             }
 
@@ -167,14 +161,17 @@ public class JsonUtilities
             {
                 feature.setId(id);
             }
-            SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-            if(created != null)
-            {
-                feature.setCreated(formatter.parse(created));
-            }
-            if(modified != null)
+            if(created != null || modified != null)
             {
-                feature.setModified(formatter.parse(modified));
+                SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+                if(created != null)
+                {
+                    feature.setCreated(formatter.parse(created));
+                }
+                if(modified != null)
+                {
+                    feature.setModified(formatter.parse(modified));
+                }
             }
             if(properties != null)
             {
@@ -25,7 +25,6 @@ import com.boundlessgeo.spatialconnect.config.SCConfig;
 import com.boundlessgeo.spatialconnect.config.SCFormConfig;
 import com.boundlessgeo.spatialconnect.config.SCRemoteConfig;
 import com.boundlessgeo.spatialconnect.config.SCStoreConfig;
-import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
 import com.boundlessgeo.spatialconnect.mqtt.MqttHandler;
 import com.boundlessgeo.spatialconnect.mqtt.QoS;
 import com.boundlessgeo.spatialconnect.mqtt.SCNotification;
@@ -36,18 +35,26 @@ import com.boundlessgeo.spatialconnect.scutilities.Json.SCObjectMapper;
 import com.boundlessgeo.spatialconnect.scutilities.SCTuple;
 import com.boundlessgeo.spatialconnect.services.authService.SCAuthService;
 import com.boundlessgeo.spatialconnect.stores.ISyncableStore;
+import com.boundlessgeo.spatialconnect.stores.SCChange;
 import com.boundlessgeo.spatialconnect.stores.SCDataStore;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.protobuf.Timestamp;
 
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import rx.Observable;
+import rx.Subscription;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
-import rx.functions.Func2;
 import rx.schedulers.Schedulers;
 import rx.subjects.BehaviorSubject;
 
@@ -60,14 +67,54 @@ public class SCBackendService extends SCService implements SCServiceLifecycle {
 
     private static final String LOG_TAG = SCBackendService.class.getSimpleName();
     private static final String SERVICE_NAME = "SC_BACKEND_SERVICE";
+
+    /**
+     * The default number of unsent changes sent in one sync message.
+     */
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 100;
+
+    /**
+     * The default most bytes of feature payload in one sync message.
+     */
+    public static final int DEFAULT_SYNC_BATCH_BYTES = 256 * 1024;
+
+    /**
+     * How long a sync message can go unacknowledged before its changes are sent again.
+     */
+    public static final long SYNC_DELIVERY_EXPIRY_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The default time changes are kept in a store's change log after they are sent.
+     */
+    public static final long DEFAULT_CHANGE_LOG_RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final long CHANGE_LOG_COMPACTION_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long CHANGE_LOG_COMPACTION_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+    private static final long SYNC_DEBOUNCE_MS = 500;
+    private static final long SYNC_STAMP_INTERVAL_MS = 500;
+    private static final int SYNC_STAMP_MESSAGES = 50;
+
     private Context context;
     private MqttHandler mqttHandler;
     private Observable<SCNotification> notifications;
-    private Observable<Boolean> syncStores;
     private SCAuthService authService;
     private SCConfigService configService;
     private SCSensorService sensorService;
     private SCDataService dataService;
+    private int syncBatchSize = DEFAULT_SYNC_BATCH_SIZE;
+    private int syncBatchBytes = DEFAULT_SYNC_BATCH_BYTES;
+    private final SCSyncLedger<SCChange> syncLedger = new SCSyncLedger<>(SYNC_DELIVERY_EXPIRY_MS);
+    private final SCSyncCoordinator syncCoordinator = new SCSyncCoordinator(
+            new Func1<String, Observable<?>>() {
+                @Override
+                public Observable<?> call(String storeId) {
+                    return syncStore(storeId);
+                }
+            }, SYNC_DEBOUNCE_MS, Schedulers.io());
+    private Subscription deliveries;
+    private Subscription configUpdates;
+    private Subscription changeLogCompaction;
+    private volatile long changeLogRetentionMs = DEFAULT_CHANGE_LOG_RETENTION_MS;
 
     /**
      * Behavior Observable emitting True when the SpatialConnect SCConfig has been received
@@ -262,10 +309,30 @@ public class SCBackendService extends SCService implements SCServiceLifecycle {
         sensorService = (SCSensorService) deps.get(SCSensorService.serviceId());
         dataService = (SCDataService) deps.get(SCDataService.serviceId());
         listenForNetworkConnection();
+        setupDeliveryListener();
         setupSyncListener();
+        setupChangeLogCompaction();
         return super.start(deps);
     }
 
+    @Override
+    public boolean stop() {
+        syncCoordinator.stop();
+        if (deliveries != null) {
+            deliveries.unsubscribe();
+            deliveries = null;
+        }
+        if (configUpdates != null) {
+            configUpdates.unsubscribe();
+            configUpdates = null;
+        }
+        if (changeLogCompaction != null) {
+            changeLogCompaction.unsubscribe();
+            changeLogCompaction = null;
+        }
+        return super.stop();
+    }
+
     @Override
     public String getId() {
         return SERVICE_NAME;
@@ -435,7 +502,11 @@ public class SCBackendService extends SCService implements SCServiceLifecycle {
                 })
                 .mergeWith(CloudMessagingService.getMulticast());
 
-        listenOnTopic("/config/update").subscribe(new Action1<SCMessageOuterClass.SCMessage>() {
+        // called again on reconnect, so replace the previous listener rather than handling each update twice
+        if (configUpdates != null) {
+            configUpdates.unsubscribe();
+        }
+        configUpdates = listenOnTopic("/config/update").subscribe(new Action1<SCMessageOuterClass.SCMessage>() {
             @Override
             public void call(SCMessageOuterClass.SCMessage scMessage) {
                 Log.d("FormStore","action: " + scMessage.getAction());
@@ -540,92 +611,216 @@ public class SCBackendService extends SCService implements SCServiceLifecycle {
     }
 
     private void setupSyncListener() {
-        //sync all stores when connection to broker is true
-        connectedToBroker
-                .filter(new Func1<Boolean, Boolean>() {
+        // edits are signalled per store, including stores that start after this; the coordinator debounces them and
+        // syncs one store at a time
+        syncCoordinator.start(connectedToBroker, dataService.storeEdits(), new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                return dataService.getISyncableStores()
+                        .map(new Func1<SCDataStore, String>() {
+                            @Override
+                            public String call(SCDataStore scDataStore) {
+                                return scDataStore.getStoreId();
+                            }
+                        });
+            }
+        });
+    }
+
+    // returns the sync of the store, which completes once all its unsent changes not already in flight are sent
+    private Observable<SCSyncBatch> syncStore(String storeId) {
+        SCDataStore dataStore = dataService.getStoreByIdentifier(storeId);
+        if (!(dataStore instanceof ISyncableStore)) {
+            return Observable.empty();
+        }
+        final ISyncableStore store = (ISyncableStore) dataStore;
+        int expired = syncLedger.expire();
+        if (expired > 0) {
+            Log.w(LOG_TAG, expired + " changes were not acknowledged by the broker, they will be sent again");
+        }
+        return store.unSent()
+                .filter(new Func1<SCChange, Boolean>() {
                     @Override
-                    public Boolean call(Boolean sync) {
-                        return sync;
+                    public Boolean call(SCChange change) {
+                        return !syncLedger.isInFlight(change);
                     }
                 })
-                .subscribe(new Action1<Boolean>() {
+                .buffer(syncBatchSize)
+                .concatMap(new Func1<List<SCChange>, Observable<SCSyncBatch>>() {
                     @Override
-                    public void call(Boolean sync) {
-                        Log.d(LOG_TAG, "sync all stores");
-                        syncStores();
+                    public Observable<SCSyncBatch> call(List<SCChange> changes) {
+                        return Observable.from(SCSyncBatch.fromChanges(store, changes, syncBatchBytes));
                     }
-                });
-
-        Observable<SCSpatialFeature>  syncableStores = dataService.getISyncableStores()
-                .flatMap(new Func1<SCDataStore, Observable<SCSpatialFeature>>() {
+                })
+                .doOnNext(new Action1<SCSyncBatch>() {
                     @Override
-                    public Observable<SCSpatialFeature> call(SCDataStore scDataStore) {
-                        return scDataStore.storeEdited;
+                    public void call(SCSyncBatch batch) {
+                        List<SCChange> changes = batch.getChanges();
+                        syncLedger.reserve(changes);
+                        publishBatch(store, batch, changes);
                     }
                 });
-        //syncs a single store when edits are found
-        syncStores = Observable.combineLatest(syncableStores, connectedToBroker, new Func2<SCSpatialFeature, Boolean, Boolean>() {
-            @Override
-            public Boolean call(final SCSpatialFeature feature, Boolean connected) {
-                Log.d(LOG_TAG, "should sync single store");
-                final ISyncableStore store = (ISyncableStore)dataService.getStoreByIdentifier(feature.getStoreId());
-                syncStore(store);
-                return connected;
-            }
-        });
+    }
 
-        connectedToBroker.mergeWith(syncStores)
-                .subscribeOn(Schedulers.newThread())
-                .subscribe();
+    private void publishBatch(ISyncableStore store, SCSyncBatch batch, List<SCChange> changes) {
+        Log.d(LOG_TAG, String.format("sending %d %s changes (%d bytes) to %s",
+                batch.size(), batch.getOperation().name().toLowerCase(Locale.US), batch.getBytes(),
+                store.syncChannel()));
+        SCMessageOuterClass.SCMessage message = SCMessageOuterClass.SCMessage.newBuilder()
+                .setAction(batch.getAction().value())
+                .setPayload(batch.getPayload())
+                .setJwt(getJwt())
+                .setTime(getTimestamp())
+                .build();
+        // hold the ledger while publishing so the delivery can't be handled before the token is recorded
+        synchronized (syncLedger) {
+            try {
+                IMqttDeliveryToken token = mqttHandler.publishNow(
+                        store.syncChannel(), message, QoS.AT_LEAST_ONCE.value());
+                syncLedger.record(token, changes);
+            } catch (MqttException e) {
+                // the changes stay unsent and are picked up by the next sync
+                Log.w(LOG_TAG, "Could not send " + batch.size() + " changes to " + store.syncChannel(), e);
+                syncLedger.release(changes);
+            }
+        }
     }
 
-    private void syncStores() {
+    private void setupDeliveryListener() {
+        if (deliveries != null) {
+            deliveries.unsubscribe();
+        }
+        deliveries = mqttHandler.getDeliveries()
+                .map(new Func1<IMqttDeliveryToken, List<SCChange>>() {
+                    @Override
+                    public List<SCChange> call(IMqttDeliveryToken token) {
+                        return syncLedger.complete(token);
+                    }
+                })
+                .filter(new Func1<List<SCChange>, Boolean>() {
+                    @Override
+                    public Boolean call(List<SCChange> changes) {
+                        return !changes.isEmpty();
+                    }
+                })
+                // stamp the deliveries of a burst of acknowledgements together
+                .buffer(SYNC_STAMP_INTERVAL_MS, TimeUnit.MILLISECONDS, SYNC_STAMP_MESSAGES)
+                .filter(new Func1<List<List<SCChange>>, Boolean>() {
+                    @Override
+                    public Boolean call(List<List<SCChange>> delivered) {
+                        return !delivered.isEmpty();
+                    }
+                })
+                .observeOn(Schedulers.io())
+                .subscribe(new Action1<List<List<SCChange>>>() {
+                    @Override
+                    public void call(List<List<SCChange>> delivered) {
+                        markSent(delivered);
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable t) {
+                        Log.e(LOG_TAG, "Could not mark delivered changes as sent: " + t.getMessage());
+                    }
+                });
+    }
 
-        dataService.getISyncableStores()
-                .subscribe(new Action1<SCDataStore>() {
+    // periodically deletes the changes that were sent longer ago than the retention
+    private void setupChangeLogCompaction() {
+        if (changeLogCompaction != null) {
+            changeLogCompaction.unsubscribe();
+        }
+        changeLogCompaction = Observable.interval(CHANGE_LOG_COMPACTION_DELAY_MS, CHANGE_LOG_COMPACTION_INTERVAL_MS,
+                TimeUnit.MILLISECONDS, Schedulers.io())
+                .subscribe(new Action1<Long>() {
+                    @Override
+                    public void call(Long tick) {
+                        compactChangeLogs();
+                    }
+                }, new Action1<Throwable>() {
                     @Override
-                    public void call(SCDataStore scDataStore) {
-                        syncStore((ISyncableStore) scDataStore);
+                    public void call(Throwable t) {
+                        Log.e(LOG_TAG, "Could not compact change logs: " + t.getMessage());
                     }
                 });
     }
 
-    private void syncStore(final ISyncableStore store) {
-        store.unSent().subscribe(new Action1<SCSpatialFeature>() {
-            @Override
-            public void call(final SCSpatialFeature scSpatialFeature) {
-                sensorService.isConnected()
-                        .filter(new Func1<Boolean, Boolean>() {
-                            @Override
-                            public Boolean call(Boolean connected) {
-                                return connected;
-                            }
-                        })
-                        .subscribe(new Action1<Boolean>() {
-                            @Override
-                            public void call(Boolean connected) {
-                                send(scSpatialFeature);
-                            }
-                        });
+    /**
+     * Deletes the changes of every running syncable store that were sent longer ago than the change log retention.
+     * This runs periodically in the background once the service has started.
+     */
+    public void compactChangeLogs() {
+        for (SCDataStore store : dataService.getISyncableStores().toList().toBlocking().first()) {
+            int rows = ((ISyncableStore) store).compactChangeLog(changeLogRetentionMs, TimeUnit.MILLISECONDS);
+            if (rows > 0) {
+                Log.d(LOG_TAG, String.format("deleted %d sent changes from %s", rows, store.getStoreId()));
             }
-        });
+        }
     }
 
-    private void send(final SCSpatialFeature feature) {
-        final ISyncableStore store = (ISyncableStore)dataService.getStoreByIdentifier(feature.getStoreId());
-        Map<String, Object> featurePayload = store.generateSendPayload(feature);
-        String payload;
-        try {
-            payload = SCObjectMapper.getMapper().writeValueAsString(featurePayload);
-            SCMessageOuterClass.SCMessage message = SCMessageOuterClass.SCMessage.newBuilder()
-                    .setAction(SCCommand.DATASERVICE_CREATEFEATURE.value())
-                    .setPayload(payload)
-                    .build();
-            publishExactlyOnce(store.syncChannel(), message);
-            store.updateAuditTable(feature);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
+    /**
+     * Sets how long changes are kept after the broker acknowledges them, before compaction deletes them.
+     */
+    public void setChangeLogRetention(long retention, TimeUnit unit) {
+        this.changeLogRetentionMs = unit.toMillis(retention);
+    }
+
+    // marks the delivered changes sent with one transaction per store
+    private void markSent(List<List<SCChange>> delivered) {
+        Map<String, List<SCChange>> changesByStore = new HashMap<>();
+        for (List<SCChange> changes : delivered) {
+            for (SCChange change : changes) {
+                List<SCChange> storeChanges = changesByStore.get(change.getStoreId());
+                if (storeChanges == null) {
+                    storeChanges = new ArrayList<>();
+                    changesByStore.put(change.getStoreId(), storeChanges);
+                }
+                storeChanges.add(change);
+            }
         }
+        for (Map.Entry<String, List<SCChange>> entry : changesByStore.entrySet()) {
+            SCDataStore store = dataService.getStoreByIdentifier(entry.getKey());
+            try {
+                if (store instanceof ISyncableStore) {
+                    ((ISyncableStore) store).markSent(entry.getValue());
+                }
+            } finally {
+                syncLedger.release(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Sets the most unsent changes a store sends in a single sync message.
+     *
+     * @param syncBatchSize the number of changes per message, must be greater than 0
+     */
+    public void setSyncBatchSize(int syncBatchSize) {
+        if (syncBatchSize < 1) {
+            throw new IllegalArgumentException("The sync batch size must be greater than 0.");
+        }
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    public int getSyncBatchSize() {
+        return syncBatchSize;
+    }
+
+    /**
+     * Sets the most bytes of feature payload in a single sync message.  A feature larger than this is sent in a
+     * message of its own.
+     *
+     * @param syncBatchBytes the payload size per message, must be greater than 0
+     */
+    public void setSyncBatchBytes(int syncBatchBytes) {
+        if (syncBatchBytes < 1) {
+            throw new IllegalArgumentException("The sync batch bytes must be greater than 0.");
+        }
+        this.syncBatchBytes = syncBatchBytes;
+    }
+
+    public int getSyncBatchBytes() {
+        return syncBatchBytes;
     }
 
     public static String serviceId() {
@@ -31,26 +31,34 @@ import com.boundlessgeo.spatialconnect.stores.SCDataStoreLifeCycle;
 import com.boundlessgeo.spatialconnect.stores.SCDataStoreStatus;
 import com.boundlessgeo.spatialconnect.stores.SCRasterStore;
 import com.boundlessgeo.spatialconnect.stores.SCRemoteDataStore;
+import com.boundlessgeo.spatialconnect.stores.SCStoreStartupTiming;
 import com.boundlessgeo.spatialconnect.stores.SCStoreStatusEvent;
 import com.boundlessgeo.spatialconnect.stores.WFSStore;
 import com.boundlessgeo.spatialconnect.style.SCStyle;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscriber;
+import rx.Subscription;
 import rx.android.schedulers.AndroidSchedulers;
 import rx.functions.Action0;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 import rx.observables.ConnectableObservable;
+import rx.schedulers.Schedulers;
 import rx.subjects.BehaviorSubject;
 
 import static java.util.Arrays.asList;
@@ -65,10 +73,40 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     private static final String SERVICE_NAME = "SC_DATA_SERVICE";
     private Set<String> supportedStores; // the strings are store keys: type.version
     private Map<String, SCDataStore> stores;
+    /**
+     * Views of the registered stores, kept up to date as stores are registered and change status so lookups don't
+     * have to scan every store.
+     */
+    private final ConcurrentHashMap<String, Set<SCDataStore>> storesByType = new ConcurrentHashMap<>();
+    private final Set<SCDataStore> spatialStores = newStoreSet();
+    private final Set<SCDataStore> rasterStores = newStoreSet();
+    private final Set<SCDataStore> syncableStores = newStoreSet();
+    private final Map<String, SCDataStore> runningStores = new ConcurrentHashMap<>();
+    private final Map<String, Subscription> statusSubscriptions = new ConcurrentHashMap<>();
+    /**
+     * The stores that were asked to stop while they were starting.  The stop is finished once their start completes,
+     * since a store may set its own status while it starts.
+     */
+    private final Set<SCDataStore> stopsWhileStarting = newStoreSet();
     private Map<String, Class> supportedStoreImpls;
     private Context context;
     private SCSensorService sensorService;
 
+    /**
+     * The number of stores that can be queried at the same time by {@link #queryAllStores(SCQueryFilter)} and
+     * {@link #queryStoresByIds(List, SCQueryFilter)}.
+     */
+    private static final int QUERY_POOL_SIZE = 4;
+    private static final long DEFAULT_STORE_QUERY_TIMEOUT_MS = 10000;
+    private final Scheduler queryScheduler = Schedulers.from(Executors.newFixedThreadPool(QUERY_POOL_SIZE));
+    /**
+     * The number of stores that can be started at the same time.
+     */
+    private static final int STARTUP_POOL_SIZE = 4;
+    private final Scheduler startupScheduler = Schedulers.from(Executors.newFixedThreadPool(STARTUP_POOL_SIZE));
+    private volatile long storeQueryTimeoutMs = DEFAULT_STORE_QUERY_TIMEOUT_MS;
+    private final SCQueryCache queryCache = new SCQueryCache();
+
     /**
      * The storeEventSubject is like an internal event bus, its job is to receive {@link SCStoreStatusEvent}s
      * published by a {@link SCDataStore}.
@@ -87,7 +125,7 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     public SCDataService(Context context) {
         super();
         this.supportedStores = new HashSet<>();
-        this.stores = new HashMap<>();
+        this.stores = new ConcurrentHashMap<>();
         this.supportedStoreImpls = new HashMap<>();
 
         // "cold" observable used to emit SCStoreStatusEvents
@@ -107,11 +145,10 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
      */
     public Observable<Void> storeStarted(final String storeId) {
         // if the data service already has a running instance of the store, then it's started
-        for (SCDataStore store : getActiveStores()) {
-            if (storeId.equals(store.getStoreId())) {
-                Log.d(LOG_TAG, "Store " + store.getName() + " was already started");
-                return Observable.empty();
-            }
+        SCDataStore runningStore = runningStores.get(storeId);
+        if (runningStore != null) {
+            Log.d(LOG_TAG, "Store " + runningStore.getName() + " was already started");
+            return Observable.empty();
         }
         // otherwise we wait for the SC_DATA_STORE_RUNNING event for the store.
         return Observable.create(
@@ -143,13 +180,14 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
         if (registerStoreByConfig(config)) {
             SCDataStore store = stores.get(config.getUniqueID());
             if (store != null) {
-                ((SCDataStoreLifeCycle) store).start();
+                // a no-op if registering the store already started it
+                startStore(store);
             }
         }
     }
 
     public void registerStore(SCDataStore store) {
-        this.stores.put(store.getStoreId(), store);
+        putStore(store);
         // if data service is started/running when a new store is added, then we want to start the store
         if (getStatus().equals(SCServiceStatus.SC_SERVICE_RUNNING)) {
             startStore(store);
@@ -188,7 +226,7 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     }
 
     public void unregisterStore(SCDataStore store) {
-        this.stores.remove(store.getStoreId());
+        removeStore(store);
         if (getStatus().equals(SCServiceStatus.SC_SERVICE_RUNNING)) {
             Log.d(LOG_TAG, "Stopping store " + store.getName());
             stopStore(store);
@@ -197,8 +235,13 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     }
 
     public void updateStore(SCDataStore store) {
+        // the registered instance is stopped, which may not be the updated one
+        SCDataStore current = stores.get(store.getStoreId());
+        if (current != null && current != store) {
+            stopStore(current);
+        }
         stopStore(store);
-        stores.put(store.getStoreId(), store);
+        putStore(store);
         startStore(store);
     }
 
@@ -253,12 +296,7 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
 
 
     public List<SCDataStore> getStoreList() {
-        List<SCDataStore> activeStores = new ArrayList<>();
-        for (String key : stores.keySet()) {
-            SCDataStore scDataStore = stores.get(key);
-            activeStores.add(scDataStore);
-        }
-        return activeStores;
+        return new ArrayList<>(stores.values());
     }
 
     /**
@@ -267,26 +305,29 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
      * @return the list of active data stores
      */
     public List<SCDataStore> getActiveStores() {
-        List<SCDataStore> activeStores = new ArrayList<>();
-        for (String key : stores.keySet()) {
-            SCDataStore scDataStore = stores.get(key);
-            if (scDataStore.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
-                activeStores.add(scDataStore);
-            }
-        }
-        return activeStores;
+        return new ArrayList<>(runningStores.values());
     }
 
     public List<SCDataStore> getStoresRaster() {
-        List<SCDataStore> rasterStores = new ArrayList<>();
-        for (String key : stores.keySet()) {
-            SCDataStore scDataStore = stores.get(key);
-            if (scDataStore.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING) &&
-                    scDataStore instanceof SCRasterStore) {
-                rasterStores.add(scDataStore);
+        List<SCDataStore> runningRasterStores = new ArrayList<>();
+        for (SCDataStore store : rasterStores) {
+            if (isRunning(store)) {
+                runningRasterStores.add(store);
             }
         }
-        return rasterStores;
+        return runningRasterStores;
+    }
+
+    /**
+     * Returns the registered stores of a type, such as {@link GeoPackageStore#TYPE}.
+     *
+     * @param type the store type
+     * @return an unmodifiable view of the stores of the type, which is empty if there are none
+     */
+    public Set<SCDataStore> getStoresByType(String type) {
+        Set<SCDataStore> typeStores = type != null ? storesByType.get(type) : null;
+        return typeStores != null ?
+                Collections.unmodifiableSet(typeStores) : Collections.<SCDataStore>emptySet();
     }
 
     /**
@@ -296,12 +337,7 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
      * @return the active SCDataStore instance or null if one doesn't exist
      */
     public SCDataStore getStoreByIdentifier(String id) {
-        for (SCDataStore store : getStoreList()) {
-            if (store.getStoreId().equals(id)) {
-                return store;
-            }
-        }
-        return null;
+        return id != null ? stores.get(id) : null;
     }
 
     public List<SCDataStore> getISCSpatialStoresArray() {
@@ -313,54 +349,116 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     }
 
     public Observable<SCDataStore> getISCSpatialStores(final Boolean onlyRunning) {
-        return Observable.from(stores.values())
-                .filter(new Func1<SCDataStore, Boolean>() {
-                    @Override
-                    public Boolean call(final SCDataStore store) {
-                        return (store instanceof ISCSpatialStore);
-                    }
-                })
+        if (!onlyRunning) {
+            return Observable.from(spatialStores);
+        }
+        return Observable.from(spatialStores)
                 .filter(new Func1<SCDataStore, Boolean>() {
                     @Override
                     public Boolean call(final SCDataStore store) {
-                        if (!onlyRunning) {
-                            return true;
-                        } else {
-                            return store.getStatus() == SCDataStoreStatus.SC_DATA_STORE_RUNNING;
-                        }
+                        return isRunning(store);
                     }
                 });
     }
 
     public Observable<SCDataStore> getISyncableStores() {
-        return Observable.from(stores.values())
+        return Observable.from(syncableStores)
                 .filter(new Func1<SCDataStore, Boolean>() {
                     @Override
                     public Boolean call(final SCDataStore store) {
-                        return (store instanceof ISyncableStore);
-                    }
-                })
-                .filter(new Func1<SCDataStore, Boolean>() {
-                    @Override
-                    public Boolean call(final SCDataStore store) {
-                        return store.getStatus() == SCDataStoreStatus.SC_DATA_STORE_RUNNING;
+                        return isRunning(store);
                     }
                 });
     }
 
+    /**
+     * Emits the id of a syncable store each time it's edited.  The stores that are running when this is subscribed
+     * to are followed right away and the others once they're running, so stores that start later, or are added by a
+     * later config, are included.  A store is followed until it stops.
+     */
+    public Observable<String> storeEdits() {
+        return Observable.defer(new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                final Set<SCDataStore> followed = newStoreSet();
+                Observable<SCDataStore> startedStores = storeEventSubject
+                        .filter(new Func1<SCStoreStatusEvent, Boolean>() {
+                            @Override
+                            public Boolean call(SCStoreStatusEvent event) {
+                                return event.getStatus() == SCDataStoreStatus.SC_DATA_STORE_RUNNING;
+                            }
+                        })
+                        .map(new Func1<SCStoreStatusEvent, SCDataStore>() {
+                            @Override
+                            public SCDataStore call(SCStoreStatusEvent event) {
+                                return runningStores.get(event.getStoreId());
+                            }
+                        })
+                        .filter(new Func1<SCDataStore, Boolean>() {
+                            @Override
+                            public Boolean call(SCDataStore store) {
+                                return store != null && syncableStores.contains(store);
+                            }
+                        });
+                return getISyncableStores().concatWith(startedStores)
+                        .flatMap(new Func1<SCDataStore, Observable<String>>() {
+                            @Override
+                            public Observable<String> call(final SCDataStore store) {
+                                // the last event is replayed, so a store can be seen more than once
+                                if (!followed.add(store)) {
+                                    return Observable.empty();
+                                }
+                                return store.storeEdited
+                                        .map(new Func1<SCSpatialFeature, String>() {
+                                            @Override
+                                            public String call(SCSpatialFeature feature) {
+                                                return store.getStoreId();
+                                            }
+                                        })
+                                        .takeUntil(storeEventSubject.filter(
+                                                new Func1<SCStoreStatusEvent, Boolean>() {
+                                                    @Override
+                                                    public Boolean call(SCStoreStatusEvent event) {
+                                                        return event.getStatus() ==
+                                                                SCDataStoreStatus.SC_DATA_STORE_REMOVED &&
+                                                                store.getStoreId().equals(event.getStoreId()) &&
+                                                                !isRunning(store);
+                                                    }
+                                                }))
+                                        .doOnUnsubscribe(new Action0() {
+                                            @Override
+                                            public void call() {
+                                                followed.remove(store);
+                                            }
+                                        });
+                            }
+                        });
+            }
+        });
+    }
+
     public List<SCDataStore> getISCSpatialStoresArray(final Boolean onlyRunning) {
         return getISCSpatialStores(onlyRunning).toList().toBlocking().first();
     }
 
+    /**
+     * Sets how long a store has to return its features for a query across stores.  The features a store returns
+     * before its deadline are kept; the rest of its query is cancelled so a slow store can't hold up the others.
+     */
+    public void setStoreQueryTimeout(long timeout, TimeUnit unit) {
+        this.storeQueryTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * @return the cache of the features returned by {@link #queryAllStores(SCQueryFilter)} and
+     * {@link #queryStoresByIds(List, SCQueryFilter)}
+     */
+    public SCQueryCache getQueryCache() {
+        return queryCache;
+    }
+
     public Observable<SCSpatialFeature> queryAllStores(final SCQueryFilter filter) {
-        return Observable.from(getISCSpatialStoresArray())
-                .flatMap(new Func1<SCDataStore, Observable<SCSpatialFeature>>() {
-                    @Override
-                    public Observable<SCSpatialFeature> call(SCDataStore scDataStore) {
-                        Log.d(LOG_TAG, "Querying store " + scDataStore.getName());
-                        return ((ISCSpatialStore) scDataStore).query(filter);
-                    }
-                });
+        return queryStoresInParallel(Observable.from(getISCSpatialStoresArray()), filter);
     }
 
     public Observable<SCSpatialFeature> queryStores(List<SCDataStore> stores, final SCQueryFilter filter) {
@@ -377,19 +475,60 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
 
     public Observable<SCSpatialFeature> queryStoresByIds(final List<String> storeIds, final SCQueryFilter filter) {
 
-        return getISCSpatialStores().filter(new Func1<SCDataStore, Boolean>() {
+        return queryStoresInParallel(getISCSpatialStores().filter(new Func1<SCDataStore, Boolean>() {
             @Override
             public Boolean call(SCDataStore scDataStore) {
                     return storeIds.contains(scDataStore.getStoreId());
                 }
-            })
-            .flatMap(new Func1<SCDataStore, Observable<SCSpatialFeature>>() {
-                @Override
-                public Observable<SCSpatialFeature> call(SCDataStore scDataStore) {
-                    Log.d(LOG_TAG, "Querying store " + scDataStore.getName());
-                    return ((ISCSpatialStore) scDataStore).query(filter);
-                }
-            });
+            }), filter);
+    }
+
+    /**
+     * Queries each store through the query cache on the query pool and merges the features as they arrive.  Each
+     * store's query ends when the store has read its features and is only cut off at the store query timeout if it
+     * stalls.  A store that fails is logged and left out.  The filter's limit applies to the merged features, so once
+     * that many have arrived the queries still running are unsubscribed.
+     */
+    private Observable<SCSpatialFeature> queryStoresInParallel(Observable<SCDataStore> stores,
+                                                               final SCQueryFilter filter) {
+        final long timeoutMs = storeQueryTimeoutMs;
+        return stores
+                .flatMap(new Func1<SCDataStore, Observable<SCSpatialFeature>>() {
+                    @Override
+                    public Observable<SCSpatialFeature> call(final SCDataStore scDataStore) {
+                        Log.d(LOG_TAG, "Querying store " + scDataStore.getName());
+                        Observable<Long> deadline = Observable.timer(timeoutMs, TimeUnit.MILLISECONDS)
+                                .doOnNext(new Action1<Long>() {
+                                    @Override
+                                    public void call(Long tick) {
+                                        Log.w(LOG_TAG, "Query of store " + scDataStore.getName() +
+                                                " timed out after " + timeoutMs + " ms");
+                                    }
+                                });
+                        return queryCache.query(scDataStore, filter)
+                                .subscribeOn(queryScheduler)
+                                .takeUntil(deadline)
+                                .onErrorResumeNext(new Func1<Throwable, Observable<SCSpatialFeature>>() {
+                                    @Override
+                                    public Observable<SCSpatialFeature> call(Throwable t) {
+                                        Log.e(LOG_TAG, "Could not query store " + scDataStore.getName(), t);
+                                        return Observable.empty();
+                                    }
+                                });
+                    }
+                })
+                .take(filter.getLimit());
+    }
+
+    /**
+     * Creates a query that follows a map viewport across the tile grid, querying only the tiles that come into view.
+     *
+     * @param storeIds the stores to query, or null to query all of them
+     * @param filter   the layers, projection and per tile limit of the queries; its predicate is ignored
+     * @return the viewport query
+     */
+    public SCViewportQuery createViewportQuery(List<String> storeIds, SCQueryFilter filter) {
+        return new SCViewportQuery(this, storeIds, filter);
     }
 
     public Observable<SCSpatialFeature> queryStoreById(String storeId, final SCQueryFilter filter) {
@@ -399,20 +538,20 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     }
 
     public FormStore getFormStore() {
-        for (SCDataStore store : stores.values()) {
-            if (store.getName().equals(FormStore.NAME)) {
-                return (FormStore) store;
-            }
+        // the form store is registered with its name as its id
+        SCDataStore store = stores.get(FormStore.NAME);
+        if (store instanceof FormStore) {
+            return (FormStore) store;
         }
         Log.w(LOG_TAG, "Form store was not found!");
         return null;
     }
 
     public LocationStore getLocationStore() {
-        for (SCDataStore store : stores.values()) {
-            if (store.getName().equals(LocationStore.NAME)) {
-                return (LocationStore) store;
-            }
+        // the location store is registered with its name as its id
+        SCDataStore store = stores.get(LocationStore.NAME);
+        if (store instanceof LocationStore) {
+            return (LocationStore) store;
         }
         Log.w(LOG_TAG, "Location store was not found!");
         return null;
@@ -437,7 +576,10 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     @Override
     public boolean stop() {
         stopAllStores();
-        stores.clear();
+        queryCache.clear();
+        for (SCDataStore store : getStoreList()) {
+            removeStore(store);
+        }
         hasStores.onNext(false);
         return super.stop();
     }
@@ -464,9 +606,65 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
         }
     }
 
+    /**
+     * Moves a store to STARTING unless it's already running or being started or stopped.  Only one of the threads
+     * racing to start a store will see true.
+     */
+    private static boolean beginStart(SCDataStore store) {
+        while (true) {
+            SCDataStoreStatus status = store.getStatus();
+            switch (status) {
+                case SC_DATA_STORE_RUNNING:
+                case SC_DATA_STORE_STARTING:
+                case SC_DATA_STORE_STARTED:
+                case SC_DATA_STORE_DOWNLOADING_DATA:
+                case SC_DATA_STORE_STOPPING:
+                    return false;
+                default:
+                    if (store.compareAndSetStatus(status, SCDataStoreStatus.SC_DATA_STORE_STARTING)) {
+                        return true;
+                    }
+            }
+        }
+    }
+
+    /**
+     * Moves a store that finished starting to the given status, unless it was stopped while it was starting.
+     */
+    private boolean finishStart(SCDataStore store, SCDataStoreStatus finalStatus) {
+        if (stopsWhileStarting.remove(store)) {
+            return false;
+        }
+        while (true) {
+            SCDataStoreStatus status = store.getStatus();
+            if (status == SCDataStoreStatus.SC_DATA_STORE_STOPPING ||
+                    status == SCDataStoreStatus.SC_DATA_STORE_STOPPED) {
+                return false;
+            }
+            if (store.compareAndSetStatus(status, finalStatus)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Starts a store on the startup pool.  The stores don't depend on each other, so up to {@link #STARTUP_POOL_SIZE}
+     * of them open their databases or download their data at the same time.  The RUNNING or START_FAILED event of the
+     * store carries how long each phase of the start took.
+     */
     private void startStore(final SCDataStore store) {
-        if (!store.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
+        if (beginStart(store)) {
+            final long[] startedAt = new long[1];
             ((SCDataStoreLifeCycle) store).start()
+                    .doOnSubscribe(new Action0() {
+                        @Override
+                        public void call() {
+                            // measured from here so the time spent waiting for a startup thread isn't counted
+                            store.getStartupTiming().reset();
+                            startedAt[0] = System.currentTimeMillis();
+                        }
+                    })
+                    .subscribeOn(startupScheduler)
                     .observeOn(AndroidSchedulers.mainThread())
                     .sample(2, TimeUnit.SECONDS)
                     .subscribe(new Action1<SCStoreStatusEvent>() {
@@ -481,18 +679,29 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
                             String errorMsg = (t != null) ? t.getLocalizedMessage() : "no message available";
                             Log.e(LOG_TAG,"Unable to start store: " + store.getStoreId() + " with error: " + errorMsg);
                             // onError can happen if we cannot start the store b/c of some error or runtime exception
-                            storeEventSubject.onNext(
-                                    new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_START_FAILED, store.getStoreId())
-                            );
+                            if (!finishStart(store, SCDataStoreStatus.SC_DATA_STORE_START_FAILED)) {
+                                completeStop(store);
+                                return;
+                            }
+                            storeEventSubject.onNext(new SCStoreStatusEvent(
+                                    SCDataStoreStatus.SC_DATA_STORE_START_FAILED,
+                                    store.getStoreId(),
+                                    recordStartupTotal(store, startedAt[0])
+                            ));
                         }
                     }, new Action0() {
                         @Override
                         public void call() {
-                            Log.d(LOG_TAG, "Store " + store.getName() + " is running.");
-                            store.setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
-                            storeEventSubject.onNext(
-                                    new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_RUNNING, store.getStoreId())
-                            );
+                            if (!finishStart(store, SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
+                                Log.d(LOG_TAG, "Store " + store.getName() + " was stopped while it was starting.");
+                                completeStop(store);
+                                return;
+                            }
+                            SCStoreStartupTiming timing = recordStartupTotal(store, startedAt[0]);
+                            Log.d(LOG_TAG, "Store " + store.getName() + " is running, started in " + timing);
+                            storeEventSubject.onNext(new SCStoreStatusEvent(
+                                    SCDataStoreStatus.SC_DATA_STORE_RUNNING, store.getStoreId(), timing
+                            ));
 
                             hasStores.onNext(true);
                         }
@@ -500,19 +709,57 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
         }
     }
 
+    private static SCStoreStartupTiming recordStartupTotal(SCDataStore store, long startedAt) {
+        SCStoreStartupTiming timing = store.getStartupTiming();
+        timing.record(SCStoreStartupTiming.TOTAL, System.currentTimeMillis() - startedAt);
+        return timing;
+    }
+
+    /**
+     * Stops a running store.  A store that is still starting is moved to STOPPING and is stopped by its start once
+     * that completes, so it never ends up running.
+     */
     private void stopStore(final SCDataStore store) {
-        if (store.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
-            Log.d(LOG_TAG, "Stopping store " + store.getName() + " " + store.getStoreId());
-            ((SCDataStoreLifeCycle) store).stop();
-            stores.remove(store);
-            storeEventSubject.onNext(
-                    new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_REMOVED, store.getStoreId()));
-            if (stores.size() > 0) {
-                hasStores.onNext(true);
+        while (true) {
+            SCDataStoreStatus status = store.getStatus();
+            switch (status) {
+                case SC_DATA_STORE_RUNNING:
+                    if (store.compareAndSetStatus(status, SCDataStoreStatus.SC_DATA_STORE_STOPPING)) {
+                        completeStop(store);
+                        return;
+                    }
+                    break;
+                case SC_DATA_STORE_STARTING:
+                case SC_DATA_STORE_STARTED:
+                case SC_DATA_STORE_DOWNLOADING_DATA:
+                    // recorded before the transition so the start can't complete between the two unnoticed
+                    stopsWhileStarting.add(store);
+                    if (store.compareAndSetStatus(status, SCDataStoreStatus.SC_DATA_STORE_STOPPING)) {
+                        Log.d(LOG_TAG, "Store " + store.getName() + " will stop once it has started.");
+                        return;
+                    }
+                    stopsWhileStarting.remove(store);
+                    break;
+                default:
+                    return;
             }
         }
     }
 
+    // stops a store that was moved to STOPPING, by stopStore or by its start completing after a stop was asked for
+    private void completeStop(final SCDataStore store) {
+        Log.d(LOG_TAG, "Stopping store " + store.getName() + " " + store.getStoreId());
+        ((SCDataStoreLifeCycle) store).stop();
+        store.setStatus(SCDataStoreStatus.SC_DATA_STORE_STOPPED);
+        queryCache.invalidateStore(store.getStoreId());
+        removeStore(store);
+        storeEventSubject.onNext(
+                new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_REMOVED, store.getStoreId()));
+        if (stores.size() > 0) {
+            hasStores.onNext(true);
+        }
+    }
+
     private void destroyStore(final SCDataStore store) {
         if (store.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
             ((SCDataStoreLifeCycle) store).destroy();
@@ -523,7 +770,7 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
     }
 
     private void pauseRemoteStores() {
-        for (SCDataStore store : stores.values()) {
+        for (SCDataStore store : runningStores.values()) {
             if (store instanceof SCRemoteDataStore && store.getStatus().equals(SCDataStoreStatus.SC_DATA_STORE_RUNNING)) {
                 ((SCRemoteDataStore) store).pause();
                 storeEventSubject.onNext(
@@ -563,7 +810,7 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
         formStoreConfig.setType("gpkg");
         formStoreConfig.setVersion("1");
         FormStore formStore = new FormStore(context, formStoreConfig);
-        this.stores.put(formStore.getStoreId(), formStore);
+        putStore(formStore);
     }
 
     private void initializeLocationStore() {
@@ -574,7 +821,88 @@ public class SCDataService extends SCService implements SCServiceLifecycle {
         locationStoreConfig.setType("gpkg");
         locationStoreConfig.setVersion("1");
         LocationStore locationStore = new LocationStore(context, locationStoreConfig);
-        this.stores.put(locationStore.getStoreId(), locationStore);
+        putStore(locationStore);
+    }
+
+    // registers a store, replacing any store with the same id, and adds it to the views of the stores
+    private void putStore(final SCDataStore store) {
+        SCDataStore previous = stores.put(store.getStoreId(), store);
+        if (previous == store) {
+            // already registered and indexed, and its status is already followed
+            return;
+        }
+        if (previous != null) {
+            unindexStore(previous);
+        }
+        if (store.getType() != null) {
+            Set<SCDataStore> typeStores = storesByType.get(store.getType());
+            if (typeStores == null) {
+                Set<SCDataStore> newTypeStores = newStoreSet();
+                typeStores = storesByType.putIfAbsent(store.getType(), newTypeStores);
+                if (typeStores == null) {
+                    typeStores = newTypeStores;
+                }
+            }
+            typeStores.add(store);
+        }
+        if (store instanceof ISCSpatialStore) {
+            spatialStores.add(store);
+        }
+        if (store instanceof SCRasterStore) {
+            rasterStores.add(store);
+        }
+        if (store instanceof ISyncableStore) {
+            syncableStores.add(store);
+        }
+        updateRunningStores(store, store.getStatus());
+        statusSubscriptions.put(store.getStoreId(), store.statusChanges()
+                .subscribe(new Action1<SCDataStoreStatus>() {
+                    @Override
+                    public void call(SCDataStoreStatus status) {
+                        updateRunningStores(store, status);
+                    }
+                }));
+    }
+
+    private void removeStore(SCDataStore store) {
+        // only this instance, so a late stop can't drop a newer store registered under the same id
+        if (stores.remove(store.getStoreId(), store)) {
+            unindexStore(store);
+        }
+    }
+
+    private void unindexStore(SCDataStore store) {
+        Subscription statusSubscription = statusSubscriptions.remove(store.getStoreId());
+        if (statusSubscription != null) {
+            statusSubscription.unsubscribe();
+        }
+        Set<SCDataStore> typeStores = store.getType() != null ? storesByType.get(store.getType()) : null;
+        if (typeStores != null) {
+            typeStores.remove(store);
+        }
+        spatialStores.remove(store);
+        rasterStores.remove(store);
+        syncableStores.remove(store);
+        if (runningStores.get(store.getStoreId()) == store) {
+            runningStores.remove(store.getStoreId());
+        }
+    }
+
+    private void updateRunningStores(SCDataStore store, SCDataStoreStatus status) {
+        if (status == SCDataStoreStatus.SC_DATA_STORE_RUNNING) {
+            runningStores.put(store.getStoreId(), store);
+        }
+        else {
+            runningStores.remove(store.getStoreId());
+        }
+    }
+
+    private boolean isRunning(SCDataStore store) {
+        return runningStores.get(store.getStoreId()) == store;
+    }
+
+    private static Set<SCDataStore> newStoreSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<SCDataStore, Boolean>());
     }
 
     private void addDefaultStoreImpls() {
@@ -0,0 +1,455 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.services;
+
+import android.util.Log;
+
+import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCGeometryProjection;
+import com.boundlessgeo.spatialconnect.query.SCPredicate;
+import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
+import com.boundlessgeo.spatialconnect.stores.GeoPackageStore;
+import com.boundlessgeo.spatialconnect.stores.ISCSpatialStore;
+import com.boundlessgeo.spatialconnect.stores.SCDataStore;
+import com.boundlessgeo.spatialconnect.stores.SCRemoteDataStore;
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * A least recently used cache of the features returned by store queries, so the near identical queries a map issues
+ * while it's panned are answered without going back to the store.
+ * <p/>
+ * The bounding box of a query for full geometries is snapped outward to a grid that is about
+ * 1/{@value #GRID_CELLS_PER_SPAN} of the box's width, so boxes that differ by less than a cell share an entry.  The
+ * store is queried with the snapped box and the cached features are filtered with the original predicate before
+ * they're returned.  If the store's query was cut off by the limit and too few of its features are in the original
+ * box, the store is queried again with the original box for the rest.
+ * <p/>
+ * Entries of a {@link GeoPackageStore} are dropped when one of the tables they were read from is written to or a
+ * layer is added or deleted, entries of a {@link SCRemoteDataStore} expire after a time to live, and the entries of
+ * any store are dropped when it stops.  A dropped entry's query keeps running until the callers reading it are done.
+ * An entry is the snapshot of the features its query read, so the callers sharing it all get the same features.
+ * The cache holds at most {@value #DEFAULT_MAX_FEATURES} features by default, evicting the least recently used
+ * entries first.  Each caller gets its own copies of the cached features.
+ */
+public class SCQueryCache {
+
+    private static final String LOG_TAG = SCQueryCache.class.getSimpleName();
+    private static final int GRID_CELLS_PER_SPAN = 32;
+    private static final int DEFAULT_MAX_FEATURES = 10000;
+    private static final long DEFAULT_REMOTE_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static class Entry {
+        final String storeId;
+        /**
+         * The layers the entry was read from, or empty if it was read from all of them.
+         */
+        final List<String> layerIds;
+        final long expiresAt;
+        final AtomicInteger size = new AtomicInteger();
+        Observable<SCSpatialFeature> features;
+        volatile Subscription connection;
+        private int subscribers;
+        private boolean released;
+
+        Entry(String storeId, List<String> layerIds, long expiresAt) {
+            this.storeId = storeId;
+            this.layerIds = layerIds;
+            this.expiresAt = expiresAt;
+        }
+
+        // the features of the entry for one caller, keeping the query connected until the caller is done
+        Observable<SCSpatialFeature> read() {
+            return features
+                    .doOnSubscribe(new Action0() {
+                        @Override
+                        public void call() {
+                            synchronized (Entry.this) {
+                                subscribers++;
+                            }
+                        }
+                    })
+                    .doOnUnsubscribe(new Action0() {
+                        @Override
+                        public void call() {
+                            synchronized (Entry.this) {
+                                subscribers--;
+                                if (released && subscribers == 0) {
+                                    disconnect();
+                                }
+                            }
+                        }
+                    });
+        }
+
+        // called once the entry is out of the cache; the query is disconnected when its last caller is done
+        synchronized void release() {
+            released = true;
+            if (subscribers == 0) {
+                disconnect();
+            }
+        }
+
+        private void disconnect() {
+            Subscription s = connection;
+            if (s != null) {
+                s.unsubscribe();
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The subscriptions to the table changes of each GeoPackage store with cached entries, by store id.
+     */
+    private final Map<String, Subscription> watchers = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int maxFeatures = DEFAULT_MAX_FEATURES;
+    private long remoteTtlMs = DEFAULT_REMOTE_TTL_MS;
+
+    /**
+     * Queries a store through the cache.  On a miss the store's query is shared by everyone who asks for the same
+     * entry until it's invalidated or evicted.
+     */
+    public Observable<SCSpatialFeature> query(final SCDataStore store, final SCQueryFilter filter) {
+        final SCQueryFilter storeFilter = snapToGrid(filter);
+        final String key = getKey(store.getStoreId(), storeFilter);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                removeEntry(key, entry);
+                entry = null;
+            }
+            if (entry != null) {
+                hits.incrementAndGet();
+            }
+            else {
+                misses.incrementAndGet();
+                entry = createEntry(store, storeFilter, key);
+                entries.put(key, entry);
+                watch(store);
+            }
+            // entries are sized once their query completes, so the bound is checked on every query
+            trim();
+        }
+        Observable<SCSpatialFeature> features = entry.read().map(new Func1<SCSpatialFeature, SCSpatialFeature>() {
+            @Override
+            public SCSpatialFeature call(SCSpatialFeature feature) {
+                return copy(feature);
+            }
+        });
+        if (storeFilter.getPredicate() == filter.getPredicate()) {
+            // the predicate wasn't snapped, so the entry's features are the caller's
+            return features;
+        }
+        return readSnapped(store, filter, storeFilter.getLimit(), entry, features);
+    }
+
+    // filters the features of a snapped entry to the caller's box, querying the store for the rest if the entry was
+    // cut off by the limit before it found enough of them
+    private static Observable<SCSpatialFeature> readSnapped(final SCDataStore store,
+                                                            final SCQueryFilter filter,
+                                                            final int storeLimit,
+                                                            final Entry entry,
+                                                            final Observable<SCSpatialFeature> features) {
+        return Observable.defer(new Func0<Observable<SCSpatialFeature>>() {
+            @Override
+            public Observable<SCSpatialFeature> call() {
+                final Set<String> returned = Collections.synchronizedSet(new HashSet<String>());
+                Observable<SCSpatialFeature> cached = features
+                        .filter(new Func1<SCSpatialFeature, Boolean>() {
+                            @Override
+                            public Boolean call(SCSpatialFeature feature) {
+                                return filter.getPredicate().applyFilter(feature);
+                            }
+                        })
+                        .doOnNext(new Action1<SCSpatialFeature>() {
+                            @Override
+                            public void call(SCSpatialFeature feature) {
+                                returned.add(feature.getId());
+                            }
+                        });
+                Observable<SCSpatialFeature> rest = Observable.defer(new Func0<Observable<SCSpatialFeature>>() {
+                    @Override
+                    public Observable<SCSpatialFeature> call() {
+                        if (returned.size() >= filter.getLimit() || entry.size.get() < storeLimit) {
+                            return Observable.empty();
+                        }
+                        return ((ISCSpatialStore) store).query(filter)
+                                .filter(new Func1<SCSpatialFeature, Boolean>() {
+                                    @Override
+                                    public Boolean call(SCSpatialFeature feature) {
+                                        return !returned.contains(feature.getId());
+                                    }
+                                });
+                    }
+                });
+                return cached.concatWith(rest).take(filter.getLimit());
+            }
+        });
+    }
+
+    /**
+     * Drops the entries read from any of the given layers of a store.
+     */
+    public synchronized void invalidate(String storeId, String layerId) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.storeId.equals(storeId) && (entry.layerIds.isEmpty() || entry.layerIds.contains(layerId))) {
+                it.remove();
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * Drops all the entries of a store and stops listening for its changes.
+     */
+    public synchronized void invalidateStore(String storeId) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry.storeId.equals(storeId)) {
+                it.remove();
+                entry.release();
+            }
+        }
+        Subscription watcher = watchers.remove(storeId);
+        if (watcher != null) {
+            watcher.unsubscribe();
+        }
+    }
+
+    public synchronized void clear() {
+        for (String storeId : new ArrayList<>(watchers.keySet())) {
+            invalidateStore(storeId);
+        }
+        for (Entry entry : entries.values()) {
+            entry.release();
+        }
+        entries.clear();
+    }
+
+    public synchronized void setMaxFeatures(int maxFeatures) {
+        this.maxFeatures = maxFeatures;
+        trim();
+    }
+
+    public void setRemoteTtl(long ttl, TimeUnit unit) {
+        this.remoteTtlMs = unit.toMillis(ttl);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public synchronized int getFeatureCount() {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            count += entry.size.get();
+        }
+        return count;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> metricsMap = new HashMap<>();
+        metricsMap.put("hits", hits.get());
+        metricsMap.put("misses", misses.get());
+        metricsMap.put("features", getFeatureCount());
+        return metricsMap;
+    }
+
+    private Entry createEntry(SCDataStore store, SCQueryFilter storeFilter, final String key) {
+        long expiresAt = store instanceof SCRemoteDataStore ?
+                System.currentTimeMillis() + remoteTtlMs : Long.MAX_VALUE;
+        final Entry entry = new Entry(store.getStoreId(), storeFilter.getLayerIds(), expiresAt);
+        entry.features = ((ISCSpatialStore) store).query(storeFilter)
+                // completes once the limit is reached, so a query that was cut off can be topped up
+                .take(storeFilter.getLimit())
+                // the entry is a snapshot of the features read by the query, which is never added to
+                .toList()
+                .doOnNext(new Action1<List<SCSpatialFeature>>() {
+                    @Override
+                    public void call(List<SCSpatialFeature> features) {
+                        entry.size.set(features.size());
+                    }
+                })
+                .doOnError(new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable t) {
+                        // don't keep replaying a failed query
+                        synchronized (SCQueryCache.this) {
+                            removeEntry(key, entry);
+                        }
+                    }
+                })
+                .replay()
+                .autoConnect(1, new Action1<Subscription>() {
+                    @Override
+                    public void call(Subscription connection) {
+                        entry.connection = connection;
+                    }
+                })
+                .flatMapIterable(new Func1<List<SCSpatialFeature>, Iterable<SCSpatialFeature>>() {
+                    @Override
+                    public Iterable<SCSpatialFeature> call(List<SCSpatialFeature> features) {
+                        return features;
+                    }
+                });
+        return entry;
+    }
+
+    // drops the entries read from a GeoPackage store's tables as they're written to
+    private void watch(final SCDataStore store) {
+        if (!(store instanceof GeoPackageStore) || watchers.containsKey(store.getStoreId())) {
+            return;
+        }
+        watchers.put(store.getStoreId(), ((GeoPackageStore) store).layerChanges()
+                .subscribe(new Action1<String>() {
+                    @Override
+                    public void call(String layerId) {
+                        Log.d(LOG_TAG, "Invalidating cached queries of " + store.getStoreId() + "." + layerId);
+                        invalidate(store.getStoreId(), layerId);
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable t) {
+                        Log.e(LOG_TAG, "Stopped listening for changes to " + store.getStoreId(), t);
+                        invalidateStore(store.getStoreId());
+                    }
+                }));
+    }
+
+    // evicts the least recently used entries until the cache is back under its bound, keeping the newest entry
+    private void trim() {
+        int count = getFeatureCount();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (count > maxFeatures && entries.size() > 1 && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            count -= entry.size.get();
+            it.remove();
+            entry.release();
+        }
+    }
+
+    private void removeEntry(String key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+        }
+        entry.release();
+    }
+
+    // copies a caller's feature so the cached one can't be changed through it
+    private static SCSpatialFeature copy(SCSpatialFeature feature) {
+        SCSpatialFeature copy;
+        if (feature instanceof SCGeometry && ((SCGeometry) feature).getGeometry() != null) {
+            copy = new SCGeometry((Geometry) ((SCGeometry) feature).getGeometry().clone());
+        }
+        else {
+            copy = new SCSpatialFeature();
+        }
+        copy.setId(feature.getId());
+        copy.setStoreId(feature.getStoreId());
+        copy.setLayerId(feature.getLayerId());
+        copy.setCreated(feature.getCreated());
+        copy.setModified(feature.getModified());
+        copy.setProperties(new HashMap<>(feature.getProperties()));
+        return copy;
+    }
+
+    // copies the filter with its bbox snapped outward to the grid.  The predicate is kept as is if the query doesn't
+    // return full geometries, since the features couldn't be filtered back to the original box, or if it's NOTWITHIN,
+    // since a larger box would match fewer features
+    private static SCQueryFilter snapToGrid(SCQueryFilter filter) {
+        SCPredicate predicate = filter.getPredicate();
+        SCQueryFilter storeFilter;
+        if (predicate == null || predicate.getBoundingBox() == null ||
+                predicate.getGeometryComparison() == SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_NOTWITHIN ||
+                filter.getGeometryProjection() != SCGeometryProjection.SCGEOMETRY_PROJECTION_FULL) {
+            storeFilter = new SCQueryFilter(predicate);
+        }
+        else {
+            SCBoundingBox bbox = predicate.getBoundingBox();
+            double span = Math.max(bbox.getMaxX() - bbox.getMinX(), bbox.getMaxY() - bbox.getMinY());
+            if (span > 0) {
+                double cell = Math.pow(2, Math.floor(Math.log(span / GRID_CELLS_PER_SPAN) / Math.log(2)));
+                bbox = new SCBoundingBox(
+                        Math.floor(bbox.getMinX() / cell) * cell,
+                        Math.floor(bbox.getMinY() / cell) * cell,
+                        Math.ceil(bbox.getMaxX() / cell) * cell,
+                        Math.ceil(bbox.getMaxY() / cell) * cell
+                );
+            }
+            storeFilter = new SCQueryFilter(new SCPredicate(bbox, predicate.getGeometryComparison()));
+        }
+        List<String> layerIds = new ArrayList<>(filter.getLayerIds());
+        Collections.sort(layerIds);
+        for (String layerId : layerIds) {
+            storeFilter.addLayerId(layerId);
+        }
+        for (String propertyName : filter.getPropertyNames()) {
+            storeFilter.addPropertyName(propertyName);
+        }
+        storeFilter.setGeometryProjection(filter.getGeometryProjection());
+        storeFilter.setLimit(filter.getLimit());
+        return storeFilter;
+    }
+
+    private static String getKey(String storeId, SCQueryFilter storeFilter) {
+        StringBuilder sb = new StringBuilder(storeId).append('|').append(storeFilter.getLayerIds());
+        SCPredicate predicate = storeFilter.getPredicate();
+        if (predicate != null && predicate.getBoundingBox() != null) {
+            SCBoundingBox bbox = predicate.getBoundingBox();
+            sb.append('|').append(predicate.getGeometryComparison())
+                    .append('|').append(bbox.getMinX()).append(',').append(bbox.getMinY())
+                    .append(',').append(bbox.getMaxX()).append(',').append(bbox.getMaxY());
+        }
+        List<String> propertyNames = new ArrayList<>(storeFilter.getPropertyNames());
+        Collections.sort(propertyNames);
+        return sb.append('|').append(storeFilter.getLimit())
+                .append('|').append(storeFilter.getGeometryProjection())
+                .append('|').append(propertyNames)
+                .toString();
+    }
+}
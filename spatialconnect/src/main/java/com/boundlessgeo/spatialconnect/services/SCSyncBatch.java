@@ -0,0 +1,153 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.services;
+
+import android.util.Log;
+
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.schema.SCCommand;
+import com.boundlessgeo.spatialconnect.scutilities.Json.SCObjectMapper;
+import com.boundlessgeo.spatialconnect.stores.ISyncableStore;
+import com.boundlessgeo.spatialconnect.stores.SCChange;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A group of unsent changes of the same kind from one store that are synced in a single message.  The payload is a
+ * JSON array of each changed feature's {@link ISyncableStore#generateSendPayload(SCSpatialFeature)}, and the action
+ * of the message says whether the features were created, updated or deleted.
+ */
+public class SCSyncBatch {
+
+    private static final String LOG_TAG = SCSyncBatch.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SCChange.Operation operation;
+    private final List<SCChange> changes = new ArrayList<>();
+    private final StringBuilder payload = new StringBuilder("[");
+    private int bytes = 2;
+
+    private SCSyncBatch(SCChange.Operation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Serializes the changes and groups them in order into batches whose payload is at most maxBytes.  A new batch
+     * is started whenever the kind of change differs from the one before, so the changes are still sent in the order
+     * they were made.  A change whose payload alone is larger than maxBytes is sent in a batch of its own.  Changes
+     * that the store has no payload for or that can't be serialized are left out, so they stay unsent.
+     *
+     * @param store    the store the changes are from
+     * @param changes  the unsent changes
+     * @param maxBytes the most bytes of payload in a batch
+     * @return the batches, in the order of the changes
+     */
+    public static List<SCSyncBatch> fromChanges(ISyncableStore store, List<SCChange> changes, int maxBytes) {
+        if (changes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SCSyncBatch> batches = new ArrayList<>();
+        SCSyncBatch batch = null;
+        for (SCChange change : changes) {
+            String json;
+            try {
+                Object sendPayload = store.generateSendPayload(change.getFeature());
+                if (sendPayload == null) {
+                    Log.d(LOG_TAG, "The store has no payload for feature " + change.getFeature().getId());
+                    continue;
+                }
+                json = SCObjectMapper.getMapper().writeValueAsString(sendPayload);
+            } catch (JsonProcessingException | RuntimeException e) {
+                // one bad change shouldn't keep the rest of the store's changes from being synced
+                Log.e(LOG_TAG, "Could not serialize feature " + change.getFeature().getId() + " for sync: "
+                        + e.getMessage());
+                continue;
+            }
+            if (batch == null || batch.operation != change.getOperation() || !batch.add(change, json, maxBytes)) {
+                if (batch != null) {
+                    batches.add(batch);
+                }
+                batch = new SCSyncBatch(change.getOperation());
+                batch.add(change, json, maxBytes);
+            }
+        }
+        if (batch != null) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    // adds the change unless it would take a non-empty batch over maxBytes
+    private boolean add(SCChange change, String json, int maxBytes) {
+        int changeBytes = json.getBytes(UTF_8).length + (changes.isEmpty() ? 0 : 1);
+        if (!changes.isEmpty() && bytes + changeBytes > maxBytes) {
+            return false;
+        }
+        if (!changes.isEmpty()) {
+            payload.append(',');
+        }
+        payload.append(json);
+        changes.add(change);
+        bytes += changeBytes;
+        return true;
+    }
+
+    /**
+     * @return the changes in this batch, in the order they appear in the payload
+     */
+    public List<SCChange> getChanges() {
+        return changes;
+    }
+
+    public SCChange.Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the action of the message the batch is sent in
+     */
+    public SCCommand getAction() {
+        switch (operation) {
+            case UPDATE:
+                return SCCommand.DATASERVICE_UPDATEFEATURES;
+            case DELETE:
+                return SCCommand.DATASERVICE_DELETEFEATURES;
+            default:
+                return SCCommand.DATASERVICE_CREATEFEATURES;
+        }
+    }
+
+    /**
+     * @return the JSON array of the changed features' payloads
+     */
+    public String getPayload() {
+        return payload.toString() + "]";
+    }
+
+    /**
+     * @return the size of the payload in bytes
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return changes.size();
+    }
+}
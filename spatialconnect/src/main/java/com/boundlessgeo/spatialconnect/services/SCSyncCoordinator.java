@@ -0,0 +1,230 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.services;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observables.GroupedObservable;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Decides when each syncable store is synced.  Sync requests for a store are debounced, so a burst of edits leads to
+ * one sync, and a store is synced by at most one scan at a time: a request that arrives while the store is syncing
+ * runs once more when that sync finishes.  Stores are only synced while connected to the broker, and all of them
+ * are synced each time the connection comes up.
+ * <p>
+ * The coordinator owns every subscription it makes, so their number doesn't grow with edits or reconnects, and
+ * {@link #stop()} releases them all.
+ */
+public class SCSyncCoordinator {
+
+    private static final String LOG_TAG = SCSyncCoordinator.class.getSimpleName();
+
+    private final Func1<String, Observable<?>> syncStore;
+    private final long debounceMs;
+    private final Scheduler scheduler;
+    private final SerializedSubject<String, String> requests =
+            new SerializedSubject<>(PublishSubject.<String>create());
+    private final Map<String, StoreSync> stores = new HashMap<>();
+    private CompositeSubscription subscriptions = new CompositeSubscription();
+    private volatile boolean connected;
+
+    /**
+     * @param syncStore  returns the sync of the store with the id, which completes once its unsent changes have
+     *                   been handed off for sending
+     * @param debounceMs how long a store has to go without a sync request before it's synced
+     * @param scheduler  the scheduler the debounce and the syncs run on
+     */
+    public SCSyncCoordinator(Func1<String, Observable<?>> syncStore, long debounceMs, Scheduler scheduler) {
+        this.syncStore = syncStore;
+        this.debounceMs = debounceMs;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts syncing stores as they are edited and when the connection comes up.
+     *
+     * @param connectedToBroker emits whether the client is connected to the broker
+     * @param editedStoreIds    emits the id of a store each time it is edited
+     * @param syncableStoreIds  returns the ids of the stores to sync when the connection comes up
+     */
+    public synchronized void start(Observable<Boolean> connectedToBroker,
+                                   Observable<String> editedStoreIds,
+                                   final Func0<Observable<String>> syncableStoreIds) {
+        stop();
+        subscriptions = new CompositeSubscription();
+        subscriptions.add(requests
+                .groupBy(new Func1<String, String>() {
+                    @Override
+                    public String call(String storeId) {
+                        return storeId;
+                    }
+                })
+                .flatMap(new Func1<GroupedObservable<String, String>, Observable<String>>() {
+                    @Override
+                    public Observable<String> call(GroupedObservable<String, String> storeRequests) {
+                        return storeRequests.debounce(debounceMs, TimeUnit.MILLISECONDS, scheduler);
+                    }
+                })
+                .subscribe(new Action1<String>() {
+                    @Override
+                    public void call(String storeId) {
+                        run(storeId);
+                    }
+                }));
+        subscriptions.add(editedStoreIds.subscribe(new Action1<String>() {
+            @Override
+            public void call(String storeId) {
+                requestSync(storeId);
+            }
+        }));
+        subscriptions.add(connectedToBroker
+                .distinctUntilChanged()
+                .subscribe(new Action1<Boolean>() {
+                    @Override
+                    public void call(Boolean isConnected) {
+                        connected = isConnected;
+                        if (isConnected) {
+                            Log.d(LOG_TAG, "sync all stores");
+                            syncableStoreIds.call().subscribe(new Action1<String>() {
+                                @Override
+                                public void call(String storeId) {
+                                    requestSync(storeId);
+                                }
+                            });
+                        }
+                    }
+                }));
+    }
+
+    /**
+     * Asks for the store to be synced once it has gone the debounce time without another request.
+     */
+    public void requestSync(String storeId) {
+        requests.onNext(storeId);
+    }
+
+    /**
+     * Stops listening for edits and connection changes and cancels the syncs that are running.
+     */
+    public synchronized void stop() {
+        subscriptions.unsubscribe();
+        for (StoreSync sync : stores.values()) {
+            if (sync.subscription != null) {
+                sync.subscription.unsubscribe();
+                sync.subscription = null;
+            }
+            sync.pending = false;
+        }
+        stores.clear();
+    }
+
+    /**
+     * @return the number of stores being synced right now
+     */
+    public synchronized int getRunningSyncCount() {
+        int running = 0;
+        for (StoreSync sync : stores.values()) {
+            if (sync.subscription != null) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    private synchronized void run(final String storeId) {
+        if (!connected) {
+            // the store is synced when the connection comes back up
+            return;
+        }
+        StoreSync sync = stores.get(storeId);
+        if (sync == null) {
+            sync = new StoreSync();
+            stores.put(storeId, sync);
+        }
+        if (sync.subscription != null) {
+            sync.pending = true;
+            return;
+        }
+        final StoreSync current = sync;
+        Action0 finished = new Action0() {
+            @Override
+            public void call() {
+                finished(storeId, current);
+            }
+        };
+        // the sync may complete synchronously, so mark it running before subscribing
+        current.subscription = RUNNING;
+        Subscription subscription = syncStore.call(storeId)
+                .subscribeOn(scheduler)
+                .ignoreElements()
+                .doOnTerminate(finished)
+                .subscribe(new Action1<Object>() {
+                    @Override
+                    public void call(Object o) {
+                    }
+                }, new Action1<Throwable>() {
+                    @Override
+                    public void call(Throwable t) {
+                        Log.e(LOG_TAG, "Could not sync store " + storeId + ": " + t.getMessage());
+                    }
+                });
+        if (current.subscription == RUNNING) {
+            current.subscription = subscription;
+        }
+    }
+
+    private synchronized void finished(String storeId, StoreSync sync) {
+        if (stores.get(storeId) != sync) {
+            // stopped while syncing
+            return;
+        }
+        sync.subscription = null;
+        if (sync.pending) {
+            sync.pending = false;
+            run(storeId);
+        }
+    }
+
+    private static final Subscription RUNNING = new Subscription() {
+        @Override
+        public void unsubscribe() {
+        }
+
+        @Override
+        public boolean isUnsubscribed() {
+            return false;
+        }
+    };
+
+    // the sync state of one store, guarded by the coordinator
+    private static class StoreSync {
+        Subscription subscription;
+        boolean pending;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.services;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outbound ledger of changes sent for sync.  A change is in flight from the time it's put in a batch until it's
+ * marked sent, so a sync running in the meantime doesn't send it again.
+ * <p>
+ * Published batches are keyed by their delivery token.  The paho android client passes the token returned from
+ * publish to {@code deliveryComplete}, so the token object identifies the message even before the service has
+ * assigned it a message id.  A token is recorded and completed under the ledger's lock, so publish and record
+ * should be done while holding it.
+ * <p>
+ * Changes in flight for longer than the expiry are released, so a message the broker never acknowledges is sent
+ * again by a later sync rather than being lost.
+ *
+ * @param <K> the type identifying a change
+ */
+public class SCSyncLedger<K> {
+
+    private final long expiryMs;
+    private final Map<IMqttDeliveryToken, List<K>> published = new HashMap<>();
+    private final Map<K, Long> inFlight = new HashMap<>();
+
+    public SCSyncLedger(long expiryMs) {
+        this.expiryMs = expiryMs;
+    }
+
+    /**
+     * Marks the changes as in flight before they are published.
+     */
+    public synchronized void reserve(List<K> keys) {
+        long now = System.currentTimeMillis();
+        for (K key : keys) {
+            inFlight.put(key, now);
+        }
+    }
+
+    /**
+     * Records the changes published in the message with the delivery token.
+     */
+    public synchronized void record(IMqttDeliveryToken token, List<K> keys) {
+        published.put(token, keys);
+    }
+
+    /**
+     * Removes the message with the delivery token from the ledger.  The changes stay in flight until they are
+     * released, once they have been marked sent.
+     *
+     * @return the changes that were delivered, empty if the token wasn't recorded or has expired
+     */
+    public synchronized List<K> complete(IMqttDeliveryToken token) {
+        List<K> keys = published.remove(token);
+        return keys != null ? keys : Collections.<K>emptyList();
+    }
+
+    /**
+     * Takes the changes out of flight, after they are marked sent or when they couldn't be published.
+     */
+    public synchronized void release(List<K> keys) {
+        for (K key : keys) {
+            inFlight.remove(key);
+        }
+    }
+
+    public synchronized boolean isInFlight(K key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * Releases the changes that have been in flight for longer than the expiry, and forgets the messages that
+     * published them.
+     *
+     * @return the number of changes released
+     */
+    public synchronized int expire() {
+        long cutoff = System.currentTimeMillis() - expiryMs;
+        List<K> expired = new ArrayList<>();
+        for (Map.Entry<K, Long> entry : inFlight.entrySet()) {
+            if (entry.getValue() < cutoff) {
+                expired.add(entry.getKey());
+            }
+        }
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        release(expired);
+        Iterator<List<K>> messages = published.values().iterator();
+        while (messages.hasNext()) {
+            if (!inFlight.keySet().containsAll(messages.next())) {
+                messages.remove();
+            }
+        }
+        return expired.size();
+    }
+
+    /**
+     * @return the number of published messages the broker hasn't acknowledged
+     */
+    public synchronized int getPendingMessageCount() {
+        return published.size();
+    }
+
+    /**
+     * @return the number of changes in flight
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+}
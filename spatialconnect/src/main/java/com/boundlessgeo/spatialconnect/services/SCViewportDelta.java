@@ -0,0 +1,48 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.services;
+
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.stores.SCKeyTuple;
+
+import java.util.List;
+
+/**
+ * A change to the features in view, emitted by {@link SCViewportQuery} as the viewport moves.
+ */
+public class SCViewportDelta {
+
+    private final List<SCSpatialFeature> added;
+    private final List<SCKeyTuple> removed;
+
+    public SCViewportDelta(List<SCSpatialFeature> added, List<SCKeyTuple> removed) {
+        this.added = added;
+        this.removed = removed;
+    }
+
+    /**
+     * @return the features that came into view
+     */
+    public List<SCSpatialFeature> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the keys of the features that left the view
+     */
+    public List<SCKeyTuple> getRemoved() {
+        return removed;
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.services;
+
+import android.util.Log;
+
+import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCPredicate;
+import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
+import com.boundlessgeo.spatialconnect.stores.SCKeyTuple;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * Follows a map viewport across the XYZ tile grid and reports the features that come into and leave view, so a pan
+ * only queries the tiles that just came into view instead of the whole viewport.
+ * <p/>
+ * Each visible tile is queried until its query completes and the keys of its features are kept until the tile leaves
+ * the view.  A tile whose query was never subscribed to, or was unsubscribed from before it completed, is rolled back
+ * and queried again by the next viewport update that still covers it; that update first removes the features of the
+ * rolled back tiles that no other tile holds.  A feature that crosses tiles is added when the first tile
+ * holding it comes into view and removed when the last one leaves.  Changing the zoom level replaces every tile.
+ */
+public class SCViewportQuery {
+
+    private static final String LOG_TAG = SCViewportQuery.class.getSimpleName();
+    private static final double MAX_LATITUDE = 85.0511287798;
+    /**
+     * The most tiles a viewport may cover, to catch a zoom level that doesn't match the viewport.
+     */
+    private static final int MAX_TILES = 256;
+    private static final long DELTA_INTERVAL_MS = 250;
+    private static final int DELTA_SIZE = 500;
+
+    private final SCDataService dataService;
+    private final List<String> storeIds;
+    private final SCQueryFilter template;
+
+    private int zoom = -1;
+    /**
+     * The keys of the features of each visible tile, by tile.  A tile whose query hasn't completed yet has the keys
+     * of the features returned so far.
+     */
+    private final Map<String, Set<String>> tileFeatures = new HashMap<>();
+    /**
+     * The visible tiles whose queries completed.
+     */
+    private final Set<String> loadedTiles = new HashSet<>();
+    /**
+     * The number of visible tiles holding each feature in view, by feature key.
+     */
+    private final Map<String, Integer> featureRefs = new HashMap<>();
+    private final Map<String, SCKeyTuple> featureKeys = new HashMap<>();
+    /**
+     * The viewport update whose query of each tile is running, so results for a tile that left the view are dropped
+     * and a tile isn't queried twice at once.
+     */
+    private final Map<String, Long> tileRequests = new HashMap<>();
+    /**
+     * The features of rolled back tiles that may have been reported and aren't held by any visible tile.
+     */
+    private final Map<String, SCKeyTuple> rolledBack = new HashMap<>();
+    private long generation;
+
+    /**
+     * @param dataService the service to query
+     * @param storeIds    the stores to query, or null to query all of them
+     * @param template    the layers, projection and per tile limit of the tile queries; its predicate is ignored
+     */
+    SCViewportQuery(SCDataService dataService, List<String> storeIds, SCQueryFilter template) {
+        this.dataService = dataService;
+        this.storeIds = storeIds;
+        this.template = template;
+    }
+
+    /**
+     * Moves the viewport.  The returned Observable first emits the features that left the view, if any, then the
+     * features of the tiles that came into view in batches as their queries return.
+     *
+     * @param viewport the bounds of the viewport, in longitude and latitude
+     * @param zoom     the zoom level of the tiles to split the viewport into
+     * @return the changes to the features in view
+     */
+    public Observable<SCViewportDelta> setViewport(SCBoundingBox viewport, int zoom) {
+        final List<String> entering = new ArrayList<>();
+        final List<SCKeyTuple> removed = new ArrayList<>();
+        final long request;
+        synchronized (this) {
+            Set<String> tiles = getTiles(viewport, zoom);
+            if (tiles.size() > MAX_TILES) {
+                return Observable.error(new IllegalArgumentException(
+                        "The viewport covers " + tiles.size() + " tiles at zoom level " + zoom + "."
+                ));
+            }
+            // rolled back features that no tile holds anymore left the view; checked first so none is reported twice
+            for (Map.Entry<String, SCKeyTuple> feature : rolledBack.entrySet()) {
+                if (!featureRefs.containsKey(feature.getKey())) {
+                    removed.add(feature.getValue());
+                }
+            }
+            rolledBack.clear();
+            if (zoom != this.zoom) {
+                for (String tile : new ArrayList<>(tileFeatures.keySet())) {
+                    removeTile(tile, removed);
+                }
+                this.zoom = zoom;
+            }
+            for (String tile : new ArrayList<>(tileFeatures.keySet())) {
+                if (!tiles.contains(tile)) {
+                    removeTile(tile, removed);
+                }
+            }
+            request = ++generation;
+            for (String tile : tiles) {
+                if (!tileFeatures.containsKey(tile)) {
+                    tileFeatures.put(tile, new HashSet<String>());
+                    entering.add(tile);
+                }
+                else if (!loadedTiles.contains(tile) && !tileRequests.containsKey(tile)) {
+                    entering.add(tile);
+                }
+            }
+        }
+        Log.d(LOG_TAG, String.format("%d tiles entered the view, %d features left it",
+                entering.size(), removed.size()));
+
+        Observable<SCViewportDelta> removals = removed.isEmpty() ?
+                Observable.<SCViewportDelta>empty() :
+                Observable.just(new SCViewportDelta(new ArrayList<SCSpatialFeature>(), removed));
+        Observable<SCViewportDelta> additions = Observable.from(entering)
+                .flatMap(new Func1<String, Observable<SCSpatialFeature>>() {
+                    @Override
+                    public Observable<SCSpatialFeature> call(final String tile) {
+                        return loadTile(tile, request);
+                    }
+                })
+                .buffer(DELTA_INTERVAL_MS, TimeUnit.MILLISECONDS, DELTA_SIZE)
+                .filter(new Func1<List<SCSpatialFeature>, Boolean>() {
+                    @Override
+                    public Boolean call(List<SCSpatialFeature> features) {
+                        return !features.isEmpty();
+                    }
+                })
+                .map(new Func1<List<SCSpatialFeature>, SCViewportDelta>() {
+                    @Override
+                    public SCViewportDelta call(List<SCSpatialFeature> features) {
+                        return new SCViewportDelta(features, new ArrayList<SCKeyTuple>());
+                    }
+                });
+        return removals.concatWith(additions);
+    }
+
+    /**
+     * Forgets the viewport, so the next one is queried in full.
+     */
+    public synchronized void reset() {
+        tileFeatures.clear();
+        loadedTiles.clear();
+        featureRefs.clear();
+        featureKeys.clear();
+        tileRequests.clear();
+        rolledBack.clear();
+        zoom = -1;
+    }
+
+    // queries a tile when it's subscribed to, unless it left the view, was loaded or is being loaded by then
+    private Observable<SCSpatialFeature> loadTile(final String tile, final long request) {
+        return Observable.defer(new Func0<Observable<SCSpatialFeature>>() {
+            @Override
+            public Observable<SCSpatialFeature> call() {
+                if (!claimTile(tile, request)) {
+                    return Observable.empty();
+                }
+                return queryTile(tile)
+                        .filter(new Func1<SCSpatialFeature, Boolean>() {
+                            @Override
+                            public Boolean call(SCSpatialFeature feature) {
+                                return addFeature(tile, request, feature);
+                            }
+                        })
+                        .doOnCompleted(new Action0() {
+                            @Override
+                            public void call() {
+                                finishTile(tile, request, true);
+                            }
+                        })
+                        .doOnUnsubscribe(new Action0() {
+                            @Override
+                            public void call() {
+                                // a no-op once the query has completed
+                                finishTile(tile, request, false);
+                            }
+                        });
+            }
+        });
+    }
+
+    private synchronized boolean claimTile(String tile, long request) {
+        if (!tileFeatures.containsKey(tile) || loadedTiles.contains(tile) || tileRequests.containsKey(tile)) {
+            return false;
+        }
+        tileRequests.put(tile, request);
+        return true;
+    }
+
+    // ends a tile's query, marking the tile loaded if the query completed so it isn't queried again.  The features of
+    // a tile whose query didn't complete may not have been delivered, so they're rolled back and the tile is queried
+    // again by the next viewport update.
+    private synchronized void finishTile(String tile, long request, boolean completed) {
+        Long tileRequest = tileRequests.get(tile);
+        if (tileRequest == null || tileRequest != request) {
+            return;
+        }
+        tileRequests.remove(tile);
+        if (completed) {
+            loadedTiles.add(tile);
+            return;
+        }
+        List<SCKeyTuple> released = new ArrayList<>();
+        releaseFeatures(tileFeatures.get(tile), released);
+        tileFeatures.get(tile).clear();
+        for (SCKeyTuple featureKey : released) {
+            rolledBack.put(featureKey.toString(), featureKey);
+        }
+    }
+
+    private Observable<SCSpatialFeature> queryTile(String tile) {
+        String[] zxy = tile.split("/");
+        SCQueryFilter filter = new SCQueryFilter(new SCPredicate(
+                getTileBounds(Integer.parseInt(zxy[0]), Integer.parseInt(zxy[1]), Integer.parseInt(zxy[2])),
+                SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_WITHIN
+        ));
+        for (String layerId : template.getLayerIds()) {
+            filter.addLayerId(layerId);
+        }
+        for (String propertyName : template.getPropertyNames()) {
+            filter.addPropertyName(propertyName);
+        }
+        filter.setGeometryProjection(template.getGeometryProjection());
+        filter.setLimit(template.getLimit());
+        return storeIds == null ? dataService.queryAllStores(filter) : dataService.queryStoresByIds(storeIds, filter);
+    }
+
+    // records a feature of a tile, returning true if it just came into view
+    private synchronized boolean addFeature(String tile, long request, SCSpatialFeature feature) {
+        Long tileRequest = tileRequests.get(tile);
+        if (tileRequest == null || tileRequest != request) {
+            // the tile left the view before its query returned
+            return false;
+        }
+        SCKeyTuple featureKey = feature.getKey();
+        String key = featureKey.toString();
+        if (!tileFeatures.get(tile).add(key)) {
+            return false;
+        }
+        Integer refs = featureRefs.get(key);
+        if (refs == null) {
+            featureKeys.put(key, featureKey);
+        }
+        featureRefs.put(key, refs == null ? 1 : refs + 1);
+        return refs == null;
+    }
+
+    // forgets a tile, collecting the keys of the features no other visible tile holds
+    private void removeTile(String tile, List<SCKeyTuple> removed) {
+        tileRequests.remove(tile);
+        loadedTiles.remove(tile);
+        releaseFeatures(tileFeatures.remove(tile), removed);
+    }
+
+    // drops a tile's hold on its features, collecting the keys of the features no other visible tile holds
+    private void releaseFeatures(Set<String> keys, List<SCKeyTuple> removed) {
+        for (String key : keys) {
+            int refs = featureRefs.get(key) - 1;
+            if (refs == 0) {
+                featureRefs.remove(key);
+                removed.add(featureKeys.remove(key));
+            }
+            else {
+                featureRefs.put(key, refs);
+            }
+        }
+    }
+
+    /**
+     * @return the "z/x/y" names of the tiles covering the viewport
+     */
+    static Set<String> getTiles(SCBoundingBox viewport, int zoom) {
+        int n = 1 << zoom;
+        int minTileX = getTileX(viewport.getMinX(), n);
+        int maxTileX = getTileX(viewport.getMaxX(), n);
+        // tile rows count down from the north
+        int minTileY = getTileY(viewport.getMaxY(), n);
+        int maxTileY = getTileY(viewport.getMinY(), n);
+        Set<String> tiles = new LinkedHashSet<>();
+        for (int x = minTileX; x <= maxTileX; x++) {
+            for (int y = minTileY; y <= maxTileY; y++) {
+                tiles.add(zoom + "/" + x + "/" + y);
+            }
+        }
+        return tiles;
+    }
+
+    static SCBoundingBox getTileBounds(int zoom, int x, int y) {
+        int n = 1 << zoom;
+        return new SCBoundingBox(
+                x * 360.0 / n - 180,
+                getTileLatitude(y + 1, n),
+                (x + 1) * 360.0 / n - 180,
+                getTileLatitude(y, n)
+        );
+    }
+
+    private static int getTileX(double longitude, int n) {
+        int x = (int) Math.floor((longitude + 180) / 360 * n);
+        return Math.max(0, Math.min(n - 1, x));
+    }
+
+    private static int getTileY(double latitude, int n) {
+        double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        int y = (int) Math.floor((1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * n);
+        return Math.max(0, Math.min(n - 1, y));
+    }
+
+    private static double getTileLatitude(int y, int n) {
+        double mercatorY = Math.PI * (1 - 2.0 * y / n);
+        return Math.toDegrees(Math.atan(0.5 * (Math.exp(mercatorY) - Math.exp(-mercatorY))));
+    }
+}
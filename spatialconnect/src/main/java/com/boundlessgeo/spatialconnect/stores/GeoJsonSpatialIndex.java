@@ -0,0 +1,476 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.stores;
+
+import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
+import com.boundlessgeo.spatialconnect.geometries.SCGeometryFactory;
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.scutilities.Json.JsonUtilities;
+import com.boundlessgeo.spatialconnect.scutilities.Json.SCObjectMapper;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.vividsolutions.jts.geom.Envelope;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of the features in a GeoJSON FeatureCollection file.  The byte range and id of every feature in the
+ * file is recorded, and the envelope of each feature with a geometry is stored in a packed Hilbert R-tree, so a
+ * bounding box query only needs to seek to and parse the features whose envelopes intersect it, and a lookup by id
+ * only needs to parse the one feature.
+ * <p/>
+ * The index is saved in a sidecar file next to the GeoJSON file, together with the size and modification time of the
+ * GeoJSON file it was built from; the sidecar is rebuilt when either changes.
+ */
+public class GeoJsonSpatialIndex {
+
+    private static final int MAGIC = 0x53434749; // "SCGI"
+    private static final int VERSION = 2;
+    private static final int NODE_SIZE = 16;
+    private static final int HILBERT_MAX = (1 << 16) - 1;
+
+    private final long sourceLength;
+    private final long sourceModified;
+    /**
+     * The number of features in the tree, which leaves out the features without a geometry.
+     */
+    private final int numItems;
+    /**
+     * The byte offset, length and id of each feature in the GeoJSON file, in file order.
+     */
+    private final long[] offsets;
+    private final int[] lengths;
+    private final String[] ids;
+    /**
+     * The position of each feature in the file, by id.  Built when the index is loaded.
+     */
+    private final Map<String, Integer> featuresById;
+    /**
+     * The boxes (minx, miny, maxx, maxy) of the tree nodes, leaves first and the root last.
+     */
+    private final double[] boxes;
+    /**
+     * For a leaf, the feature it indexes; for any other node, the position of its first child.
+     */
+    private final int[] indices;
+    /**
+     * The position after the last node of each level of the tree.
+     */
+    private final int[] levelBounds;
+
+    private GeoJsonSpatialIndex(long sourceLength, long sourceModified, long[] offsets, int[] lengths, String[] ids,
+                                double[] boxes, int[] indices, int[] levelBounds) {
+        this.sourceLength = sourceLength;
+        this.sourceModified = sourceModified;
+        this.numItems = levelBounds[0];
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.ids = ids;
+        this.boxes = boxes;
+        this.indices = indices;
+        this.levelBounds = levelBounds;
+        this.featuresById = new HashMap<>(ids.length * 2);
+        for (int i = ids.length - 1; i >= 0; i--) {
+            // walk backwards so the first feature with an id wins
+            if (ids[i] != null) {
+                featuresById.put(ids[i], i);
+            }
+        }
+    }
+
+    /**
+     * Loads the index of a GeoJSON file from its sidecar, building and saving the index first if the sidecar is
+     * missing or out of date.
+     *
+     * @param geoJsonFile the FeatureCollection file
+     * @param indexFile   the sidecar file of the index
+     * @return the index of the GeoJSON file
+     * @throws IOException if the GeoJSON file can't be read or the sidecar can't be written
+     */
+    public static GeoJsonSpatialIndex open(File geoJsonFile, File indexFile) throws IOException {
+        if (indexFile.exists()) {
+            try {
+                GeoJsonSpatialIndex index = read(indexFile);
+                if (index.isCurrent(geoJsonFile)) {
+                    return index;
+                }
+            }
+            catch (IOException e) {
+                // an unreadable sidecar is rebuilt like a stale one
+            }
+        }
+        GeoJsonSpatialIndex index = build(geoJsonFile);
+        index.write(indexFile);
+        return index;
+    }
+
+    /**
+     * @return true if the GeoJSON file is the same size and has the same modification time as when it was indexed
+     */
+    public boolean isCurrent(File geoJsonFile) {
+        return geoJsonFile.length() == sourceLength && geoJsonFile.lastModified() == sourceModified;
+    }
+
+    /**
+     * @return the number of features with a geometry
+     */
+    public int size() {
+        return numItems;
+    }
+
+    /**
+     * @return every feature with a geometry, in file order
+     */
+    public int[] all() {
+        int[] items = Arrays.copyOf(indices, numItems);
+        Arrays.sort(items);
+        return items;
+    }
+
+    /**
+     * Finds a feature by its GeoJSON id.
+     *
+     * @return the feature to pass to {@link #readFeature(RandomAccessFile, int)}, or -1 if no feature has the id
+     */
+    public int findById(String id) {
+        Integer item = featuresById.get(id);
+        return item != null ? item : -1;
+    }
+
+    /**
+     * Finds the features whose envelopes intersect a bounding box.
+     *
+     * @return the matching features, in file order so they can be read with forward seeks
+     */
+    public int[] search(double minX, double minY, double maxX, double maxY) {
+        if (numItems == 0) {
+            return new int[0];
+        }
+        int[] results = new int[16];
+        int count = 0;
+        int[] stack = new int[16];
+        int stackSize = 0;
+        int nodeIndex = boxes.length / 4 - 1;
+        int level = levelBounds.length - 1;
+
+        while (true) {
+            int end = Math.min(nodeIndex + NODE_SIZE, levelBounds[level]);
+            for (int pos = nodeIndex; pos < end; pos++) {
+                if (maxX < boxes[4 * pos] || maxY < boxes[4 * pos + 1] ||
+                        minX > boxes[4 * pos + 2] || minY > boxes[4 * pos + 3]) {
+                    continue;
+                }
+                if (nodeIndex < numItems) {
+                    if (count == results.length) {
+                        results = Arrays.copyOf(results, count * 2);
+                    }
+                    results[count++] = indices[pos];
+                }
+                else {
+                    if (stackSize + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = indices[pos];
+                    stack[stackSize++] = level - 1;
+                }
+            }
+            if (stackSize == 0) {
+                break;
+            }
+            level = stack[--stackSize];
+            nodeIndex = stack[--stackSize];
+        }
+        int[] items = Arrays.copyOf(results, count);
+        Arrays.sort(items);
+        return items;
+    }
+
+    /**
+     * Reads and parses one indexed feature from the GeoJSON file.
+     *
+     * @param file the GeoJSON file, opened for reading
+     * @param item the feature to read
+     * @return the feature, or null if it couldn't be parsed
+     */
+    public SCSpatialFeature readFeature(RandomAccessFile file, int item) throws IOException {
+        byte[] json = new byte[lengths[item]];
+        file.seek(offsets[item]);
+        file.readFully(json);
+        return new JsonUtilities().getSpatialFeatureFromJson(SCObjectMapper.getMapper().readTree(json));
+    }
+
+    /**
+     * Scans a GeoJSON FeatureCollection file and builds the index of its features.
+     */
+    public static GeoJsonSpatialIndex build(File geoJsonFile) throws IOException {
+        long sourceLength = geoJsonFile.length();
+        long sourceModified = geoJsonFile.lastModified();
+        List<long[]> ranges = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        List<Integer> items = new ArrayList<>();
+        List<Envelope> envelopes = new ArrayList<>();
+        SCGeometryFactory factory = new SCGeometryFactory();
+
+        // the parser has to read bytes, not chars, for the token locations to be byte offsets
+        JsonParser parser = SCObjectMapper.getMapper().getFactory()
+                .createParser(new BufferedInputStream(FileUtils.openInputStream(geoJsonFile)));
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The GeoJSON document is not an object.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (!"features".equals(fieldName) || value != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+                    if (token != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    long start = parser.getTokenLocation().getByteOffset();
+                    JsonNode featureNode = parser.readValueAsTree();
+                    long end = parser.getCurrentLocation().getByteOffset();
+                    JsonNode idNode = featureNode.get("id");
+                    ranges.add(new long[]{start, end - start});
+                    ids.add(idNode != null && !idNode.isNull() ? idNode.asText() : null);
+
+                    // features without a geometry can be found by id but never match a bbox
+                    JsonNode geometryNode = featureNode.get("geometry");
+                    if (geometryNode == null || geometryNode.isNull()) {
+                        continue;
+                    }
+                    SCGeometry geometry = factory.getGeometryFromGeoJson(geometryNode);
+                    if (geometry == null || geometry.getGeometry().isEmpty()) {
+                        continue;
+                    }
+                    items.add(ranges.size() - 1);
+                    envelopes.add(geometry.getGeometry().getEnvelopeInternal());
+                }
+            }
+        }
+        finally {
+            parser.close();
+        }
+        return pack(sourceLength, sourceModified, ranges, ids, items, envelopes);
+    }
+
+    // sorts the features with a geometry along a Hilbert curve and packs them into a tree, bottom up
+    private static GeoJsonSpatialIndex pack(long sourceLength, long sourceModified, List<long[]> ranges,
+                                            List<String> ids, List<Integer> items, List<Envelope> envelopes) {
+        long[] offsets = new long[ranges.size()];
+        int[] lengths = new int[ranges.size()];
+        for (int i = 0; i < ranges.size(); i++) {
+            offsets[i] = ranges.get(i)[0];
+            lengths[i] = (int) ranges.get(i)[1];
+        }
+        String[] featureIds = ids.toArray(new String[ids.size()]);
+        int numItems = items.size();
+
+        List<Integer> levelBoundList = new ArrayList<>();
+        int n = numItems;
+        int numNodes = n;
+        levelBoundList.add(n);
+        while (n > 1) {
+            n = (n + NODE_SIZE - 1) / NODE_SIZE;
+            numNodes += n;
+            levelBoundList.add(numNodes);
+        }
+        int[] levelBounds = new int[levelBoundList.size()];
+        for (int i = 0; i < levelBounds.length; i++) {
+            levelBounds[i] = levelBoundList.get(i);
+        }
+        double[] boxes = new double[numNodes * 4];
+        int[] indices = new int[numNodes];
+        if (numItems == 0) {
+            return new GeoJsonSpatialIndex(sourceLength, sourceModified, offsets, lengths, featureIds, boxes,
+                    indices, levelBounds);
+        }
+
+        Envelope extent = new Envelope();
+        for (Envelope envelope : envelopes) {
+            extent.expandToInclude(envelope);
+        }
+        double width = extent.getWidth() > 0 ? extent.getWidth() : 1;
+        double height = extent.getHeight() > 0 ? extent.getHeight() : 1;
+        final long[] hilbertValues = new long[numItems];
+        Integer[] order = new Integer[numItems];
+        for (int i = 0; i < numItems; i++) {
+            Envelope envelope = envelopes.get(i);
+            int x = (int) (HILBERT_MAX * ((envelope.getMinX() + envelope.getMaxX()) / 2 - extent.getMinX()) / width);
+            int y = (int) (HILBERT_MAX * ((envelope.getMinY() + envelope.getMaxY()) / 2 - extent.getMinY()) / height);
+            hilbertValues[i] = hilbert(x, y);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer item1, Integer item2) {
+                long diff = hilbertValues[item1] - hilbertValues[item2];
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (int pos = 0; pos < numItems; pos++) {
+            Envelope envelope = envelopes.get(order[pos]);
+            setBox(boxes, pos, envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+            indices[pos] = items.get(order[pos]);
+        }
+
+        int pos = 0;
+        int next = numItems;
+        for (int level = 0; level < levelBounds.length - 1; level++) {
+            int end = levelBounds[level];
+            while (pos < end) {
+                int firstChild = pos;
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < NODE_SIZE && pos < end; i++, pos++) {
+                    minX = Math.min(minX, boxes[4 * pos]);
+                    minY = Math.min(minY, boxes[4 * pos + 1]);
+                    maxX = Math.max(maxX, boxes[4 * pos + 2]);
+                    maxY = Math.max(maxY, boxes[4 * pos + 3]);
+                }
+                setBox(boxes, next, minX, minY, maxX, maxY);
+                indices[next] = firstChild;
+                next++;
+            }
+        }
+        return new GeoJsonSpatialIndex(sourceLength, sourceModified, offsets, lengths, featureIds, boxes, indices,
+                levelBounds);
+    }
+
+    private static void setBox(double[] boxes, int pos, double minX, double minY, double maxX, double maxY) {
+        boxes[4 * pos] = minX;
+        boxes[4 * pos + 1] = minY;
+        boxes[4 * pos + 2] = maxX;
+        boxes[4 * pos + 3] = maxY;
+    }
+
+    // the distance of the cell (x, y) along a Hilbert curve filling a 2^16 x 2^16 grid
+    private static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = 1 << 15; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_MAX - x;
+                    y = HILBERT_MAX - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private void write(File indexFile) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(sourceModified);
+            out.writeInt(offsets.length);
+            out.writeInt(levelBounds.length);
+            for (int levelBound : levelBounds) {
+                out.writeInt(levelBound);
+            }
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeBoolean(ids[i] != null);
+                if (ids[i] != null) {
+                    out.writeUTF(ids[i]);
+                }
+            }
+            for (double value : boxes) {
+                out.writeDouble(value);
+            }
+            for (int index : indices) {
+                out.writeInt(index);
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(indexFile)) {
+            tmpFile.delete();
+            throw new IOException("Couldn't save the index to " + indexFile.getPath());
+        }
+    }
+
+    private static GeoJsonSpatialIndex read(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(indexFile.getPath() + " is not a GeoJSON index this version can read.");
+            }
+            long sourceLength = in.readLong();
+            long sourceModified = in.readLong();
+            int numFeatures = in.readInt();
+            int[] levelBounds = new int[in.readInt()];
+            for (int i = 0; i < levelBounds.length; i++) {
+                levelBounds[i] = in.readInt();
+            }
+            long[] offsets = new long[numFeatures];
+            int[] lengths = new int[numFeatures];
+            String[] ids = new String[numFeatures];
+            for (int i = 0; i < numFeatures; i++) {
+                offsets[i] = in.readLong();
+                lengths[i] = in.readInt();
+                ids[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            int numNodes = levelBounds[levelBounds.length - 1];
+            double[] boxes = new double[numNodes * 4];
+            for (int i = 0; i < boxes.length; i++) {
+                boxes[i] = in.readDouble();
+            }
+            int[] indices = new int[numNodes];
+            for (int i = 0; i < numNodes; i++) {
+                indices[i] = in.readInt();
+            }
+            return new GeoJsonSpatialIndex(sourceLength, sourceModified, offsets, lengths, ids, boxes, indices,
+                    levelBounds);
+        }
+        finally {
+            in.close();
+        }
+    }
+}
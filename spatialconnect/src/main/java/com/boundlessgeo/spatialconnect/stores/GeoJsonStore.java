@@ -20,27 +20,32 @@ import android.util.Log;
 
 import com.boundlessgeo.spatialconnect.SpatialConnect;
 import com.boundlessgeo.spatialconnect.config.SCStoreConfig;
+import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
-import com.boundlessgeo.spatialconnect.geometries.SCGeometryCollection;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometryFactory;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCPredicate;
 import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
 import com.boundlessgeo.spatialconnect.style.SCStyle;
 
 import org.apache.commons.io.FileUtils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import rx.Observable;
 import rx.Subscriber;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
 
 public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCDataStoreLifeCycle {
@@ -53,6 +58,33 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
     private Context context;
     private final String EXT = ".json";
     private String geojsonFilePath;
+    private final String INDEX_EXT = ".idx";
+    /**
+     * The spatial index of the GeoJSON file, or null if it couldn't be built and queries have to scan the file.
+     */
+    private volatile GeoJsonSpatialIndex spatialIndex;
+
+    /**
+     * The key of the store config option that imports the GeoJSON into a GeoPackage when the store starts, so queries
+     * use the GeoPackage's R-tree instead of the file.
+     */
+    public static final String IMPORT_OPTION = "import_to_gpkg";
+    private static final String IMPORT_LAYER = "geojson_features";
+    private static final String IMPORT_SUFFIX = "_import";
+    /**
+     * The indexed column of the import that holds each feature's GeoJSON id, since the GeoPackage assigns its own.
+     */
+    private static final String IMPORT_ID_COLUMN = "geojson_id";
+    /**
+     * The version of the import's layout, part of the fingerprint so imports made before a change are redone.
+     */
+    private static final int IMPORT_VERSION = 3;
+    private final String IMPORT_EXT = ".imported";
+    private static final Pattern IMPORT_COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    /**
+     * The GeoPackage the GeoJSON was imported into, or null if the store queries the file.
+     */
+    private volatile GeoPackageStore importedStore;
 
     public GeoJsonStore(Context context, SCStoreConfig scStoreConfig) {
         this(context, scStoreConfig, null);
@@ -78,21 +110,31 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
 
     @Override
     public Observable<SCSpatialFeature> query(final SCQueryFilter filter) {
-
-        SCGeometryFactory factory = new SCGeometryFactory();
-        // TODO: updated the Json --> SCSpatialFetures code to use InputStreams instead of Strings
-        final SCGeometryCollection collection = factory.getGeometryCollectionFromFeatureCollectionJson(
-                getResourceAsString()
-        );
-
-        return Observable.from(collection.getFeatures())
+        if (importedStore != null) {
+            return queryImportedStore(filter);
+        }
+        final File geoJsonFile = new File(context.getFilesDir(), geojsonFilePath);
+        GeoJsonSpatialIndex index = spatialIndex;
+        if (index == null || !index.isCurrent(geoJsonFile)) {
+            index = openSpatialIndex();
+        }
+        Observable<SCSpatialFeature> features;
+        if (index != null) {
+            features = queryIndex(index, geoJsonFile, filter.getPredicate());
+        }
+        else {
+            // features are parsed from the file as they're requested, and reading stops once the limit is reached
+            features = new SCGeometryFactory().getFeaturesFromFeatureCollectionJson(geoJsonFile);
+        }
+        return features
                 .filter(
                         new Func1<SCSpatialFeature, Boolean>() {
                             @Override
                             public Boolean call(SCSpatialFeature feature) {
                                 if (feature instanceof SCGeometry &&
                                         ((SCGeometry) feature).getGeometry() != null &&
-                                        filter.getPredicate().applyFilter((SCGeometry) feature)) {
+                                        (filter.getPredicate() == null ||
+                                                filter.getPredicate().applyFilter((SCGeometry) feature))) {
                                     return true;
                                 }
                                 else {
@@ -106,14 +148,47 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
                         scSpatialFeature.setStoreId(scStoreConfig.getUniqueID());
                         scSpatialFeature.setLayerId(DEFAULTLAYER);
                         scSpatialFeature.setId(scSpatialFeature.getId());
-                        return scSpatialFeature;
+                        return filter.applyProjection(scSpatialFeature);
                     }
-                });
+                })
+                .take(filter.getLimit());
     }
 
     @Override
-    public Observable<SCSpatialFeature> queryById(SCKeyTuple keyTuple) {
-        return query(null);
+    public Observable<SCSpatialFeature> queryById(final SCKeyTuple keyTuple) {
+        if (importedStore != null) {
+            return mapImportedFeatures(
+                    importedStore.queryByProperty(IMPORT_LAYER, IMPORT_ID_COLUMN, keyTuple.getFeatureId())
+            );
+        }
+        final File geoJsonFile = new File(context.getFilesDir(), geojsonFilePath);
+        GeoJsonSpatialIndex index = spatialIndex;
+        if (index == null || !index.isCurrent(geoJsonFile)) {
+            index = openSpatialIndex();
+        }
+        Observable<SCSpatialFeature> features;
+        if (index != null) {
+            int item = index.findById(keyTuple.getFeatureId());
+            features = readIndexedFeatures(index, geoJsonFile, item < 0 ? new int[0] : new int[]{item});
+        }
+        else {
+            features = new SCGeometryFactory().getFeaturesFromFeatureCollectionJson(geoJsonFile)
+                    .filter(new Func1<SCSpatialFeature, Boolean>() {
+                        @Override
+                        public Boolean call(SCSpatialFeature feature) {
+                            return keyTuple.getFeatureId().equals(feature.getId());
+                        }
+                    })
+                    .take(1);
+        }
+        return features.map(new Func1<SCSpatialFeature, SCSpatialFeature>() {
+            @Override
+            public SCSpatialFeature call(SCSpatialFeature feature) {
+                feature.setStoreId(scStoreConfig.getUniqueID());
+                feature.setLayerId(DEFAULTLAYER);
+                return feature;
+            }
+        });
     }
 
     @Override
@@ -135,6 +210,21 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
         });
     }
 
+    /**
+     * Features can't be written back to the GeoJSON file, so batched writes fail rather than reporting features that
+     * were never stored.
+     */
+    @Override
+    public Observable<Boolean> createAll(Observable<SCSpatialFeature> scSpatialFeatures) {
+        return Observable.error(new SCDataStoreException(
+                String.format("GeoJSON store %s does not support creating features.", getStoreId())));
+    }
+
+    @Override
+    public Observable<Boolean> createBatch(List<SCSpatialFeature> scSpatialFeatures) {
+        return createAll(Observable.from(scSpatialFeatures));
+    }
+
     @Override
     public Observable<Boolean> update(final SCSpatialFeature scSpatialFeature) {
         return Observable.create(new Observable.OnSubscribe<Boolean>() {
@@ -188,6 +278,7 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
                         //download from web
                         try {
                             URL theUrl = new URL(scStoreConfig.getUri());
+                            final long downloadStart = System.currentTimeMillis();
                             download(theUrl.toString(), geoJsonFile)
                                     .subscribe(
                                         new Action1<Float>() {
@@ -198,9 +289,11 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
                                                     setStatus(SCDataStoreStatus.SC_DATA_STORE_DOWNLOADING_DATA);
                                                     subscriber.onNext(new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_DOWNLOADING_DATA));
                                                 } else {
+                                                    startupTiming.record(SCStoreStartupTiming.DOWNLOAD,
+                                                            System.currentTimeMillis() - downloadStart);
                                                     setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
                                                     geojsonFilePath = filePath;
-                                                    subscriber.onCompleted();
+                                                    prepareQueries(subscriber);
                                                 }
                                             }
                                         },
@@ -240,7 +333,7 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
                                     FileUtils.copyInputStreamToFile(is, f);
                                     geojsonFilePath = localUriPath;
                                     parentStore.setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
-                                    subscriber.onCompleted();
+                                    prepareQueries(subscriber);
                                 } else {
                                     String errorString = "The config specified a store that should exist on the " +
                                             "filesystem but it could not be located.";
@@ -269,7 +362,7 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
                                     (GeoJsonStore) SpatialConnect.getInstance().getDataService().getStoreByIdentifier(scStoreConfig.getUniqueID());
                             parentStore.setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
                             //adapterInstance.connected();
-                            subscriber.onCompleted();
+                            prepareQueries(subscriber);
                         }
                     }
 
@@ -278,7 +371,7 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
                             (GeoJsonStore) SpatialConnect.getInstance().getDataService().getStoreByIdentifier(scStoreConfig.getUniqueID());
                     parentStore.setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
                     geojsonFilePath = filePath;
-                    subscriber.onCompleted();
+                    prepareQueries(subscriber);
                 }
             }
         });
@@ -286,6 +379,9 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
     }
 
     public void stop() {
+        if (importedStore != null) {
+            importedStore.stop();
+        }
         this.setStatus(SCDataStoreStatus.SC_DATA_STORE_STOPPED);
     }
 
@@ -299,6 +395,280 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
 
     public void destroy() {
         deleteFile(getPath());
+        if (geojsonFilePath != null) {
+            deleteFile(new File(context.getFilesDir(), geojsonFilePath + INDEX_EXT).getPath());
+            deleteFile(new File(context.getFilesDir(), geojsonFilePath + IMPORT_EXT).getPath());
+        }
+        context.deleteDatabase(scStoreConfig.getUniqueID() + IMPORT_SUFFIX);
+    }
+
+    // readies the store for queries once the GeoJSON file is available, then completes the start
+    private void prepareQueries(Subscriber<? super SCStoreStatusEvent> subscriber) {
+        long indexStart = System.currentTimeMillis();
+        if (scStoreConfig.getOptions() != null && scStoreConfig.getOptions().path(IMPORT_OPTION).asBoolean(false)) {
+            try {
+                importedStore = importIntoGeoPackage(subscriber);
+            }
+            catch (Exception e) {
+                Log.w(LOG_TAG, "Couldn't import the GeoJSON into a GeoPackage, queries will use the file.", e);
+                importedStore = null;
+            }
+        }
+        if (importedStore == null) {
+            openSpatialIndex();
+        }
+        startupTiming.record(SCStoreStartupTiming.INDEX, System.currentTimeMillis() - indexStart);
+        subscriber.onCompleted();
+    }
+
+    /**
+     * Imports the features of the GeoJSON file into a GeoPackage.  The import is skipped if the GeoPackage already
+     * holds an import of the file with the same size and modification time.  The file is streamed twice: once to find
+     * the property columns and count the features, then again to write the features in batches, reporting the
+     * progress of the import as download progress.  Each feature's GeoJSON id is written to an indexed column, so
+     * the features keep the ids they have when the file is queried.
+     *
+     * @return the started store of the GeoPackage
+     */
+    private GeoPackageStore importIntoGeoPackage(final Subscriber<? super SCStoreStatusEvent> subscriber)
+            throws IOException {
+        final File geoJsonFile = new File(context.getFilesDir(), geojsonFilePath);
+        File markerFile = new File(context.getFilesDir(), geojsonFilePath + IMPORT_EXT);
+        String fingerprint = IMPORT_VERSION + ":" + geoJsonFile.length() + ":" + geoJsonFile.lastModified();
+        final String importId = scStoreConfig.getUniqueID() + IMPORT_SUFFIX;
+        boolean current = markerFile.exists() &&
+                context.getDatabasePath(importId).exists() &&
+                FileUtils.readFileToString(markerFile, "UTF-8").equals(fingerprint);
+        if (!current) {
+            markerFile.delete();
+            context.deleteDatabase(importId);
+        }
+
+        SCStoreConfig importConfig = new SCStoreConfig();
+        importConfig.setUniqueID(importId);
+        importConfig.setName(scStoreConfig.getName());
+        importConfig.setType(GeoPackageStore.TYPE);
+        importConfig.setVersion(scStoreConfig.getVersion());
+        importConfig.setUri("file://" + importId);
+        importConfig.setOptions(scStoreConfig.getOptions());
+        // the import is never synced, so its writes aren't logged
+        GeoPackageStore store = new GeoPackageStore(context, importConfig, null, false);
+        store.start().toBlocking().lastOrDefault(null);
+        store.setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
+        if (current) {
+            Log.d(LOG_TAG, "The GeoJSON was already imported into " + importId);
+            return store;
+        }
+
+        final SCGeometryFactory factory = new SCGeometryFactory();
+        final Map<String, String> fields = new LinkedHashMap<>();
+        fields.put(IMPORT_ID_COLUMN, "TEXT");
+        final int[] total = {0};
+        factory.getFeaturesFromFeatureCollectionJson(geoJsonFile).toBlocking().forEach(
+                new Action1<SCSpatialFeature>() {
+                    @Override
+                    public void call(SCSpatialFeature feature) {
+                        total[0]++;
+                        for (Map.Entry<String, Object> property : feature.getProperties().entrySet()) {
+                            if (property.getValue() != null && isImportColumnName(property.getKey())) {
+                                fields.put(property.getKey(),
+                                        getImportColumnType(property.getValue(), fields.get(property.getKey())));
+                            }
+                        }
+                    }
+                }
+        );
+        store.addLayer(IMPORT_LAYER, fields);
+        store.addIndex(IMPORT_LAYER, IMPORT_ID_COLUMN);
+
+        final int progressInterval = Math.max(1, store.getBatchSize());
+        final int[] imported = {0};
+        store.createAll(
+                factory.getFeaturesFromFeatureCollectionJson(geoJsonFile)
+                        .map(new Func1<SCSpatialFeature, SCSpatialFeature>() {
+                            @Override
+                            public SCSpatialFeature call(SCSpatialFeature feature) {
+                                feature.setStoreId(importId);
+                                feature.setLayerId(IMPORT_LAYER);
+                                feature.getProperties().put(IMPORT_ID_COLUMN, feature.getId());
+                                return feature;
+                            }
+                        })
+        ).toBlocking().forEach(new Action1<SCSpatialFeature>() {
+            @Override
+            public void call(SCSpatialFeature feature) {
+                imported[0]++;
+                if (imported[0] % progressInterval == 0 || imported[0] == total[0]) {
+                    setDownloadProgress((float) imported[0] / total[0]);
+                    subscriber.onNext(new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_DOWNLOAD_PROGRESS));
+                }
+            }
+        });
+        FileUtils.writeStringToFile(markerFile, fingerprint, "UTF-8");
+        Log.d(LOG_TAG, String.format("Imported %d features into %s", imported[0], importId));
+        return store;
+    }
+
+    private static boolean isImportColumnName(String propertyName) {
+        if (!IMPORT_COLUMN_NAME.matcher(propertyName).matches() ||
+                propertyName.equalsIgnoreCase("id") || propertyName.equalsIgnoreCase("geom") ||
+                propertyName.equalsIgnoreCase(IMPORT_ID_COLUMN)) {
+            Log.w(LOG_TAG, "The property " + propertyName + " can't be used as a column so it won't be imported.");
+            return false;
+        }
+        return true;
+    }
+
+    // widens the column type so it can hold the value: INTEGER to REAL, and anything mixed with text to TEXT
+    private static String getImportColumnType(Object value, String currentType) {
+        String type;
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Boolean) {
+            type = "INTEGER";
+        }
+        else if (value instanceof Number) {
+            type = "REAL";
+        }
+        else {
+            type = "TEXT";
+        }
+        if (currentType == null || currentType.equals(type)) {
+            return type;
+        }
+        if (!currentType.equals("TEXT") && !type.equals("TEXT")) {
+            return "REAL";
+        }
+        return "TEXT";
+    }
+
+    // runs the query against the imported GeoPackage, reporting the features as this store's
+    private Observable<SCSpatialFeature> queryImportedStore(SCQueryFilter filter) {
+        SCQueryFilter importFilter = new SCQueryFilter(filter.getPredicate());
+        importFilter.addLayerId(IMPORT_LAYER);
+        importFilter.setLimit(filter.getLimit());
+        for (String propertyName : filter.getPropertyNames()) {
+            importFilter.addPropertyName(propertyName);
+        }
+        if (filter.getPropertyNames().size() > 0) {
+            importFilter.addPropertyName(IMPORT_ID_COLUMN);
+        }
+        importFilter.setGeometryProjection(filter.getGeometryProjection());
+        return mapImportedFeatures(importedStore.query(importFilter));
+    }
+
+    // reports the imported features as this store's, keyed by their GeoJSON ids
+    private Observable<SCSpatialFeature> mapImportedFeatures(Observable<SCSpatialFeature> features) {
+        return features.map(new Func1<SCSpatialFeature, SCSpatialFeature>() {
+            @Override
+            public SCSpatialFeature call(SCSpatialFeature feature) {
+                Object geoJsonId = feature.getProperties().remove(IMPORT_ID_COLUMN);
+                if (geoJsonId != null) {
+                    feature.setId(String.valueOf(geoJsonId));
+                }
+                feature.setStoreId(scStoreConfig.getUniqueID());
+                feature.setLayerId(DEFAULTLAYER);
+                return feature;
+            }
+        });
+    }
+
+    /**
+     * Loads the spatial index of the GeoJSON file, building it if it's missing or the file has changed since it was
+     * built.
+     *
+     * @return the index, or null if it couldn't be built
+     */
+    private synchronized GeoJsonSpatialIndex openSpatialIndex() {
+        File geoJsonFile = new File(context.getFilesDir(), geojsonFilePath);
+        if (spatialIndex == null || !spatialIndex.isCurrent(geoJsonFile)) {
+            try {
+                long start = System.currentTimeMillis();
+                spatialIndex = GeoJsonSpatialIndex.open(
+                        geoJsonFile, new File(context.getFilesDir(), geojsonFilePath + INDEX_EXT)
+                );
+                Log.d(LOG_TAG, String.format("Opened the index of %d features in %d ms",
+                        spatialIndex.size(), System.currentTimeMillis() - start));
+            }
+            catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't index " + geoJsonFile.getPath() + ", queries will scan the file.", e);
+                spatialIndex = null;
+            }
+        }
+        return spatialIndex;
+    }
+
+    // reads only the features whose envelopes may match the predicate
+    private Observable<SCSpatialFeature> queryIndex(final GeoJsonSpatialIndex index,
+                                                    final File geoJsonFile,
+                                                    final SCPredicate predicate) {
+        return Observable.defer(new Func0<Observable<SCSpatialFeature>>() {
+            @Override
+            public Observable<SCSpatialFeature> call() {
+                final int[] items;
+                if (predicate == null || predicate.getBoundingBox() == null ||
+                        predicate.getGeometryComparison() ==
+                                SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_NOTWITHIN) {
+                    items = index.all();
+                }
+                else {
+                    SCBoundingBox bbox = predicate.getBoundingBox();
+                    items = index.search(bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(), bbox.getMaxY());
+                }
+                return readIndexedFeatures(index, geoJsonFile, items);
+            }
+        });
+    }
+
+    // seeks to and parses each of the indexed features, keeping the file open until the features are consumed
+    private Observable<SCSpatialFeature> readIndexedFeatures(final GeoJsonSpatialIndex index,
+                                                             final File geoJsonFile,
+                                                             final int[] items) {
+        return Observable.using(
+                new Func0<RandomAccessFile>() {
+                    @Override
+                    public RandomAccessFile call() {
+                        try {
+                            return new RandomAccessFile(geoJsonFile, "r");
+                        }
+                        catch (IOException e) {
+                            throw new IllegalStateException("Couldn't open " + geoJsonFile.getPath(), e);
+                        }
+                    }
+                },
+                new Func1<RandomAccessFile, Observable<SCSpatialFeature>>() {
+                    @Override
+                    public Observable<SCSpatialFeature> call(final RandomAccessFile file) {
+                        return Observable.range(0, items.length)
+                                .map(new Func1<Integer, SCSpatialFeature>() {
+                                    @Override
+                                    public SCSpatialFeature call(Integer i) {
+                                        try {
+                                            return index.readFeature(file, items[i]);
+                                        }
+                                        catch (IOException e) {
+                                            throw new IllegalStateException("Couldn't read a feature.", e);
+                                        }
+                                    }
+                                })
+                                .filter(new Func1<SCSpatialFeature, Boolean>() {
+                                    @Override
+                                    public Boolean call(SCSpatialFeature feature) {
+                                        return feature != null;
+                                    }
+                                });
+                    }
+                },
+                new Action1<RandomAccessFile>() {
+                    @Override
+                    public void call(RandomAccessFile file) {
+                        try {
+                            file.close();
+                        }
+                        catch (IOException e) {
+                            Log.e(LOG_TAG, "Couldn't close the file.", e);
+                        }
+                    }
+                }
+        );
     }
 
     public String getPath() {
@@ -313,31 +683,4 @@ public class GeoJsonStore extends SCDataStore implements ISCSpatialStore, SCData
     public static String getVersionKey() {
         return String.format("%s.%s",TYPE, VERSION);
     }
-    private String getResourceAsString() {
-        InputStream is = null;
-        StringBuilder stringBuilder = null;
-        try {
-            final File geoJsonFile = new File(context.getFilesDir(), geojsonFilePath);
-            is = FileUtils.openInputStream(geoJsonFile);
-
-            BufferedReader bufferedreader = new BufferedReader(new InputStreamReader(is));
-            String line;
-            stringBuilder = new StringBuilder();
-
-            while ((line = bufferedreader.readLine()) != null) {
-                stringBuilder.append(line);
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Couldn't read the stream.", e);
-        } finally {
-            try {
-                if (is != null) {
-                    is.close();
-                }
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "Couldn't close the stream.", e);
-            }
-        }
-        return stringBuilder.toString();
-    }
 }
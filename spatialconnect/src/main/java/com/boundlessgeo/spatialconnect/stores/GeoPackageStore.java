@@ -18,16 +18,18 @@ import android.content.Context;
 import android.database.Cursor;
 import android.util.Log;
 
-import com.boundlessgeo.spatialconnect.SpatialConnect;
 import com.boundlessgeo.spatialconnect.config.SCStoreConfig;
 import com.boundlessgeo.spatialconnect.db.GeoPackage;
+import com.boundlessgeo.spatialconnect.db.GeoPackageBinary;
 import com.boundlessgeo.spatialconnect.db.GeoPackageContents;
 import com.boundlessgeo.spatialconnect.db.SCGpkgFeatureSource;
-import com.boundlessgeo.spatialconnect.db.SCSqliteHelper;
+import com.boundlessgeo.spatialconnect.db.SCGpkgRowDecoder;
 import com.boundlessgeo.spatialconnect.geometries.SCBoundingBox;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometry;
 import com.boundlessgeo.spatialconnect.geometries.SCPolygon;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryPredicateComparison;
+import com.boundlessgeo.spatialconnect.query.SCPredicate;
 import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
 import com.boundlessgeo.spatialconnect.style.SCStyle;
 import com.boundlessgeo.spatialconnect.tiles.GpkgTileProvider;
@@ -37,9 +39,9 @@ import com.google.android.gms.maps.model.TileOverlay;
 import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.squareup.sqlbrite.BriteDatabase;
 import com.squareup.sqlbrite.SqlBrite;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
-import com.vividsolutions.jts.io.WKBReader;
 
 import org.sqlite.database.SQLException;
 
@@ -50,7 +52,10 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -60,7 +65,9 @@ import java.util.concurrent.TimeUnit;
 import rx.Observable;
 import rx.Subscriber;
 import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.subjects.PublishSubject;
 
 /**
  * Provides capabilities for interacting with a single GeoPackage.
@@ -72,6 +79,33 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
     private static final String VERSION = "1";
     protected GeoPackage gpkg;
     protected SCStoreConfig scStoreConfig;
+
+    /**
+     * The default number of features written in a single transaction by {@link #createAll(Observable)}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * The key in the store config options used to override the {@link #DEFAULT_BATCH_SIZE}.
+     */
+    public static final String BATCH_SIZE_OPTION = "batch_size";
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Whether the writes to the GeoPackage are logged so they can be synced.
+     */
+    private final boolean logChanges;
+
+    /**
+     * Emits the name of a layer each time one is added or deleted.
+     */
+    private final PublishSubject<String> layerSetChanges = PublishSubject.create();
+
+    // envelope tests against the R-tree index, see createFeatureQuery
+    private static final String RTREE_INTERSECTS_CLAUSE = "r.minx <= ? AND r.maxx >= ? AND r.miny <= ? AND r.maxy >= ?";
+    private static final String RTREE_CONTAINED_CLAUSE = "r.minx >= ? AND r.maxx <= ? AND r.miny >= ? AND r.maxy <= ?";
+
     private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
 
     /**
@@ -86,13 +120,29 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
     }
 
     public GeoPackageStore(Context context, SCStoreConfig scStoreConfig, SCStyle style) {
+        this(context, scStoreConfig, style, true);
+    }
+
+    /**
+     * Constructor for a GeoPackageStore that may not be synced, such as a private copy of another store's data.
+     *
+     * @param context       instance of the current activity's context
+     * @param scStoreConfig instance of the configuration needed to configure the store
+     * @param style         the style of the store's layers, may be null
+     * @param logChanges    whether to log the writes to the GeoPackage so they can be synced
+     */
+    public GeoPackageStore(Context context, SCStoreConfig scStoreConfig, SCStyle style, boolean logChanges) {
         super(context, scStoreConfig);
+        this.logChanges = logChanges;
         this.scStoreConfig = scStoreConfig;
         this.setName(scStoreConfig.getName());
         this.setType(TYPE);
         this.setVersion(scStoreConfig.getVersion());
         this.getKey();
         this.style = style;
+        if (scStoreConfig.getOptions() != null) {
+            this.batchSize = scStoreConfig.getOptions().path(BATCH_SIZE_OPTION).asInt(DEFAULT_BATCH_SIZE);
+        }
     }
 
     public List<String> layers() {
@@ -134,6 +184,14 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
 
     public void addLayer(String layer, Map<String,String>  fields) {
         gpkg.addFeatureSource(layer, fields);
+        layerSetChanges.onNext(layer);
+    }
+
+    /**
+     * Indexes a column of a layer so {@link #queryByProperty(String, String, String)} doesn't scan the table.
+     */
+    public void addIndex(String layer, String column) {
+        gpkg.addIndex(layer, column);
     }
 
     public void deleteLayer(String layer) {
@@ -147,6 +205,42 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
         tx.markSuccessful();
         tx.end();
         gpkg.refreshFeatureSources();
+        layerSetChanges.onNext(layer);
+    }
+
+    /**
+     * Emits the name of a feature table each time features are written to it, or when the layer is added or deleted.
+     * The tables are listened to again whenever a layer is added or deleted, so new layers are followed too.
+     */
+    public Observable<String> layerChanges() {
+        if (gpkg == null) {
+            return Observable.empty();
+        }
+        return layerSetChanges.startWith((String) null)
+                .switchMap(new Func1<String, Observable<String>>() {
+                    @Override
+                    public Observable<String> call(String changedLayer) {
+                        Observable<String> tableChanges =
+                                gpkg.tableChanges(new ArrayList<>(gpkg.getFeatureSources().keySet()));
+                        return changedLayer == null ? tableChanges : tableChanges.startWith(changedLayer);
+                    }
+                });
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of features {@link #createAll(Observable)} will write in a single transaction.
+     *
+     * @param batchSize the number of features per transaction, must be greater than 0
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be greater than 0.");
+        }
+        this.batchSize = batchSize;
     }
 
     public String getFilePath() {
@@ -164,36 +258,49 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
 
         if (layers.size() > 0) {  // ensure only layers with feature sources are queried
             // if there are no layer names supplied in the query filter, then search on all feature sources
-            final List<String> featureTableNames = queryFilter.getLayerIds().size() > 0 ?
-                    queryFilter.getLayerIds() :
-                    new ArrayList<>(layers.keySet());
-            // TODO: decide on what to do if queryLimit division is 0
-            final int queryLimit = queryFilter.getLimit() / featureTableNames.size();
+            final List<String> featureTableNames = new ArrayList<>();
+            for (String layerName : queryFilter.getLayerIds().size() > 0 ?
+                    queryFilter.getLayerIds() : layers.keySet()) {
+                if (layers.containsKey(layerName)) {
+                    featureTableNames.add(layerName);
+                }
+            }
             Log.d(LOG_TAG, "querying on feature tables: " + featureTableNames.toString());
-            return Observable.from(featureTableNames)
-                    .filter(new Func1<String, Boolean>() {
-                        @Override
-                        public Boolean call(String featureTableName) {
-                            return layers.containsKey(featureTableName);
-                        }
-                    })
-                    .flatMap(new Func1<String, Observable<SCSpatialFeature>>() {
-                        @Override
-                        public Observable<SCSpatialFeature> call(final String layerName) {
-                            final SCGpkgFeatureSource featureSource = gpkg.getFeatureSourceByName(layerName);
-                            return gpkg.createQuery(
-                                    layerName,
-                                    String.format(
-                                            "SELECT %s FROM %s WHERE %s IN (%s) LIMIT %d",
-                                            getSelectColumnsString(featureSource),
-                                            layerName,
-                                            featureSource.getPrimaryKeyName(),
-                                            createRtreeSubQuery(featureSource, queryFilter.getPredicate().getBoundingBox()),
-                                            queryLimit
-                                    )
-                            ).flatMap(getFeatureMapper(featureSource)).onBackpressureBuffer(queryFilter.getLimit());
-                        }
-                    });
+            // defer so the limits are planned when the query is subscribed to, not when it's built
+            return Observable.defer(new Func0<Observable<SCSpatialFeature>>() {
+                @Override
+                public Observable<SCSpatialFeature> call() {
+                    Map<String, Integer> layerLimits = planLayerLimits(
+                            featureTableNames, queryFilter.getPredicate(), queryFilter.getLimit()
+                    );
+                    return Observable.from(layerLimits.entrySet())
+                            .flatMap(new Func1<Map.Entry<String, Integer>, Observable<SCSpatialFeature>>() {
+                                @Override
+                                public Observable<SCSpatialFeature> call(Map.Entry<String, Integer> layerLimit) {
+                                    SCGpkgFeatureSource featureSource =
+                                            gpkg.getFeatureSourceByName(layerLimit.getKey());
+                                    SCGpkgRowDecoder decoder = getRowDecoder(featureSource, queryFilter);
+                                    SCPredicate predicate = queryFilter.getPredicate();
+                                    // the queries are run once so they complete instead of following the table
+                                    Observable<SCSpatialFeature> features = gpkg.createQuery(
+                                            layerLimit.getKey(),
+                                            createFeatureQuery(featureSource, decoder, predicate),
+                                            getFeatureQueryArgs(predicate, layerLimit.getValue())
+                                    ).take(1).flatMap(getFeatureMapper(decoder));
+                                    if (isNotWithin(predicate)) {
+                                        // the features whose envelope intersects the bbox may still not intersect it
+                                        features = features.mergeWith(gpkg.createQuery(
+                                                layerLimit.getKey(),
+                                                createNotWithinCandidateQuery(featureSource, decoder),
+                                                getFeatureQueryArgs(predicate, -1)
+                                        ).take(1).flatMap(getNotWithinMapper(decoder, predicate)))
+                                                .take(layerLimit.getValue());
+                                    }
+                                    return features.onBackpressureBuffer(queryFilter.getLimit());
+                                }
+                            });
+                }
+            });
         }
         else {
             // can't query on geopackages with no features
@@ -201,6 +308,81 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
         }
     }
 
+    /**
+     * Splits the query limit between the layers so that the query returns up to {@code limit} features in one pass.
+     * The number of features matching the predicate in each layer is counted from its R-tree index (capped at the
+     * limit, so the count never scans more than the query would read).  Layers are then filled from the sparsest to
+     * the densest, each taking at most an even share of what is left, so the quota a sparse layer doesn't need is
+     * handed on to the denser layers.
+     *
+     * @return the limit for each layer that has matching features
+     */
+    private Map<String, Integer> planLayerLimits(List<String> featureTableNames, SCPredicate predicate, int limit) {
+        Map<String, Integer> layerLimits = new LinkedHashMap<>();
+        if (featureTableNames.size() == 1) {
+            layerLimits.put(featureTableNames.get(0), limit);
+            return layerLimits;
+        }
+
+        final Map<String, Integer> matchCounts = new HashMap<>();
+        for (String layerName : featureTableNames) {
+            matchCounts.put(layerName, countMatches(gpkg.getFeatureSourceByName(layerName), predicate, limit));
+        }
+        List<String> sparsestFirst = new ArrayList<>(featureTableNames);
+        Collections.sort(sparsestFirst, new Comparator<String>() {
+            @Override
+            public int compare(String layer1, String layer2) {
+                return matchCounts.get(layer1).compareTo(matchCounts.get(layer2));
+            }
+        });
+
+        int remaining = limit;
+        for (int i = 0; i < sparsestFirst.size() && remaining > 0; i++) {
+            String layerName = sparsestFirst.get(i);
+            int share = remaining / (sparsestFirst.size() - i);
+            int layerLimit = Math.min(matchCounts.get(layerName), share);
+            if (layerLimit > 0) {
+                layerLimits.put(layerName, layerLimit);
+                remaining -= layerLimit;
+            }
+        }
+        return layerLimits;
+    }
+
+    // counts the features in the layer matching the predicate, stopping once the limit is reached
+    private int countMatches(SCGpkgFeatureSource source, SCPredicate predicate, int limit) {
+        if (isNotWithin(predicate)) {
+            // only an exact check of the geometries tells how many match, so count every feature as a candidate
+            predicate = null;
+        }
+        String sql;
+        if (predicate == null || predicate.getBoundingBox() == null) {
+            sql = String.format("SELECT COUNT(*) FROM (SELECT 1 FROM %s LIMIT ?)", source.getTableName());
+        }
+        else {
+            sql = String.format("SELECT COUNT(*) FROM (SELECT 1 FROM rtree_%s_%s AS r WHERE %s LIMIT ?)",
+                    source.getTableName(),
+                    source.getGeomColumnName(),
+                    getEnvelopeClause(predicate)
+            );
+        }
+        Cursor cursor = null;
+        try {
+            cursor = gpkg.query(sql, getFeatureQueryArgs(predicate, limit));
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        }
+        catch (SQLException ex) {
+            Log.w(LOG_TAG, "Could not count the features in " + source.getTableName() + " b/c " + ex.getMessage());
+            // fall back to letting the layer compete for the whole limit
+            return limit;
+        }
+        finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     @Override
     public Observable<SCSpatialFeature> queryById(final SCKeyTuple keyTuple) {
         final String tableName = keyTuple.getLayerId();
@@ -217,14 +399,45 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
             return gpkg.createQuery(
                     tableName,
                     String.format(
-                            "SELECT %s FROM %s WHERE %s = %s LIMIT 1",
-                            getSelectColumnsString(featureSource),
+                            "SELECT %s FROM %s AS f WHERE f.%s = ? LIMIT 1",
+                            featureSource.getRowDecoder().getSelectColumns(),
                             tableName,
-                            featureSource.getPrimaryKeyName(),
-                            keyTuple.getFeatureId()
+                            featureSource.getPrimaryKeyName()
+                    ),
+                    keyTuple.getFeatureId()
+            ).flatMap(getFeatureMapper(featureSource.getRowDecoder()));
+        }
+    }
+
+    /**
+     * Queries the first feature of the layer whose column holds the value, for layers keyed by something other than
+     * their primary key.
+     *
+     * @param layer  the name of the feature table
+     * @param column the name of the column, which should be indexed
+     * @param value  the value to look up
+     * @return an Observable of the feature, empty if no feature has the value
+     */
+    public Observable<SCSpatialFeature> queryByProperty(String layer, String column, String value) {
+        final SCGpkgFeatureSource featureSource = gpkg.getFeatureSourceByName(layer);
+        if (featureSource == null || !featureSource.getColumns().containsKey(column)) {
+            return Observable.error(
+                    new SCDataStoreException(
+                            SCDataStoreException.ExceptionType.LAYER_NOT_FOUND,
+                            String.format("%s was not a valid column of %s.", column, layer)
                     )
-            ).flatMap(getFeatureMapper(featureSource));
+            );
         }
+        return gpkg.createQuery(
+                layer,
+                String.format(
+                        "SELECT %s FROM %s AS f WHERE f.%s = ? LIMIT 1",
+                        featureSource.getRowDecoder().getSelectColumns(),
+                        layer,
+                        column
+                ),
+                value
+        ).flatMap(getFeatureMapper(featureSource.getRowDecoder()));
     }
 
     @Override
@@ -244,40 +457,14 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                 @Override
                 public void call(Subscriber<? super SCSpatialFeature> subscriber) {
                     try {
-                        Set<String> columns = featureSource.getColumns().keySet();
-                        Map<String, Object> props = new HashMap<>();
-                        for (String col : columns) {
-                            if (!col.equals(featureSource.getGeomColumnName()) && !col.equals(featureSource.getPrimaryKeyName())) {
-                                props.put(col, null);
-                            }
+                        long rowId = featureSource.insert(scSpatialFeature);
+                        if (rowId == -1) {
+                            subscriber.onError(new Throwable("Could not create the feature."));
+                            return;
                         }
-                        String columnNames = featureSource.getColumnNamesForInsert(scSpatialFeature);
-                        String columnValues = featureSource.getColumnValuesForInsert(scSpatialFeature);
-
-                        String[] properties = columnNames.split(",");
-                        //ensure feature columns + geom column equal the column names otherwise something is wrong
-                        if ((props.size() + 1 )!= properties.length) {
-                            subscriber.onError(new Throwable("Invalid column names or values"));
-                        }
-
-                        gpkg.executeAndTrigger(tableName,
-                                String.format("INSERT OR REPLACE INTO %s (%s) VALUES (%s)",
-                                        tableName,
-                                        columnNames,
-                                        columnValues
-                                )
-                        );
-                        // get the id of the last inserted row: https://www.sqlite.org/lang_corefunc.html#last_insert_rowid
-                        Cursor cursor = gpkg.query("SELECT last_insert_rowid()");
-                        if (cursor != null) {
-                            cursor.moveToFirst();  // force query to execute
-                            final Integer pk = cursor.getInt(0);
-                            scSpatialFeature.setId(String.valueOf(pk));
-                            subscriber.onNext(scSpatialFeature);
-                            subscriber.onCompleted();
-                        }
-
-                        final SpatialConnect sc = SpatialConnect.getInstance();
+                        scSpatialFeature.setId(String.valueOf(rowId));
+                        subscriber.onNext(scSpatialFeature);
+                        subscriber.onCompleted();
                         storeEdited.onNext(scSpatialFeature);
                     }
                     catch (SQLException ex) {
@@ -288,6 +475,92 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
         }
     }
 
+    /**
+     * Creates all the features emitted by the observable, writing them in chunks of {@link #getBatchSize()} features.
+     * Each chunk is written with {@link #createBatch(List)}.
+     *
+     * @param scSpatialFeatures the features to create
+     * @return an observable of the created features with their new ids
+     */
+    @Override
+    public Observable<SCSpatialFeature> createAll(Observable<SCSpatialFeature> scSpatialFeatures) {
+        return scSpatialFeatures
+                .buffer(batchSize)
+                .concatMap(new Func1<List<SCSpatialFeature>, Observable<SCSpatialFeature>>() {
+                    @Override
+                    public Observable<SCSpatialFeature> call(List<SCSpatialFeature> batch) {
+                        return createBatch(batch);
+                    }
+                });
+    }
+
+    /**
+     * Creates all the features in a single transaction, so either all or none of them are written.  Queries on the
+     * affected tables and {@link #storeEdited} are notified once for the whole batch instead of once per feature.
+     *
+     * @param scSpatialFeatures the features to create
+     * @return an observable of the created features with their new ids
+     */
+    @Override
+    public Observable<SCSpatialFeature> createBatch(final List<SCSpatialFeature> scSpatialFeatures) {
+        return Observable.create(new Observable.OnSubscribe<SCSpatialFeature>() {
+            @Override
+            public void call(Subscriber<? super SCSpatialFeature> subscriber) {
+                if (scSpatialFeatures.isEmpty()) {
+                    subscriber.onCompleted();
+                    return;
+                }
+                // resolve every feature source before writing so an invalid layer doesn't leave a partial batch
+                List<SCGpkgFeatureSource> featureSources = new ArrayList<>(scSpatialFeatures.size());
+                for (SCSpatialFeature feature : scSpatialFeatures) {
+                    String tableName = feature.getKey().getLayerId();
+                    SCGpkgFeatureSource featureSource = gpkg.getFeatureSourceByName(tableName);
+                    if (featureSource == null) {
+                        subscriber.onError(
+                                new SCDataStoreException(
+                                        SCDataStoreException.ExceptionType.LAYER_NOT_FOUND,
+                                        String.format("%s was not a valid feature table name.", tableName)
+                                )
+                        );
+                        return;
+                    }
+                    featureSources.add(featureSource);
+                }
+
+                long[] rowIds = new long[scSpatialFeatures.size()];
+                boolean success = false;
+                BriteDatabase.Transaction tx = gpkg.newTransaction();
+                try {
+                    for (int i = 0; i < rowIds.length; i++) {
+                        rowIds[i] = featureSources.get(i).insert(scSpatialFeatures.get(i));
+                        if (rowIds[i] == -1) {
+                            throw new SQLException("Could not insert feature " + i + " of the batch.");
+                        }
+                    }
+                    tx.markSuccessful();
+                    success = true;
+                }
+                catch (SQLException ex) {
+                    subscriber.onError(new Throwable("Could not create the features.", ex));
+                }
+                finally {
+                    tx.end();
+                }
+
+                if (success) {
+                    // only assign the ids once the transaction has been committed
+                    for (int i = 0; i < rowIds.length; i++) {
+                        SCSpatialFeature feature = scSpatialFeatures.get(i);
+                        feature.setId(String.valueOf(rowIds[i]));
+                        subscriber.onNext(feature);
+                    }
+                    subscriber.onCompleted();
+                    storeEdited.onNext(scSpatialFeatures.get(rowIds.length - 1));
+                }
+            }
+        });
+    }
+
     @Override
     public Observable<SCSpatialFeature> update(final SCSpatialFeature scSpatialFeature) {
         final String tableName = scSpatialFeature.getKey().getLayerId();
@@ -305,16 +578,12 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                 @Override
                 public void call(Subscriber<? super SCSpatialFeature> subscriber) {
                     try {
-                        gpkg.executeAndTrigger(tableName,
-                                String.format("UPDATE %s SET %s WHERE %s = %s",
-                                        tableName,
-                                        featureSource.getUpdateSetClause(scSpatialFeature),
-                                        featureSource.getPrimaryKeyName(),
-                                        scSpatialFeature.getId()
-                                )
-                        );
+                        int rows = featureSource.update(scSpatialFeature);
                         subscriber.onNext(scSpatialFeature);
                         subscriber.onCompleted();
+                        if (rows > 0) {
+                            storeEdited.onNext(scSpatialFeature);
+                        }
                     }
                     catch (SQLException ex) {
                         subscriber.onError(new Throwable("Could not update the feature.", ex));
@@ -341,14 +610,16 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                 @Override
                 public void call(Subscriber<? super Void> subscriber) {
                     try {
-                        gpkg.executeAndTrigger(tableName,
-                                String.format("DELETE FROM %s WHERE %s = %s",
-                                        tableName,
-                                        featureSource.getPrimaryKeyName(),
-                                        keyTuple.getFeatureId()
-                                )
-                        );
+                        int rows = featureSource.delete(keyTuple.getFeatureId());
                         subscriber.onCompleted();
+                        if (rows > 0) {
+                            // the feature is gone, so only its key is passed on
+                            SCSpatialFeature deleted = new SCSpatialFeature();
+                            deleted.setStoreId(getStoreId());
+                            deleted.setLayerId(keyTuple.getLayerId());
+                            deleted.setId(keyTuple.getFeatureId());
+                            storeEdited.onNext(deleted);
+                        }
                     }
                     catch (SQLException ex) {
                         subscriber.onError(new Throwable("Could not delete the feature.", ex));
@@ -376,7 +647,8 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
             if (getContext().getDatabasePath(scStoreConfig.getUniqueID()).exists()) {
                 Log.d(LOG_TAG, "GeoPackage " + scStoreConfig.getUniqueID() + " already exists.  Not downloading.");
                 // create new GeoPackage for the file that's already on disk
-                gpkg = new GeoPackage(getContext(), scStoreConfig.getUniqueID());
+                gpkg = new GeoPackage(getContext(), scStoreConfig.getUniqueID(), metrics, startupTiming,
+                        logChanges);
                 if (gpkg.isValid()) {
                     subscriber.onCompleted();
                 }
@@ -391,6 +663,7 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                 if (scStoreConfig.getUri().startsWith("http")) {
                     try {
                         theUrl = new URL(scStoreConfig.getUri());
+                        final long downloadStart = System.currentTimeMillis();
                         download(theUrl.toString(), getContext().getDatabasePath(scStoreConfig.getUniqueID()))
                                 .sample(2, TimeUnit.SECONDS)
                                 .subscribe(
@@ -402,8 +675,12 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                                                     setStatus(SCDataStoreStatus.SC_DATA_STORE_DOWNLOADING_DATA);
                                                     subscriber.onNext(new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_DOWNLOADING_DATA));
                                                 } else {
+                                                    startupTiming.record(SCStoreStartupTiming.DOWNLOAD,
+                                                            System.currentTimeMillis() - downloadStart);
                                                     setStatus(SCDataStoreStatus.SC_DATA_STORE_RUNNING);
-                                                    gpkg = new GeoPackage(getContext(), scStoreConfig.getUniqueID());
+                                                    gpkg = new GeoPackage(getContext(),
+                                                            scStoreConfig.getUniqueID(), metrics, startupTiming,
+                                                            logChanges);
                                                     if (gpkg.isValid()) {
                                                         subscriber.onCompleted();
                                                     }
@@ -429,7 +706,8 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                     }
                 }
                 else if (scStoreConfig.getUri().startsWith("file")) {
-                    gpkg = new GeoPackage(getContext(), scStoreConfig.getUniqueID());
+                    gpkg = new GeoPackage(getContext(), scStoreConfig.getUniqueID(), metrics, startupTiming,
+                            logChanges);
                     if (gpkg.isValid()) {
                         subscriber.onNext(new SCStoreStatusEvent(SCDataStoreStatus.SC_DATA_STORE_RUNNING));
                         subscriber.onCompleted();
@@ -486,20 +764,37 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
     }
 
     @Override
-    public Observable<SCSpatialFeature> unSent() {
-        return gpkg.unSent().map(new Func1<SCSpatialFeature, SCSpatialFeature>() {
+    public Observable<SCChange> unSent() {
+        return gpkg.unSent().map(new Func1<SCChange, SCChange>() {
             @Override
-            public SCSpatialFeature call(SCSpatialFeature feature) {
-                feature.setStoreId(storeId);
-                return feature;
+            public SCChange call(SCChange change) {
+                change.getFeature().setStoreId(storeId);
+                return change;
             }
         });
     }
 
+    /**
+     * Marks the changes as sent in a single transaction, so the changes acknowledged by the broker are recorded with
+     * one commit instead of one per change.
+     */
     @Override
-    public void updateAuditTable(SCSpatialFeature scSpatialFeature) {
-        SCGpkgFeatureSource fs = gpkg.getFeatureSourceByName(scSpatialFeature.getLayerId());
-        fs.updateAuditTable(scSpatialFeature);
+    public void markSent(List<SCChange> changes) {
+        List<Long> sequences = new ArrayList<>(changes.size());
+        for (SCChange change : changes) {
+            sequences.add(change.getSequence());
+        }
+        gpkg.markChangesSent(sequences);
+    }
+
+    /**
+     * Deletes the changes of this store that were sent longer ago than the retention.
+     *
+     * @return the number of changes deleted
+     */
+    @Override
+    public int compactChangeLog(long retention, TimeUnit unit) {
+        return gpkg.compactChangeLog(unit.toSeconds(retention));
     }
 
     @Override
@@ -512,27 +807,105 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
         return null;
     }
 
-    private String createRtreeSubQuery(SCGpkgFeatureSource source, SCBoundingBox bbox) {
-        return String.format("SELECT id FROM rtree_%s_%s WHERE minx > %f AND maxx < %f AND miny > %f AND maxy < %f",
+    /**
+     * Builds the query for the features of a table that match the predicate.  The bounding box is evaluated against
+     * the table's R-tree index, which is joined to the feature table so each match is a single lookup:
+     * <ul>
+     *     <li>{@code SCPREDICATE_OPERATOR_WITHIN} matches features whose envelope intersects the bbox</li>
+     *     <li>{@code SCPREDICATE_OPERATOR_CONTAINS} matches features whose envelope is inside the bbox</li>
+     *     <li>{@code SCPREDICATE_OPERATOR_NOTWITHIN} matches features whose envelope is disjoint from the bbox, the
+     *     rest are checked exactly by the query built by {@link #createNotWithinCandidateQuery}</li>
+     * </ul>
+     * The bbox and limit are bound as parameters so the statement text is the same for every query on the table.
+     *
+     * @see #getFeatureQueryArgs(SCPredicate, int)
+     */
+    private String createFeatureQuery(SCGpkgFeatureSource source, SCGpkgRowDecoder decoder, SCPredicate predicate) {
+        if (predicate == null || predicate.getBoundingBox() == null) {
+            return String.format("SELECT %s FROM %s AS f LIMIT ?",
+                    decoder.getSelectColumns(),
+                    source.getTableName()
+            );
+        }
+        return String.format("SELECT %s FROM %s AS f JOIN rtree_%s_%s AS r ON f.%s = r.id WHERE %s LIMIT ?",
+                decoder.getSelectColumns(),
+                source.getTableName(),
+                source.getTableName(),
+                source.getGeomColumnName(),
+                source.getPrimaryKeyName(),
+                getEnvelopeClause(predicate)
+        );
+    }
+
+    /**
+     * Builds the query for the features of a table whose envelope intersects the bbox, which only match
+     * {@code SCPREDICATE_OPERATOR_NOTWITHIN} if their geometry doesn't.  The geometry is selected after the decoder's
+     * columns so it can be checked exactly whatever the query projects.
+     *
+     * @see #getNotWithinMapper(SCGpkgRowDecoder, SCPredicate)
+     */
+    private String createNotWithinCandidateQuery(SCGpkgFeatureSource source, SCGpkgRowDecoder decoder) {
+        return String.format("SELECT %s,f.%s FROM %s AS f JOIN rtree_%s_%s AS r ON f.%s = r.id WHERE %s LIMIT ?",
+                decoder.getSelectColumns(),
+                source.getGeomColumnName(),
+                source.getTableName(),
                 source.getTableName(),
                 source.getGeomColumnName(),
-                bbox.getMinX(),
-                bbox.getMaxX(),
-                bbox.getMinY(),
-                bbox.getMaxY()
+                source.getPrimaryKeyName(),
+                RTREE_INTERSECTS_CLAUSE
         );
     }
 
-    private String getSelectColumnsString(SCGpkgFeatureSource featureSource) {
-        StringBuilder sb = new StringBuilder();
-        for (String columnName : featureSource.getColumns().keySet()) {
-            sb.append(columnName).append(",");
+    private static boolean isNotWithin(SCPredicate predicate) {
+        return predicate != null && predicate.getBoundingBox() != null
+                && predicate.getGeometryComparison() == SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_NOTWITHIN;
+    }
+
+    // returns the test of the R-tree envelope for the predicate's comparison
+    private String getEnvelopeClause(SCPredicate predicate) {
+        switch (predicate.getGeometryComparison()) {
+            case SCPREDICATE_OPERATOR_CONTAINS:
+                return RTREE_CONTAINED_CLAUSE;
+            case SCPREDICATE_OPERATOR_NOTWITHIN:
+                return "NOT (" + RTREE_INTERSECTS_CLAUSE + ")";
+            default:
+                return RTREE_INTERSECTS_CLAUSE;
         }
-        sb.append(featureSource.getPrimaryKeyName()).append(",");
-        String geomColumnName = featureSource.getGeomColumnName();
-        sb.append("ST_AsBinary(").append(geomColumnName).append(") AS ").append(geomColumnName);
-        return sb.toString();
+    }
+
+    // returns the bind args for the query built by createFeatureQuery or createNotWithinCandidateQuery, where a
+    // negative limit means no limit
+    private String[] getFeatureQueryArgs(SCPredicate predicate, int limit) {
+        if (predicate == null || predicate.getBoundingBox() == null) {
+            return new String[]{String.valueOf(limit)};
+        }
+        SCBoundingBox bbox = predicate.getBoundingBox();
+        if (predicate.getGeometryComparison() == SCGeometryPredicateComparison.SCPREDICATE_OPERATOR_CONTAINS) {
+            return new String[]{
+                    String.valueOf(bbox.getMinX()),
+                    String.valueOf(bbox.getMaxX()),
+                    String.valueOf(bbox.getMinY()),
+                    String.valueOf(bbox.getMaxY()),
+                    String.valueOf(limit)
+            };
+        }
+        return new String[]{
+                String.valueOf(bbox.getMaxX()),
+                String.valueOf(bbox.getMinX()),
+                String.valueOf(bbox.getMaxY()),
+                String.valueOf(bbox.getMinY()),
+                String.valueOf(limit)
+        };
+    }
 
+    // returns the decoder for the columns and geometry projected by the query filter
+    private SCGpkgRowDecoder getRowDecoder(SCGpkgFeatureSource featureSource, SCQueryFilter queryFilter) {
+        if (!queryFilter.hasProjection()) {
+            return featureSource.getRowDecoder();
+        }
+        List<String> columnNames = queryFilter.getPropertyNames().size() > 0 ?
+                queryFilter.getPropertyNames() : new ArrayList<>(featureSource.getColumns().keySet());
+        return featureSource.getRowDecoder(columnNames, queryFilter.getGeometryProjection());
     }
 
     private void saveFileToFilesystem(InputStream is) throws IOException {
@@ -548,7 +921,29 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
         Log.d(LOG_TAG, "Size of file in bytes " + dbFile.length());
     }
 
-    private Func1<SqlBrite.Query, Observable<SCSpatialFeature>> getFeatureMapper(final SCGpkgFeatureSource source) {
+    private Func1<SqlBrite.Query, Observable<SCSpatialFeature>> getFeatureMapper(final SCGpkgRowDecoder decoder) {
+        return new Func1<SqlBrite.Query, Observable<SCSpatialFeature>>() {
+
+            @Override
+            public Observable<SCSpatialFeature> call(SqlBrite.Query query) {
+                return query.asRows(new Func1<Cursor, SCSpatialFeature>() {
+                    @Override
+                    public SCSpatialFeature call(final Cursor cursor) {
+                        SCSpatialFeature feature = decoder.decode(cursor);
+                        feature.setStoreId(scStoreConfig.getUniqueID());
+                        return feature;
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Maps the rows of a {@link #createNotWithinCandidateQuery} to the features whose geometry, read from the last
+     * column, matches the predicate exactly.
+     */
+    private Func1<SqlBrite.Query, Observable<SCSpatialFeature>> getNotWithinMapper(final SCGpkgRowDecoder decoder,
+                                                                                 final SCPredicate predicate) {
         return new Func1<SqlBrite.Query, Observable<SCSpatialFeature>>() {
 
             @Override
@@ -556,58 +951,26 @@ public class GeoPackageStore extends SCDataStore implements ISCSpatialStore, SCD
                 return query.asRows(new Func1<Cursor, SCSpatialFeature>() {
                     @Override
                     public SCSpatialFeature call(final Cursor cursor) {
-                        SCSpatialFeature feature = new SCSpatialFeature();
-                        // deserialize byte[] to Geometry object
-                        byte[] wkb = SCSqliteHelper.getBlob(cursor, source.getGeomColumnName());
+                        byte[] gpb = cursor.getBlob(cursor.getColumnCount() - 1);
                         try {
-                            if (wkb != null && wkb.length > 0) {
-                                feature = new SCGeometry(
-                                        new WKBReader(GEOMETRY_FACTORY).read(wkb)
-                                );
+                            Geometry geometry = GeoPackageBinary.toGeometry(gpb, GEOMETRY_FACTORY);
+                            if (geometry == null || !predicate.applyFilter(new SCGeometry(geometry))) {
+                                return null;
                             }
                         }
                         catch (ParseException e) {
                             Log.w(LOG_TAG, "Could not parse geometry");
+                            return null;
                         }
+                        SCSpatialFeature feature = decoder.decode(cursor);
                         feature.setStoreId(scStoreConfig.getUniqueID());
-                        feature.setLayerId(source.getTableName());
-                        feature.setId(SCSqliteHelper.getString(cursor, source.getPrimaryKeyName()));
-                        for (Map.Entry<String, String> column : source.getColumns().entrySet()) {
-                            if (column.getValue().equalsIgnoreCase("BLOB")
-                                    || column.getValue().equalsIgnoreCase("GEOMETRY")
-                                    || column.getValue().equalsIgnoreCase("POINT")
-                                    || column.getValue().equalsIgnoreCase("LINESTRING")
-                                    || column.getValue().equalsIgnoreCase("POLYGON")) {
-                                feature.getProperties().put(
-                                        column.getKey(),
-                                        SCSqliteHelper.getBlob(cursor, column.getKey())
-                                );
-                            }
-                            else if (column.getValue().startsWith("INTEGER")) {
-                                feature.getProperties().put(
-                                        column.getKey(),
-                                        SCSqliteHelper.getInt(cursor, column.getKey())
-                                );
-                            }
-                            else if (column.getValue().startsWith("REAL")) {
-                                feature.getProperties().put(
-                                        column.getKey(),
-                                        SCSqliteHelper.getLong(cursor, column.getKey())
-                                );
-                            }
-                            else if (column.getValue().startsWith("TEXT")) {
-                                feature.getProperties().put(
-                                        column.getKey(),
-                                        SCSqliteHelper.getString(cursor, column.getKey())
-                                );
-                            }
-                            else {
-                                Log.w(LOG_TAG, "The column type " + column.getValue() + " did not match any supported" +
-                                        " column type so it wasn't added to the feature.");
-                            }
-                        }
                         return feature;
                     }
+                }).filter(new Func1<SCSpatialFeature, Boolean>() {
+                    @Override
+                    public Boolean call(SCSpatialFeature feature) {
+                        return feature != null;
+                    }
                 });
             }
         };
@@ -31,6 +31,8 @@ public interface ISCSpatialStore
     Observable query(SCQueryFilter scFilter);
     Observable queryById(SCKeyTuple keyTuple);
     Observable create(SCSpatialFeature scSpatialFeature);
+    Observable createAll(Observable<SCSpatialFeature> scSpatialFeatures);
+    Observable createBatch(List<SCSpatialFeature> scSpatialFeatures);
     Observable update(SCSpatialFeature scSpatialFeature);
     Observable delete(SCKeyTuple keyTuple);
     List<String> vectorLayers();
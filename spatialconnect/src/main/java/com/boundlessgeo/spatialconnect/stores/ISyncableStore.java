@@ -17,13 +17,16 @@ package com.boundlessgeo.spatialconnect.stores;
 
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import rx.Observable;
 
 public interface ISyncableStore {
-    void updateAuditTable(SCSpatialFeature scSpatialFeature);
+    void markSent(List<SCChange> changes);
     Map<String, Object> generateSendPayload(SCSpatialFeature scSpatialFeature);
-    Observable<SCSpatialFeature> unSent();
+    Observable<SCChange> unSent();
     String syncChannel();
+    int compactChangeLog(long retention, TimeUnit unit);
 }
@@ -110,9 +110,9 @@ public class LocationStore extends GeoPackageStore implements ISCSpatialStore, S
 
     @Override
     public Map<String, Object> generateSendPayload(SCSpatialFeature scSpatialFeature) {
-        SCPoint point = (SCPoint) scSpatialFeature;
+        // locations are decoded as geometries, and a deleted location only has its key
         Map<String, Object> payload =
-                SCObjectMapper.getMapper().convertValue(point, new TypeReference<Object>() {});
+                SCObjectMapper.getMapper().convertValue(scSpatialFeature, new TypeReference<Object>() {});
 
         return payload;
     }
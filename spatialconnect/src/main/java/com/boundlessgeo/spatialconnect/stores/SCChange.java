@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.stores;
+
+import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An unsent entry of a store's change log: a feature that was inserted, updated or deleted.  The feature of an
+ * insert has all of its columns, the feature of an update only has the columns that changed, and the feature of a
+ * delete only has its key.
+ * <p>
+ * A change is identified by its store and its sequence number in the store's change log.
+ */
+public class SCChange {
+
+    public enum Operation {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final long sequence;
+    private final Operation operation;
+    private final SCSpatialFeature feature;
+    private final List<String> changedColumns;
+
+    public SCChange(long sequence, Operation operation, SCSpatialFeature feature, List<String> changedColumns) {
+        this.sequence = sequence;
+        this.operation = operation;
+        this.feature = feature;
+        this.changedColumns = changedColumns != null ? changedColumns : Collections.<String>emptyList();
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public SCSpatialFeature getFeature() {
+        return feature;
+    }
+
+    /**
+     * @return the columns written by an update, empty for inserts and deletes
+     */
+    public List<String> getChangedColumns() {
+        return changedColumns;
+    }
+
+    public String getStoreId() {
+        return feature.getStoreId();
+    }
+
+    public SCKeyTuple getKey() {
+        return feature.getKey();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        SCChange that = (SCChange) o;
+
+        if (sequence != that.sequence) return false;
+        return getStoreId() != null ? getStoreId().equals(that.getStoreId()) : that.getStoreId() == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = getStoreId() != null ? getStoreId().hashCode() : 0;
+        result = 31 * result + (int) (sequence ^ (sequence >>> 32));
+        return result;
+    }
+}
@@ -33,6 +33,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import rx.Observable;
 import rx.Subscriber;
@@ -55,10 +56,14 @@ public abstract class SCDataStore {
     private String version;
     private String type;
     private Context context;
-    private SCDataStoreStatus status = SCDataStoreStatus.SC_DATA_STORE_STOPPED;
+    private final AtomicReference<SCDataStoreStatus> status =
+            new AtomicReference<>(SCDataStoreStatus.SC_DATA_STORE_STOPPED);
     private float downloadProgress;
     protected SCStyle style;
+    protected final SCStoreMetrics metrics = new SCStoreMetrics();
+    protected final SCStoreStartupTiming startupTiming = new SCStoreStartupTiming();
     public PublishSubject<SCSpatialFeature> storeEdited = PublishSubject.create();
+    private final PublishSubject<SCDataStoreStatus> statusChanged = PublishSubject.create();
 
 
     public SCDataStore(Context context, SCStoreConfig scStoreConfig) {
@@ -116,11 +121,35 @@ public abstract class SCDataStore {
     }
 
     public SCDataStoreStatus getStatus() {
-        return this.status;
+        return this.status.get();
     }
 
     public void setStatus(SCDataStoreStatus status) {
-        this.status = status;
+        if (this.status.getAndSet(status) != status) {
+            statusChanged.onNext(status);
+        }
+    }
+
+    /**
+     * Sets the status only if it's still the expected status, so two threads can't both make the same transition.
+     *
+     * @return true if the status was set
+     */
+    public boolean compareAndSetStatus(SCDataStoreStatus expect, SCDataStoreStatus update) {
+        if (!this.status.compareAndSet(expect, update)) {
+            return false;
+        }
+        if (expect != update) {
+            statusChanged.onNext(update);
+        }
+        return true;
+    }
+
+    /**
+     * Emits the new status of the store each time it changes.
+     */
+    public Observable<SCDataStoreStatus> statusChanges() {
+        return statusChanged.asObservable();
     }
 
     public float getDownloadProgress() {
@@ -131,6 +160,17 @@ public abstract class SCDataStore {
         this.downloadProgress = downloadProgress;
     }
 
+    public SCStoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how long each phase of the last start of this store took
+     */
+    public SCStoreStartupTiming getStartupTiming() {
+        return startupTiming;
+    }
+
     public SCStyle getStyle() {
         return  this.style;
     }
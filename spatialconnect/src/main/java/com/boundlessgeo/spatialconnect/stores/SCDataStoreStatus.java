@@ -26,5 +26,7 @@ public enum SCDataStoreStatus
     SC_DATA_STORE_STATUS_CHANGE,
     SC_DATA_STORE_DOWNLOAD_PROGRESS,
     SC_DATA_STORE_REMOVED,
-    SC_DATA_STORE_RESUMED
+    SC_DATA_STORE_RESUMED,
+    SC_DATA_STORE_STARTING, // while the data service is starting the store
+    SC_DATA_STORE_STOPPING // while the data service is stopping the store
 }
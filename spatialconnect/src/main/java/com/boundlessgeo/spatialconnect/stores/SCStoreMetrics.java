@@ -0,0 +1,62 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.stores;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the work a {@link SCDataStore} has done.  The counters are updated from whichever thread does
+ * the work so they are safe to read at any time.
+ */
+public class SCStoreMetrics {
+
+    /**
+     * The number of SQL statements executed on the write path (INSERT, UPDATE and DELETE).
+     */
+    private final AtomicLong writeStatements = new AtomicLong();
+
+    /**
+     * The number of rows inserted, updated or deleted by those statements.
+     */
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    /**
+     * The number of SQL queries run for their rows, such as a feature query or a lookup made while writing.
+     */
+    private final AtomicLong readStatements = new AtomicLong();
+
+    public void recordWriteStatement(long rowsAffected) {
+        writeStatements.incrementAndGet();
+        if (rowsAffected > 0) {
+            rowsWritten.addAndGet(rowsAffected);
+        }
+    }
+
+    public void recordReadStatement() {
+        readStatements.incrementAndGet();
+    }
+
+    public long getWriteStatementCount() {
+        return writeStatements.get();
+    }
+
+    public long getRowsWrittenCount() {
+        return rowsWritten.get();
+    }
+
+    public long getReadStatementCount() {
+        return readStatements.get();
+    }
+}
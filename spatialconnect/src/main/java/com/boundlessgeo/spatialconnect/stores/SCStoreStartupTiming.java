@@ -0,0 +1,81 @@
+/**
+ * Copyright 2017 Boundless, http://boundlessgeo.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License
+ */
+package com.boundlessgeo.spatialconnect.stores;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How long each phase of starting a {@link SCDataStore} took, in milliseconds.  A store records the phases it goes
+ * through; a phase recorded more than once adds up.
+ */
+public class SCStoreStartupTiming {
+
+    /**
+     * Opening the database.
+     */
+    public static final String OPEN = "open";
+    /**
+     * Initializing and checking the GeoPackage spatial metadata.
+     */
+    public static final String VALIDATE = "validate";
+    /**
+     * Checking or building the spatial indexes.
+     */
+    public static final String INDEX = "index";
+    /**
+     * Checking or creating the audit tables and their triggers.
+     */
+    public static final String AUDIT = "audit";
+    /**
+     * Downloading the store's data.
+     */
+    public static final String DOWNLOAD = "download";
+    /**
+     * The whole start, from when the data service started the store until it was running.
+     */
+    public static final String TOTAL = "total";
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public synchronized void record(String phase, long elapsedMs) {
+        Long previous = phases.get(phase);
+        phases.put(phase, previous == null ? elapsedMs : previous + elapsedMs);
+    }
+
+    /**
+     * @return the time spent in the phase, or 0 if it wasn't recorded
+     */
+    public synchronized long get(String phase) {
+        Long elapsedMs = phases.get(phase);
+        return elapsedMs == null ? 0 : elapsedMs;
+    }
+
+    public synchronized void reset() {
+        phases.clear();
+    }
+
+    /**
+     * @return a copy of the recorded phases, in the order they were first recorded
+     */
+    public synchronized Map<String, Object> toMap() {
+        return new LinkedHashMap<String, Object>(phases);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return phases.toString();
+    }
+}
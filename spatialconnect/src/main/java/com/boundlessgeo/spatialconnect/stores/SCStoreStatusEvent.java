@@ -18,12 +18,21 @@ public class SCStoreStatusEvent {
 
     private SCDataStoreStatus status;
     private String storeId;
+    private SCStoreStartupTiming startupTiming;
 
     public SCStoreStatusEvent(SCDataStoreStatus status, String storeId) {
         this.status = status;
         this.storeId = storeId;
     }
 
+    /**
+     * Creates an event that reports how long the store took to start, sent when it's running or failed to start.
+     */
+    public SCStoreStatusEvent(SCDataStoreStatus status, String storeId, SCStoreStartupTiming startupTiming) {
+        this(status, storeId);
+        this.startupTiming = startupTiming;
+    }
+
     public SCStoreStatusEvent(SCDataStoreStatus status) {
         this.status = status;
     }
@@ -35,4 +44,11 @@ public class SCStoreStatusEvent {
     public String getStoreId() {
         return this.storeId;
     }
+
+    /**
+     * @return how long each phase of starting the store took, or null if this event isn't about a start
+     */
+    public SCStoreStartupTiming getStartupTiming() {
+        return this.startupTiming;
+    }
 }
@@ -23,6 +23,7 @@ import com.boundlessgeo.spatialconnect.config.SCStoreConfig;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometryCollection;
 import com.boundlessgeo.spatialconnect.geometries.SCGeometryFactory;
 import com.boundlessgeo.spatialconnect.geometries.SCSpatialFeature;
+import com.boundlessgeo.spatialconnect.query.SCGeometryProjection;
 import com.boundlessgeo.spatialconnect.query.SCQueryFilter;
 import com.boundlessgeo.spatialconnect.scutilities.HttpHandler;
 import com.boundlessgeo.spatialconnect.style.SCStyle;
@@ -96,7 +97,7 @@ public class WFSStore extends SCRemoteDataStore implements ISCSpatialStore {
     }
 
     @Override
-    public Observable<SCSpatialFeature> query(SCQueryFilter scFilter) {
+    public Observable<SCSpatialFeature> query(final SCQueryFilter scFilter) {
         // if there are no layer names supplied in the query filter, then search only on the default layers
         final List<String> layerNames = scFilter.getLayerIds().size() > 0 ?
                 scFilter.getLayerIds() :
@@ -120,6 +121,14 @@ public class WFSStore extends SCRemoteDataStore implements ISCSpatialStore {
                     scFilter.getPredicate().getBoundingBox().getMaxY()
             );
         }
+        // the geometry attribute name isn't known, so the property list can only be sent when no geometry is wanted
+        if (scFilter.getPropertyNames().size() > 0 &&
+                scFilter.getGeometryProjection() == SCGeometryProjection.SCGEOMETRY_PROJECTION_NONE) {
+            getFeatureUrl = String.format("%s&propertyName=%s",
+                    getFeatureUrl,
+                    TextUtils.join(",", scFilter.getPropertyNames())
+            );
+        }
         final String featureUrl = getFeatureUrl;
         return Observable.create(new Observable.OnSubscribe<SCSpatialFeature>(){
             @Override
@@ -136,7 +145,7 @@ public class WFSStore extends SCRemoteDataStore implements ISCSpatialStore {
                                         for (SCSpatialFeature feature : collection.getFeatures()) {
                                             feature.setLayerId(feature.getId().split("\\.")[0]);  // the first part of the id is the layer name
                                             feature.setStoreId(getStoreId());
-                                            subscriber.onNext(feature);
+                                            subscriber.onNext(scFilter.applyProjection(feature));
                                         }
                                         subscriber.onCompleted();
                                     } catch (IOException ioe) {
@@ -168,6 +177,16 @@ public class WFSStore extends SCRemoteDataStore implements ISCSpatialStore {
         return null;
     }
 
+    @Override
+    public Observable createAll(Observable<SCSpatialFeature> scSpatialFeatures) {
+        return null;
+    }
+
+    @Override
+    public Observable createBatch(List<SCSpatialFeature> scSpatialFeatures) {
+        return null;
+    }
+
     @Override
     public Observable update(SCSpatialFeature scSpatialFeature) {
         return null;
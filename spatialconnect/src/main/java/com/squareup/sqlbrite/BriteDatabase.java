@@ -19,6 +19,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import org.sqlite.database.sqlite.SQLiteDatabase;
 import org.sqlite.database.sqlite.SQLiteOpenHelper;
+import org.sqlite.database.sqlite.SQLiteStatement;
 import org.sqlite.database.sqlite.SQLiteTransactionListener;
 import android.support.annotation.CheckResult;
 import android.support.annotation.IntDef;
@@ -513,6 +514,61 @@ public final class BriteDatabase implements Closeable {
     sendTableTrigger(Collections.singleton(table));
   }
 
+  /**
+   * Compile {@code sql} into a reusable {@link SQLiteStatement} against the writeable database.
+   * The caller owns the returned statement and is responsible for closing it.
+   *
+   * @see SQLiteDatabase#compileStatement(String)
+   */
+  @CheckResult @NonNull
+  public SQLiteStatement compileStatement(@NonNull String sql) {
+    return getWriteableDatabase().compileStatement(sql);
+  }
+
+  /**
+   * Execute {@code statement}, if the number of rows affected by execution of this SQL
+   * statement is of any importance to the caller - for example, UPDATE / DELETE SQL statements.
+   * <p>
+   * A notification to queries for {@code table} will be sent after the statement is executed if
+   * any rows were affected.
+   *
+   * @return the number of rows affected by this SQL statement execution.
+   * @see SQLiteStatement#executeUpdateDelete()
+   */
+  // TODO @WorkerThread
+  public int executeUpdateDelete(String table, SQLiteStatement statement) {
+    if (logging) log("EXECUTE\n %s", statement);
+
+    int rows = statement.executeUpdateDelete();
+    if (rows > 0) {
+      // Only send a table trigger if rows were affected.
+      sendTableTrigger(Collections.singleton(table));
+    }
+    return rows;
+  }
+
+  /**
+   * Execute {@code statement} and return the ID of the row inserted due to this call.
+   * The SQL statement should be an INSERT for this to be a useful call.
+   * <p>
+   * A notification to queries for {@code table} will be sent after the statement is executed if
+   * the insert was successful.
+   *
+   * @return the row ID of the last row inserted, if this insert is successful. -1 otherwise.
+   * @see SQLiteStatement#executeInsert()
+   */
+  // TODO @WorkerThread
+  public long executeInsert(String table, SQLiteStatement statement) {
+    if (logging) log("EXECUTE\n %s", statement);
+
+    long rowId = statement.executeInsert();
+    if (rowId != -1) {
+      // Only send a table trigger if the insert was successful.
+      sendTableTrigger(Collections.singleton(table));
+    }
+    return rowId;
+  }
+
   /** An in-progress database transaction. */
   public interface Transaction extends Closeable {
     /**